@@ -29,6 +29,12 @@ public class CalDAVResponse {
      */
     private static Map<Integer, String> _status_codes = new HashMap<Integer, String>();
 
+    /**
+     * Status lines of the multistatus responses, as <code>HTTP/1.1 200 OK</code>, built once for
+     * every status code.
+     */
+    private static Map<Integer, String> _status_lines = new HashMap<Integer, String>();
+
     // ------------------------------------------------------ HTTP Status Codes
 
     /**
@@ -195,6 +201,13 @@ public class CalDAVResponse {
      */
     public static final int SC_LOCKED = 423;
 
+    /**
+     * Status code (507) indicating the server is unable to store the representation needed to
+     * complete the request. A <code>REPORT</code> or <code>PROPFIND</code> uses it to mark a result
+     * truncated by a limit (RFC 5323 5.17).
+     */
+    public static final int SC_INSUFFICIENT_STORAGE = 507;
+
     // ------------------------------------------------------------ Initializer
 
     static {
@@ -226,6 +239,7 @@ public class CalDAVResponse {
         addStatusCode(SC_INSUFFICIENT_SPACE_ON_RESOURCE, "Insufficient Space On Resource");
         addStatusCode(SC_METHOD_FAILURE, "Method Failure");
         addStatusCode(SC_LOCKED, "Locked");
+        addStatusCode(SC_INSUFFICIENT_STORAGE, "Insufficient Storage");
     }
 
     // --------------------------------------------------------- Public Methods
@@ -248,6 +262,21 @@ public class CalDAVResponse {
         }
     }
 
+    /**
+     * Returns the status line of a multistatus response for the status code.
+     * 
+     * @param nHttpStatusCode
+     *            [IN] HTTP or WebDAV status code
+     * @return A string with the status line, as <code>HTTP/1.1 200 OK</code>
+     */
+    public static String getStatusLine(int nHttpStatusCode) {
+        String line = _status_lines.get(nHttpStatusCode);
+        if (line == null) {
+            return "HTTP/1.1 " + nHttpStatusCode + " " + getStatusText(nHttpStatusCode);
+        }
+        return line;
+    }
+
     // -------------------------------------------------------- Private Methods
 
     /**
@@ -261,6 +290,7 @@ public class CalDAVResponse {
      */
     private static void addStatusCode(int nKey, String strVal) {
         _status_codes.put(new Integer(nKey), strVal);
+        _status_lines.put(new Integer(nKey), "HTTP/1.1 " + nKey + " " + strVal);
     }
 
 }
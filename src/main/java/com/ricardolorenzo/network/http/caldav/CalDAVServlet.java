@@ -19,7 +19,11 @@ import java.lang.reflect.Constructor;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.zip.Deflater;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
@@ -49,6 +53,7 @@ import com.ricardolorenzo.network.http.caldav.method.REPORT;
 import com.ricardolorenzo.network.http.caldav.method.UNLOCK;
 import com.ricardolorenzo.network.http.caldav.session.CalDAVTransaction;
 import com.ricardolorenzo.network.http.caldav.store.CalDAVStore;
+import com.ricardolorenzo.network.http.caldav.store.VCalendarIndex;
 
 /**
  * 
@@ -77,6 +82,41 @@ import com.ricardolorenzo.network.http.caldav.store.CalDAVStore;
  * instead-of-404
  *  Allows you to define a html page that is displayed rather than a 404. 
  *  Possibly this can be a URL to redirect to on the local system but I'm not certain.
+ * 
+ * report-threads
+ * 	Maximum number of calendars evaluated at the same time by a REPORT on a calendar home.
+ *  Defaults to 4
+ * 
+ * uid-filter-false-positive-rate
+ * 	False positive rate of the per calendar UID filters, used to answer the lookups of missing objects.
+ *  Defaults to 0.01
+ * 
+ * compression
+ * 	This should be 1 to compress the responses with the gzip or deflate coding accepted by the client.
+ *  The compressed bytes are kept by the deflater until it fills a block, so the streamed responses
+ *  send their first bytes later than without compression.
+ *  Defaults to 0
+ * 
+ * compression-threshold
+ * 	Minimum size in bytes of the compressed responses.
+ *  Defaults to 1024
+ * 
+ * compression-level
+ * 	Compression level, from 1 (fastest) to 9 (smallest).
+ *  Defaults to 6
+ * 
+ * compression-mime-types
+ * 	Comma separated list of the content types to compress.
+ *  Defaults to text/xml,application/xml,text/calendar,text/html,text/plain
+ * 
+ * max-results
+ * 	Maximum number of calendar objects sent by a calendar-query REPORT or listed by a PROPFIND,
+ *  the rest of the result is truncated with a 507 response.
+ *  Defaults to 0, no limit
+ * 
+ * response-cache-size
+ * 	Maximum size in bytes of the PROPFIND and REPORT responses kept to answer the repeated requests.
+ *  Defaults to 0, no responses are kept
  * 	
  * security-provider
  *  - allows you to provide an external security provider to let 
@@ -103,6 +143,12 @@ public class CalDAVServlet extends HttpServlet {
     private ResourceLocksMap resourceLocks;
     private CalDAVStore store;
     private Map<String, CalDAVMethod> httpMethods;
+    private REPORT report;
+    private boolean compression;
+    private int compressionThreshold;
+    private int compressionLevel;
+    private Set<String> compressionTypes;
+    private ResponseCache cache;
     
     public static SecurityProvider securityProvider;
 
@@ -130,6 +176,12 @@ public class CalDAVServlet extends HttpServlet {
         boolean lazyFolderCreation = false;
         int no_content_length_headers = 0;
         String instead_of_404 = null;
+        int report_threads = REPORT.DEFAULT_THREADS;
+        int max_results = 0;
+        this.compression = false;
+        this.compressionThreshold = 1024;
+        this.compressionLevel = 6;
+        String compression_types = "text/xml,application/xml,text/calendar,text/html,text/plain";
         
 		initProvider(conf);
 		
@@ -158,6 +210,79 @@ public class CalDAVServlet extends HttpServlet {
         if (conf.getInitParameter("instead-of-404") != null) {
             instead_of_404 = conf.getInitParameter("instead-of-404");
         }
+        if (conf.getInitParameter("uid-filter-false-positive-rate") != null) {
+            try {
+                VCalendarIndex.setFalsePositiveRate(Double.parseDouble(conf
+                        .getInitParameter("uid-filter-false-positive-rate")));
+            } catch (IllegalArgumentException e) {
+            	logger.warn("Invalid value for uid-filter-false-positive-rate"
+                        + conf.getInitParameter("uid-filter-false-positive-rate"), e);
+                // nothing
+            }
+        }
+        if (conf.getInitParameter("report-threads") != null) {
+            try {
+                report_threads = Integer.parseInt(conf.getInitParameter("report-threads"));
+            } catch (NumberFormatException e) {
+            	logger.warn("Invalid value for report-threads" + conf.getInitParameter("report-threads"), e);
+                // nothing
+            }
+        }
+        if (conf.getInitParameter("max-results") != null) {
+            try {
+                max_results = Integer.parseInt(conf.getInitParameter("max-results"));
+            } catch (NumberFormatException e) {
+                logger.warn("Invalid value for max-results" + conf.getInitParameter("max-results"), e);
+                // nothing
+            }
+        }
+        if (conf.getInitParameter("compression") != null) {
+            try {
+                this.compression = Integer.parseInt(conf.getInitParameter("compression")) == 1;
+            } catch (NumberFormatException e) {
+                logger.warn("Invalid value for compression" + conf.getInitParameter("compression"), e);
+                // nothing
+            }
+        }
+        if (conf.getInitParameter("compression-threshold") != null) {
+            try {
+                this.compressionThreshold = Integer.parseInt(conf.getInitParameter("compression-threshold"));
+            } catch (NumberFormatException e) {
+                logger.warn("Invalid value for compression-threshold" + conf.getInitParameter("compression-threshold"), e);
+                // nothing
+            }
+        }
+        if (conf.getInitParameter("compression-level") != null) {
+            try {
+                int level = Integer.parseInt(conf.getInitParameter("compression-level"));
+                if (level >= Deflater.BEST_SPEED && level <= Deflater.BEST_COMPRESSION) {
+                    this.compressionLevel = level;
+                }
+            } catch (NumberFormatException e) {
+                logger.warn("Invalid value for compression-level" + conf.getInitParameter("compression-level"), e);
+                // nothing
+            }
+        }
+        if (conf.getInitParameter("compression-mime-types") != null) {
+            compression_types = conf.getInitParameter("compression-mime-types");
+        }
+        if (conf.getInitParameter("response-cache-size") != null) {
+            try {
+                long cache_size = Long.parseLong(conf.getInitParameter("response-cache-size"));
+                if (cache_size > 0) {
+                    this.cache = new ResponseCache(cache_size);
+                }
+            } catch (NumberFormatException e) {
+                logger.warn("Invalid value for response-cache-size" + conf.getInitParameter("response-cache-size"), e);
+                // nothing
+            }
+        }
+        this.compressionTypes = new HashSet<String>();
+        for (String type : compression_types.split(",")) {
+            if (type.trim().length() > 0) {
+                this.compressionTypes.add(type.trim().toLowerCase(Locale.ENGLISH));
+            }
+        }
 
         try {
     		@SuppressWarnings("unchecked")
@@ -197,13 +322,26 @@ public class CalDAVServlet extends HttpServlet {
         mkcol = (MKCOL) addMethod("MKCOL", new MKCOL(this.store, this.resourceLocks));
         addMethod("OPTIONS", new OPTIONS(this.store, this.resourceLocks));
         addMethod("PUT", new PUT(this.store, this.resourceLocks, lazyFolderCreation));
-        addMethod("PROPFIND", new PROPFIND(this.store, this.resourceLocks, mimeType));
+        addMethod("PROPFIND", new PROPFIND(this.store, this.resourceLocks, mimeType, max_results));
         addMethod("PROPPATCH", new PROPPATCH(this.store, this.resourceLocks));
         addMethod("MKCALENDAR", new MKCALENDAR(this.store, this.resourceLocks, mkcol));
-        addMethod("REPORT", new REPORT(this.store, this.resourceLocks));
+        this.report = (REPORT) addMethod("REPORT", new REPORT(this.store, this.resourceLocks, report_threads,
+                max_results));
         addMethod("*", new NOT_IMPLEMENTED());
     }
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see javax.servlet.GenericServlet#destroy()
+     */
+    public void destroy() {
+        if (this.report != null) {
+            this.report.shutdown();
+        }
+        super.destroy();
+    }
+
     private CalDAVMethod addMethod(String method_name, CalDAVMethod method) {
         this.httpMethods.put(method_name, method);
         return method;
@@ -219,6 +357,15 @@ public class CalDAVServlet extends HttpServlet {
         String methodName = req.getMethod();
         CalDAVTransaction transaction = null;
         boolean rollback = false;
+        CompressedResponse compressed = null;
+        if (this.compression) {
+            String encoding = CompressedResponse.getAcceptedEncoding(req);
+            if (encoding != null) {
+                compressed = new CompressedResponse(resp, encoding, this.compressionThreshold,
+                        this.compressionLevel, this.compressionTypes);
+                resp = compressed;
+            }
+        }
 
         try {
             transaction = this.store.begin(CalDAVServlet.securityProvider.getUserPrincipal(req));
@@ -227,13 +374,41 @@ public class CalDAVServlet extends HttpServlet {
             resp.setStatus(CalDAVResponse.SC_OK);
 
             try {
+                String key = null;
+                long generation = 0;
+                ResponseCache.RecordedResponse recorded = null;
+                if (this.cache != null && ResponseCache.isCacheable(methodName)) {
+                    ResponseCache.CachedRequest cached = ResponseCache.readRequest(req);
+                    req = cached;
+                    key = ResponseCache.getKey(cached, transaction.getPrincipal(), this.store.getRootPath());
+                    if (key != null) {
+                        if (this.cache.send(key, resp)) {
+                            if (compressed != null) {
+                                compressed.finish();
+                            }
+                            this.store.commit(transaction);
+                            rollback = false;
+                            return;
+                        }
+                        generation = this.cache.getGeneration();
+                        recorded = this.cache.record(resp);
+                        resp = recorded;
+                    }
+                }
+
                 CalDAVMethod method = this.httpMethods.get(methodName);
                 if (method == null) {
                     method = this.httpMethods.get("*");
                 }
                 method.execute(transaction, req, resp);
+                if (compressed != null) {
+                    compressed.finish();
+                }
                 this.store.commit(transaction);
                 rollback = false;
+                if (recorded != null) {
+                    this.cache.put(key, ResponseCache.getPath(req), generation, recorded);
+                }
             } catch (IOException e) { 
             	logger.error("methodName=" + methodName, e);
                 resp.sendError(CalDAVResponse.SC_INTERNAL_SERVER_ERROR);
@@ -246,9 +421,19 @@ public class CalDAVServlet extends HttpServlet {
         	logger.error("methodName=" + methodName, e);
             throw new ServletException(e);
         } finally {
+            if (compressed != null) {
+                compressed.release();
+            }
             if (rollback) {
                 this.store.rollback(transaction);
             }
+            if (this.cache != null && !ResponseCache.isSafe(methodName)) {
+                if ("COPY".equals(methodName) || "MOVE".equals(methodName)) {
+                    this.cache.clear();
+                } else {
+                    this.cache.invalidate(ResponseCache.getPath(req));
+                }
+            }
         }
     }
     
@@ -0,0 +1,528 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ricardolorenzo.network.http.caldav;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Response that compresses the body with the <code>gzip</code> or <code>deflate</code> content
+ * coding accepted by the client.
+ *
+ * The first bytes of the body are kept until they reach the threshold. Smaller bodies, and the
+ * bodies with a content type out of the allowed ones, are sent as they are. Otherwise the body is
+ * compressed as it is written, so the multistatus responses are still streamed: every flush sends
+ * the compressed bytes produced so far.
+ *
+ * The <code>ETag</code> header is held until the coding of the body is known. A compressed body
+ * gets the ETag with the content coding appended, as <code>"etag-gzip"</code>, so the identity and
+ * the encoded representations never share a strong ETag. The responses that could be compressed
+ * always carry <code>Vary: Accept-Encoding</code>, including the ones without a body.
+ *
+ * The <code>Deflater</code> instances are kept by thread and reused by the next responses, instead
+ * of allocating the native compression buffers for every request.
+ *
+ * @author Ricardo Lorenzo
+ *
+ */
+public class CompressedResponse extends HttpServletResponseWrapper {
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+    private static final byte[] GZIP_HEADER = new byte[] { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0,
+            (byte) 0xff };
+    private static final ThreadLocal<Deflater> gzip_deflaters = new ThreadLocal<Deflater>();
+    private static final ThreadLocal<Deflater> zlib_deflaters = new ThreadLocal<Deflater>();
+
+    private String encoding;
+    private int threshold;
+    private int level;
+    private Set<String> types;
+    private CompressedOutputStream stream;
+    private PrintWriter writer;
+    private int contentLength;
+    private String eTag;
+
+    /**
+     * @param resp
+     *            Response
+     * @param encoding
+     *            Content coding, <code>CompressedResponse.GZIP</code> or
+     *            <code>CompressedResponse.DEFLATE</code>
+     * @param threshold
+     *            Minimum body size to compress, in bytes
+     * @param level
+     *            Compression level, from 0 to 9
+     * @param types
+     *            Content types to compress, without parameters
+     */
+    public CompressedResponse(HttpServletResponse resp, String encoding, int threshold, int level, Set<String> types) {
+        super(resp);
+        this.encoding = encoding;
+        this.threshold = Math.max(threshold, 0);
+        this.level = level;
+        this.types = types;
+        this.contentLength = -1;
+    }
+
+    /**
+     * Gets the content coding accepted by the request, from its <code>Accept-Encoding</code> header.
+     * <code>gzip</code> is preferred over <code>deflate</code> when both have the same quality.
+     *
+     * @param req
+     *            Request
+     * @return The content coding or <code>null</code> if the request does not accept any of them
+     */
+    public static String getAcceptedEncoding(HttpServletRequest req) {
+        String header = req.getHeader("Accept-Encoding");
+        if (header == null) {
+            return null;
+        }
+        float gzip = -1, deflate = -1, any = -1;
+        for (String coding : header.split(",")) {
+            float quality = 1;
+            int semicolon = coding.indexOf(';');
+            if (semicolon != -1) {
+                String parameter = coding.substring(semicolon + 1).trim();
+                coding = coding.substring(0, semicolon);
+                if (parameter.startsWith("q=")) {
+                    try {
+                        quality = Float.parseFloat(parameter.substring(2).trim());
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+            coding = coding.trim().toLowerCase(Locale.ENGLISH);
+            if (GZIP.equals(coding) || "x-gzip".equals(coding)) {
+                gzip = quality;
+            } else if (DEFLATE.equals(coding)) {
+                deflate = quality;
+            } else if ("*".equals(coding)) {
+                any = quality;
+            }
+        }
+        if (gzip < 0) {
+            gzip = any;
+        }
+        if (deflate < 0) {
+            deflate = any;
+        }
+        if (gzip > 0 && gzip >= deflate) {
+            return GZIP;
+        } else if (deflate > 0) {
+            return DEFLATE;
+        }
+        return null;
+    }
+
+    /**
+     * Gets the ETag of an encoded representation.
+     *
+     * @param eTag
+     *            ETag of the identity representation, including the quotes
+     * @param encoding
+     *            Content coding
+     * @return ETag with the content coding
+     */
+    public static String getETag(String eTag, String encoding) {
+        if (eTag == null || !eTag.endsWith("\"")) {
+            return eTag;
+        }
+        return eTag.substring(0, eTag.length() - 1) + "-" + encoding + "\"";
+    }
+
+    /**
+     * Gets the ETag of the identity representation from the ETag sent by a client, which may be
+     * the one of an encoded representation.
+     *
+     * @param eTag
+     *            ETag, as the <code>If-None-Match</code> header value
+     * @return ETag without content coding, or <code>null</code> if the value is <code>null</code>
+     */
+    public static String getIdentityETag(String eTag) {
+        if (eTag == null) {
+            return null;
+        }
+        for (String encoding : new String[] { GZIP, DEFLATE }) {
+            String suffix = "-" + encoding + "\"";
+            if (eTag.endsWith(suffix)) {
+                return eTag.substring(0, eTag.length() - suffix.length()) + "\"";
+            }
+        }
+        return eTag;
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+        if ("ETag".equalsIgnoreCase(name)) {
+            setETag(value);
+        } else {
+            super.setHeader(name, value);
+        }
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+        if ("ETag".equalsIgnoreCase(name)) {
+            setETag(value);
+        } else {
+            super.addHeader(name, value);
+        }
+    }
+
+    @Override
+    public boolean containsHeader(String name) {
+        if ("ETag".equalsIgnoreCase(name) && this.eTag != null) {
+            return true;
+        }
+        return super.containsHeader(name);
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+        if (this.writer != null) {
+            throw new IllegalStateException("getWriter() has already been called");
+        }
+        if (this.stream == null) {
+            this.stream = new CompressedOutputStream();
+        }
+        return this.stream;
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+        if (this.writer == null) {
+            if (this.stream != null) {
+                throw new IllegalStateException("getOutputStream() has already been called");
+            }
+            this.stream = new CompressedOutputStream();
+            String charset = getCharacterEncoding();
+            this.writer = new PrintWriter(new OutputStreamWriter(this.stream, charset != null ? charset
+                    : "ISO-8859-1"));
+        }
+        return this.writer;
+    }
+
+    @Override
+    public void setContentLength(int len) {
+        if (this.stream != null && this.stream.mode == CompressedOutputStream.PLAIN) {
+            super.setContentLength(len);
+        } else {
+            this.contentLength = len;
+        }
+    }
+
+    @Override
+    public void flushBuffer() throws IOException {
+        if (this.writer != null) {
+            this.writer.flush();
+        } else if (this.stream != null) {
+            this.stream.flush();
+        }
+        super.flushBuffer();
+    }
+
+    @Override
+    public void resetBuffer() {
+        if (this.stream != null && this.stream.mode == CompressedOutputStream.BUFFER) {
+            this.stream.count = 0;
+        }
+        super.resetBuffer();
+    }
+
+    @Override
+    public void reset() {
+        resetBuffer();
+        this.contentLength = -1;
+        this.eTag = null;
+        super.reset();
+    }
+
+    @Override
+    public void sendError(int sc) throws IOException {
+        discard();
+        super.sendError(sc);
+    }
+
+    @Override
+    public void sendError(int sc, String msg) throws IOException {
+        discard();
+        super.sendError(sc, msg);
+    }
+
+    @Override
+    public void sendRedirect(String location) throws IOException {
+        discard();
+        super.sendRedirect(location);
+    }
+
+    /**
+     * Writes the rest of the body. The response must be finished after the method execution, even
+     * if the output was not closed.
+     */
+    public void finish() throws IOException {
+        if (this.writer != null) {
+            this.writer.flush();
+        }
+        if (this.stream != null) {
+            this.stream.finish();
+        } else {
+            /*
+             * Without body, as a 304 response, the headers are the ones of the representation the
+             * client would get
+             */
+            if (isCompressible()) {
+                addHeader("Vary", "Accept-Encoding");
+                setETagHeader(true);
+            } else {
+                setETagHeader(false);
+            }
+            if (this.contentLength >= 0) {
+                super.setContentLength(this.contentLength);
+            }
+        }
+    }
+
+    /**
+     * Ends the <code>Deflater</code> of a response that was not finished, as when the method
+     * failed. Its state is unknown, so it is not reused. Must be called once the request has been
+     * served.
+     */
+    public void release() {
+        if (this.stream != null && this.stream.deflater != null) {
+            this.stream.deflater.end();
+            this.stream.deflater = null;
+        }
+    }
+
+    /*
+     * Held until the coding is known, or sent now if the body is already being written
+     */
+    private void setETag(String value) {
+        this.eTag = value;
+        if (this.stream != null && this.stream.mode != CompressedOutputStream.BUFFER) {
+            setETagHeader(this.stream.mode == CompressedOutputStream.COMPRESS);
+        }
+    }
+
+    private void setETagHeader(boolean encoded) {
+        if (this.eTag != null) {
+            super.setHeader("ETag", encoded ? getETag(this.eTag, this.encoding) : this.eTag);
+            this.eTag = null;
+        }
+    }
+
+    /*
+     * The container writes the error body, the buffered bytes are dropped
+     */
+    private void discard() {
+        if (this.stream != null && this.stream.mode == CompressedOutputStream.BUFFER) {
+            this.stream.count = 0;
+            this.stream.mode = CompressedOutputStream.CLOSED;
+        }
+    }
+
+    private boolean isCompressible() {
+        String type = getContentType();
+        if (type == null || this.types == null) {
+            return false;
+        }
+        int semicolon = type.indexOf(';');
+        if (semicolon != -1) {
+            type = type.substring(0, semicolon);
+        }
+        return this.types.contains(type.trim().toLowerCase(Locale.ENGLISH));
+    }
+
+    private static Deflater takeDeflater(boolean gzip, int level) {
+        ThreadLocal<Deflater> deflaters = gzip ? gzip_deflaters : zlib_deflaters;
+        Deflater deflater = deflaters.get();
+        if (deflater == null) {
+            return new Deflater(level, gzip);
+        }
+        /*
+         * Removed while in use, a response written by the same thread gets another one
+         */
+        deflaters.set(null);
+        deflater.setLevel(level);
+        return deflater;
+    }
+
+    private static void releaseDeflater(boolean gzip, Deflater deflater) {
+        deflater.reset();
+        (gzip ? gzip_deflaters : zlib_deflaters).set(deflater);
+    }
+
+    private class CompressedOutputStream extends ServletOutputStream {
+        static final int BUFFER = 0;
+        static final int PLAIN = 1;
+        static final int COMPRESS = 2;
+        static final int CLOSED = 3;
+
+        int mode;
+        int count;
+        private byte[] buffer;
+        private byte[] output;
+        private ServletOutputStream os;
+        Deflater deflater;
+        private CRC32 crc;
+        private boolean gzip;
+
+        CompressedOutputStream() {
+            this.mode = BUFFER;
+            this.buffer = new byte[Math.max(CompressedResponse.this.threshold, 1)];
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            switch (this.mode) {
+                case BUFFER:
+                    if (this.count + len < this.buffer.length) {
+                        System.arraycopy(b, off, this.buffer, this.count, len);
+                        this.count += len;
+                        return;
+                    }
+                    if (isCompressible()) {
+                        startCompression();
+                    } else {
+                        startPlain();
+                    }
+                    write(b, off, len);
+                    break;
+                case PLAIN:
+                    this.os.write(b, off, len);
+                    break;
+                case COMPRESS:
+                    if (this.crc != null) {
+                        this.crc.update(b, off, len);
+                    }
+                    this.deflater.setInput(b, off, len);
+                    while (!this.deflater.needsInput()) {
+                        deflate();
+                    }
+                    break;
+                default:
+                    throw new IOException("stream closed");
+            }
+        }
+
+        /*
+         * The bytes waiting on the deflater stay there until it fills its block, the
+         * flush sends the compressed bytes already produced
+         */
+        @Override
+        public void flush() throws IOException {
+            if (this.mode == PLAIN || this.mode == COMPRESS) {
+                this.os.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (this.mode != CLOSED) {
+                finish();
+                this.os.close();
+            }
+        }
+
+        void finish() throws IOException {
+            switch (this.mode) {
+                case BUFFER:
+                    if (CompressedResponse.this.contentLength < 0) {
+                        CompressedResponse.this.contentLength = this.count;
+                    }
+                    startPlain();
+                    break;
+                case COMPRESS:
+                    this.deflater.finish();
+                    while (!this.deflater.finished()) {
+                        deflate();
+                    }
+                    if (this.crc != null) {
+                        writeInt((int) this.crc.getValue());
+                        writeInt(this.deflater.getTotalIn());
+                    }
+                    releaseDeflater(this.gzip, this.deflater);
+                    this.deflater = null;
+                    break;
+                default:
+                    return;
+            }
+            this.os.flush();
+            this.mode = CLOSED;
+        }
+
+        private void startPlain() throws IOException {
+            if (isCompressible()) {
+                addHeader("Vary", "Accept-Encoding");
+            }
+            setETagHeader(false);
+            if (CompressedResponse.this.contentLength >= 0) {
+                CompressedResponse.super.setContentLength(CompressedResponse.this.contentLength);
+            }
+            this.os = getResponse().getOutputStream();
+            this.mode = PLAIN;
+            this.os.write(this.buffer, 0, this.count);
+            this.buffer = null;
+        }
+
+        private void startCompression() throws IOException {
+            this.gzip = GZIP.equals(CompressedResponse.this.encoding);
+            setHeader("Content-Encoding", CompressedResponse.this.encoding);
+            addHeader("Vary", "Accept-Encoding");
+            setETagHeader(true);
+            this.os = getResponse().getOutputStream();
+            this.deflater = takeDeflater(this.gzip, CompressedResponse.this.level);
+            this.output = new byte[8192];
+            if (this.gzip) {
+                this.crc = new CRC32();
+                this.os.write(GZIP_HEADER);
+            }
+            this.mode = COMPRESS;
+            byte[] buffered = this.buffer;
+            this.buffer = null;
+            write(buffered, 0, this.count);
+        }
+
+        private void deflate() throws IOException {
+            int length = this.deflater.deflate(this.output, 0, this.output.length);
+            if (length > 0) {
+                this.os.write(this.output, 0, length);
+            }
+        }
+
+        private void writeInt(int value) throws IOException {
+            this.os.write(value & 0xff);
+            this.os.write((value >> 8) & 0xff);
+            this.os.write((value >> 16) & 0xff);
+            this.os.write((value >> 24) & 0xff);
+        }
+    }
+}
@@ -0,0 +1,485 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ricardolorenzo.network.http.caldav;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.SequenceInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Principal;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import com.ricardolorenzo.network.http.caldav.store.CollectionRevision;
+
+/**
+ * Cache of the <code>PROPFIND</code> and <code>REPORT</code> multistatus responses.
+ *
+ * The responses are keyed by the principal, the method, the path, the <code>Depth</code>,
+ * <code>CalDAV-Timezones</code>, <code>Brief</code> and <code>Prefer</code> headers, the revision
+ * of the target collection and a digest of the request body with the whitespace between elements
+ * removed. A repeated request is answered
+ * with the stored bytes, without access control, store access or XML generation.
+ *
+ * Every request that can change the resources, their properties, locks or access control removes
+ * the responses of its path, its ancestors and its descendants. The total size of the stored
+ * bodies is bounded, the least recently used responses are removed first.
+ *
+ * @author Ricardo Lorenzo
+ *
+ */
+public class ResponseCache {
+    private static final int MAX_REQUEST_BODY = 65536;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private long capacity;
+    private long size;
+    private long generation;
+    private LinkedHashMap<String, CachedResponse> responses;
+
+    /**
+     * @param capacity
+     *            Maximum size of the stored bodies, in bytes
+     */
+    public ResponseCache(long capacity) {
+        this.capacity = capacity;
+        this.responses = new LinkedHashMap<String, CachedResponse>(64, 0.75f, true);
+    }
+
+    /**
+     * Verify if the responses of the method can be stored.
+     *
+     * @param method
+     *            HTTP method
+     */
+    public static boolean isCacheable(String method) {
+        return "PROPFIND".equals(method) || "REPORT".equals(method);
+    }
+
+    /**
+     * Verify if the method does not change the resources, their properties, locks or access
+     * control.
+     *
+     * @param method
+     *            HTTP method
+     */
+    public static boolean isSafe(String method) {
+        return "GET".equals(method) || "HEAD".equals(method) || "OPTIONS".equals(method)
+                || isCacheable(method);
+    }
+
+    /**
+     * Reads the request body, up to a limit, so it can be part of the key and read again by the
+     * method.
+     *
+     * @param req
+     *            Request
+     * @return Request with the body read
+     */
+    public static CachedRequest readRequest(HttpServletRequest req) throws IOException {
+        return new CachedRequest(req);
+    }
+
+    /**
+     * Gets the key of a request.
+     *
+     * @param req
+     *            Request with the body read
+     * @param principal
+     *            Authenticated principal
+     * @param root
+     *            Root path of the store
+     * @return The key or <code>null</code> if the request can not be cached
+     */
+    public static String getKey(CachedRequest req, Principal principal, String root) {
+        if (req.body == null) {
+            return null;
+        }
+        String path = getPath(req);
+        StringBuilder _sb = new StringBuilder();
+        _sb.append(principal != null ? principal.getName() : "");
+        _sb.append('\n');
+        _sb.append(req.getMethod());
+        _sb.append('\n');
+        _sb.append(path);
+        _sb.append('\n');
+        _sb.append(req.getHeader("Depth"));
+        _sb.append('\n');
+        _sb.append(req.getHeader("CalDAV-Timezones"));
+        _sb.append('\n');
+        _sb.append(req.getHeader("Brief"));
+        _sb.append('\n');
+        for (Enumeration<?> e = req.getHeaders("Prefer"); e != null && e.hasMoreElements();) {
+            _sb.append(e.nextElement());
+            _sb.append(',');
+        }
+        _sb.append('\n');
+        _sb.append(getRevision(root, path));
+        _sb.append('\n');
+        _sb.append(getDigest(req.body));
+        return _sb.toString();
+    }
+
+    /**
+     * Gets the path of a request, without the trailing slash.
+     *
+     * @param req
+     *            Request
+     * @return Path
+     */
+    public static String getPath(HttpServletRequest req) {
+        String path = req.getPathInfo();
+        if (path == null || path.length() == 0) {
+            return "/";
+        }
+        while (path.length() > 1 && path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        return path;
+    }
+
+    /**
+     * Gets the generation of the cache. It changes every time a response is removed because its
+     * resources changed.
+     *
+     * @return Generation
+     */
+    public synchronized long getGeneration() {
+        return this.generation;
+    }
+
+    /**
+     * Sends a stored response.
+     *
+     * @param key
+     *            Request key
+     * @param resp
+     *            Response
+     * @return <code>true</code> if the response was stored and has been sent
+     */
+    public boolean send(String key, HttpServletResponse resp) throws IOException {
+        CachedResponse response;
+        synchronized (this) {
+            response = this.responses.get(key);
+        }
+        if (response == null) {
+            return false;
+        }
+        resp.setStatus(response.status);
+        resp.setContentType(response.contentType);
+        resp.setContentLength(response.body.length);
+        ServletOutputStream os = resp.getOutputStream();
+        os.write(response.body);
+        os.flush();
+        return true;
+    }
+
+    /**
+     * Creates a response that keeps a copy of the body written.
+     *
+     * @param resp
+     *            Response
+     * @return The recording response
+     */
+    public RecordedResponse record(HttpServletResponse resp) {
+        return new RecordedResponse(resp, (int) Math.min(Integer.MAX_VALUE, this.capacity / 4));
+    }
+
+    /**
+     * Stores a recorded multistatus response.
+     *
+     * @param key
+     *            Request key
+     * @param path
+     *            Request path
+     * @param generation
+     *            Generation of the cache when the request started, the response is not stored if
+     *            any resource changed after it
+     * @param resp
+     *            Recorded response
+     */
+    public synchronized void put(String key, String path, long generation, RecordedResponse resp) {
+        if (generation != this.generation || !resp.isComplete()
+                || resp.status != CalDAVResponse.SC_MULTI_STATUS) {
+            return;
+        }
+        CachedResponse response = new CachedResponse(path, resp.status, resp.getContentType(), resp.body
+                .toByteArray());
+        CachedResponse previous = this.responses.put(key, response);
+        if (previous != null) {
+            this.size -= previous.body.length;
+        }
+        this.size += response.body.length;
+        for (Iterator<CachedResponse> it = this.responses.values().iterator(); this.size > this.capacity
+                && it.hasNext();) {
+            this.size -= it.next().body.length;
+            it.remove();
+        }
+    }
+
+    /**
+     * Removes the responses of a path, its ancestors and its descendants.
+     *
+     * @param path
+     *            Changed path
+     */
+    public synchronized void invalidate(String path) {
+        this.generation++;
+        for (Iterator<CachedResponse> it = this.responses.values().iterator(); it.hasNext();) {
+            CachedResponse response = it.next();
+            if (isAncestor(response.path, path) || isAncestor(path, response.path)) {
+                this.size -= response.body.length;
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Removes all the responses.
+     */
+    public synchronized void clear() {
+        this.generation++;
+        this.responses.clear();
+        this.size = 0;
+    }
+
+    private static boolean isAncestor(String ancestor, String path) {
+        if (!path.startsWith(ancestor)) {
+            return false;
+        }
+        return path.length() == ancestor.length() || ancestor.endsWith("/")
+                || path.charAt(ancestor.length()) == '/';
+    }
+
+    /*
+     * Revision of the calendar collection of the path, so the changes of the collection made
+     * without a request also change the key
+     */
+    private static long getRevision(String root, String path) {
+        File directory = new File(root + path);
+        if (path.endsWith(".ics")) {
+            directory = directory.getParentFile();
+        }
+        File vcalendar_file = new File(directory, "calendar.ics");
+        if (vcalendar_file.exists()) {
+            return CollectionRevision.getRevision(vcalendar_file);
+        }
+        return 0;
+    }
+
+    private static String getDigest(byte[] body) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        /*
+         * The whitespace between elements is not part of the request. The whitespace after an
+         * element that is followed by text belongs to the text.
+         */
+        int whitespace = -1;
+        for (int i = 0; i < body.length; i++) {
+            byte b = body[i];
+            if (whitespace >= 0) {
+                if (b == ' ' || b == '\t' || b == '\r' || b == '\n') {
+                    continue;
+                }
+                if (b != '<') {
+                    md.update(body, whitespace, i - whitespace);
+                }
+                whitespace = -1;
+            }
+            md.update(b);
+            if (b == '>') {
+                whitespace = i + 1;
+            }
+        }
+        byte[] digest = md.digest();
+        char[] hex = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            hex[i * 2] = HEX[(digest[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX[digest[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    private static class CachedResponse {
+        private String path;
+        private int status;
+        private String contentType;
+        private byte[] body;
+
+        CachedResponse(String path, int status, String contentType, byte[] body) {
+            this.path = path;
+            this.status = status;
+            this.contentType = contentType;
+            this.body = body;
+        }
+    }
+
+    /**
+     * Request with the body read. Bodies larger than the limit are not kept, the method reads the
+     * part already read and then the rest of the original body.
+     */
+    public static class CachedRequest extends HttpServletRequestWrapper {
+        private byte[] body;
+        private ServletInputStream stream;
+
+        CachedRequest(HttpServletRequest req) throws IOException {
+            super(req);
+            InputStream is = req.getInputStream();
+            ByteArrayOutputStream read = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int length = 0;
+            while (read.size() <= MAX_REQUEST_BODY && (length = is.read(buffer)) != -1) {
+                read.write(buffer, 0, length);
+            }
+            if (length == -1) {
+                this.body = read.toByteArray();
+                this.stream = new BodyInputStream(new ByteArrayInputStream(this.body));
+            } else {
+                this.stream = new BodyInputStream(new SequenceInputStream(new ByteArrayInputStream(read
+                        .toByteArray()), is));
+            }
+        }
+
+        @Override
+        public int getContentLength() {
+            if (this.body != null) {
+                return this.body.length;
+            }
+            return super.getContentLength();
+        }
+
+        @Override
+        public ServletInputStream getInputStream() {
+            return this.stream;
+        }
+    }
+
+    private static class BodyInputStream extends ServletInputStream {
+        private InputStream is;
+
+        BodyInputStream(InputStream is) {
+            this.is = is;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return this.is.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return this.is.read(b, off, len);
+        }
+    }
+
+    /**
+     * Response that keeps a copy of the body, up to a limit. The responses with errors, or with
+     * the body written by a writer, are not complete.
+     */
+    public static class RecordedResponse extends HttpServletResponseWrapper {
+        private int status;
+        private int limit;
+        private boolean error;
+        private ByteArrayOutputStream body;
+        private ServletOutputStream stream;
+
+        RecordedResponse(HttpServletResponse resp, int limit) {
+            super(resp);
+            this.status = SC_OK;
+            this.limit = limit;
+            this.body = new ByteArrayOutputStream();
+        }
+
+        boolean isComplete() {
+            return !this.error && this.body.size() <= this.limit;
+        }
+
+        @Override
+        public void setStatus(int sc) {
+            this.status = sc;
+            super.setStatus(sc);
+        }
+
+        @Override
+        public void sendError(int sc) throws IOException {
+            this.error = true;
+            super.sendError(sc);
+        }
+
+        @Override
+        public void sendError(int sc, String msg) throws IOException {
+            this.error = true;
+            super.sendError(sc, msg);
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            this.error = true;
+            return super.getWriter();
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            if (this.stream == null) {
+                final ServletOutputStream os = super.getOutputStream();
+                this.stream = new ServletOutputStream() {
+                    @Override
+                    public void write(int b) throws IOException {
+                        os.write(b);
+                        if (RecordedResponse.this.body.size() <= RecordedResponse.this.limit) {
+                            RecordedResponse.this.body.write(b);
+                        }
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        os.write(b, off, len);
+                        if (RecordedResponse.this.body.size() <= RecordedResponse.this.limit) {
+                            RecordedResponse.this.body.write(b, off, len);
+                        }
+                    }
+
+                    @Override
+                    public void flush() throws IOException {
+                        os.flush();
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        os.close();
+                    }
+                };
+            }
+            return this.stream;
+        }
+    }
+}
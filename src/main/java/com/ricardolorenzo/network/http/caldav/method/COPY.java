@@ -14,6 +14,7 @@
  */
 package com.ricardolorenzo.network.http.caldav.method;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URLDecoder;
 import java.util.HashMap;
@@ -25,6 +26,8 @@ import javax.servlet.http.HttpServletResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.ricardolorenzo.file.lock.FileLockException;
+import com.ricardolorenzo.icalendar.VCalendarException;
 import com.ricardolorenzo.network.http.caldav.AccessDeniedException;
 import com.ricardolorenzo.network.http.caldav.CalDAVException;
 import com.ricardolorenzo.network.http.caldav.CalDAVResponse;
@@ -37,7 +40,11 @@ import com.ricardolorenzo.network.http.caldav.security.acl.CalDAVPrivilegeCollec
 import com.ricardolorenzo.network.http.caldav.security.acl.CalDAVResourceACL;
 import com.ricardolorenzo.network.http.caldav.session.CalDAVTransaction;
 import com.ricardolorenzo.network.http.caldav.store.CalDAVStore;
+import com.ricardolorenzo.network.http.caldav.store.CollectionRevision;
+import com.ricardolorenzo.network.http.caldav.store.HomeUIDIndex;
 import com.ricardolorenzo.network.http.caldav.store.StoredObject;
+import com.ricardolorenzo.network.http.caldav.store.VActionEntry;
+import com.ricardolorenzo.network.http.caldav.store.VCalendarIndex;
 
 public class COPY extends CalDAVAbstractMethod {
 	private final Logger logger = LoggerFactory.getLogger(getClass());
@@ -245,6 +252,12 @@ public class COPY extends CalDAVAbstractMethod {
                 errorList = new HashMap<String, Integer>();
                 destinationSo = this._store.getStoredObject(transaction, destinationPath);
 
+                String _conflict = findUIDConflict(path, destinationPath);
+                if (_conflict != null) {
+                    sendPreconditionError(resp, CalDAVResponse.SC_FORBIDDEN, "C:no-uid-conflict", _conflict);
+                    return false;
+                }
+
                 if (overwrite) {
                     if (destinationSo != null) {
                         resource.getPrivilegeCollection().checkPrincipalPrivilege(CalDAVServlet.securityProvider.getUserPrincipal(req), "write");
@@ -264,6 +277,21 @@ public class COPY extends CalDAVAbstractMethod {
                 copy(transaction, path, destinationPath, errorList, req, resp);
                 resource.setPrivilegeCollection(transaction, collection);
 
+                File _f = new File(this._store.getRootPath() + getCleanPath(destinationPath) + "/calendar.ics");
+                if (_f.exists()) {
+                    CollectionRevision.increment(_f);
+                    try {
+                        HomeUIDIndex _home = HomeUIDIndex.getIndex(_f);
+                        _home.putCollection(HomeUIDIndex.getCollectionName(_f), VCalendarIndex.getIndex(_f)
+                                .getEntries());
+                        _home.commit();
+                    } catch (VCalendarException e) {
+                    	logger.error("copy", e);
+                    } catch (FileLockException e) {
+                    	logger.error("copy", e);
+                    }
+                }
+
                 if (!errorList.isEmpty()) {
                     sendReport(req, resp, errorList);
                 }
@@ -277,6 +305,34 @@ public class COPY extends CalDAVAbstractMethod {
         return true;
     }
 
+    /*
+     * The UIDs must be unique in the calendar home, a calendar cannot be copied next to another
+     * calendar that already has its objects, including the source calendar itself
+     */
+    private String findUIDConflict(String path, String destinationPath) throws IOException {
+        File _source = new File(this._store.getRootPath() + getCleanPath(path) + "/calendar.ics");
+        if (!_source.exists()) {
+            return null;
+        }
+        File _f = new File(this._store.getRootPath() + getCleanPath(destinationPath) + "/calendar.ics");
+        HomeUIDIndex _home = HomeUIDIndex.getIndex(_f);
+        String _collection = HomeUIDIndex.getCollectionName(_f);
+        try {
+            for (VActionEntry entry : VCalendarIndex.getIndex(_source).getEntries()) {
+                String _other = _home.findCollection(entry.getUid());
+                if (_other != null && !_other.equals(_collection)) {
+                    return "/caldav" + getParentPath(getCleanPath(destinationPath)) + "/" + _other + "/"
+                            + entry.getUid() + ".ics";
+                }
+            }
+        } catch (VCalendarException e) {
+            logger.error("copy", e);
+        } catch (FileLockException e) {
+            logger.error("copy", e);
+        }
+        return null;
+    }
+
     public void execute(CalDAVTransaction transaction, HttpServletRequest req, HttpServletResponse resp)
             throws IOException, LockException {
         String path = getRelativePath(req);
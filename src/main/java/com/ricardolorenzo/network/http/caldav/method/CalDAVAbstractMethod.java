@@ -14,16 +14,15 @@
  */
 package com.ricardolorenzo.network.http.caldav.method;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
 import java.net.URLEncoder;
-import java.text.SimpleDateFormat;
+import java.util.Collection;
 import java.util.HashMap;
-import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.TimeZone;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -33,27 +32,19 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.ricardolorenzo.file.xml.XMLWriter;
-import com.ricardolorenzo.icalendar.VAction;
 import com.ricardolorenzo.network.http.caldav.CalDAVMethod;
 import com.ricardolorenzo.network.http.caldav.CalDAVResponse;
 import com.ricardolorenzo.network.http.caldav.locking.LockException;
 import com.ricardolorenzo.network.http.caldav.locking.LockedObject;
 import com.ricardolorenzo.network.http.caldav.locking.ResourceLocks;
 import com.ricardolorenzo.network.http.caldav.session.CalDAVTransaction;
+import com.ricardolorenzo.network.http.caldav.store.CollectionRevision;
 import com.ricardolorenzo.network.http.caldav.store.StoredObject;
+import com.ricardolorenzo.network.http.caldav.xml.MultiStatusWriter;
 
 public abstract class CalDAVAbstractMethod implements CalDAVMethod {
 	private final Logger logger = LoggerFactory.getLogger(getClass());
     protected static final int INFINITY = 3;
-    protected static final SimpleDateFormat CREATION_DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
-    protected static final SimpleDateFormat LAST_MODIFIED_DATE_FORMAT = new SimpleDateFormat(
-            "EEE, dd MMM yyyy HH:mm:ss z", Locale.US);
-
-    static {
-        CREATION_DATE_FORMAT.setTimeZone(TimeZone.getTimeZone("GMT"));
-        LAST_MODIFIED_DATE_FORMAT.setTimeZone(TimeZone.getTimeZone("GMT"));
-    }
-
     protected static int BUF_SIZE = 65536;
     protected static final int DEFAULT_TIMEOUT = 3600;
     protected static final int MAX_TIMEOUT = 604800;
@@ -129,6 +120,19 @@ public abstract class CalDAVAbstractMethod implements CalDAVMethod {
         return depth;
     }
 
+    /**
+     * Verify if the <code>VTIMEZONE</code> components must be sent with the calendar data. The
+     * clients that get the time zones by reference send <code>CalDAV-Timezones: F</code> (RFC
+     * 7809).
+     * 
+     * @param req
+     * @return <code>false</code> if the time zones must be left out
+     */
+    protected boolean isTimeZonesIncluded(HttpServletRequest req) {
+        String timezones = req.getHeader("CalDAV-Timezones");
+        return timezones == null || !"F".equalsIgnoreCase(timezones.trim());
+    }
+
     /**
      * URL rewriter.
      * 
@@ -163,43 +167,14 @@ public abstract class CalDAVAbstractMethod implements CalDAVMethod {
     }
 
     /**
-     * Get the ETag associated with a file.
-     * 
-     * @param StoredObject
-     *            StoredObject to get resourceLength, lastModified and a hashCode of StoredObject
-     * @return the ETag
-     */
-    protected String getETag(VAction va) {
-        StringBuilder _sb = new StringBuilder();
-        _sb.append("\"");
-        if (va != null && va.hasLastModified()) {
-            _sb.append(va.toString().length());
-            _sb.append("-");
-            _sb.append(va.getLastModified().getTimeInMillis());
-        } else {
-            _sb.append("0000-0000000000000000");
-        }
-        _sb.append("\"");
-        return _sb.toString();
-    }
-
-    /**
-     * Get the CTag associated with a file.
+     * Get the CTag associated with a calendar collection.
      * 
-     * @param StoredObject
-     *            StoredObject to get resourceLength, lastModified and a hashCode of StoredObject
+     * @param vcalendar_file
+     *            The <code>calendar.ics</code> file of the collection
      * @return the CTag
      */
-    protected String getCTag(StoredObject so) {
-        StringBuilder _sb = new StringBuilder();
-        if (so != null && so.isResource()) {
-            _sb.append(so.getResourceLength());
-            _sb.append("-");
-            _sb.append(so.getLastModified().getTime());
-        } else {
-            _sb.append("0000-0000000000000000");
-        }
-        return _sb.toString();
+    protected String getCTag(File vcalendar_file) {
+        return String.valueOf(CollectionRevision.getRevision(vcalendar_file));
     }
 
     protected String[] getLockIdFromIfHeader(HttpServletRequest req) {
@@ -342,7 +317,7 @@ public abstract class CalDAVAbstractMethod implements CalDAVMethod {
                 XML.setTextContent(errorPath);
                 XML.closeElement();
                 XML.addChildElement("D:status");
-                XML.setTextContent("HTTP/1.1 " + errorCode + " " + CalDAVResponse.getStatusText(errorCode));
+                XML.setTextContent(CalDAVResponse.getStatusLine(errorCode));
                 XML.closeElement();
 
                 XML.closeElement();
@@ -359,6 +334,90 @@ public abstract class CalDAVAbstractMethod implements CalDAVMethod {
         }
     }
 
+    /**
+     * Sends a precondition or postcondition error (RFC 4791 1.3).
+     * 
+     * @param response
+     *            Servlet response
+     * @param status
+     *            HTTP status
+     * @param condition
+     *            Condition element, as <code>C:no-uid-conflict</code>
+     * @param href
+     *            Resource the condition refers to, or <code>null</code>
+     */
+    protected void sendPreconditionError(HttpServletResponse response, int status, String condition, String href)
+            throws IOException {
+        response.setStatus(status);
+        response.setContentType("application/xml; charset=UTF-8");
+        try {
+            XMLWriter XML = new XMLWriter();
+            XML.setNameSpace("DAV:", "D");
+            XML.setNameSpace("urn:ietf:params:xml:ns:caldav", "C");
+
+            XML.addChildElement("D:error");
+            XML.addChildElement(condition);
+
+            if (href != null) {
+                XML.addChildElement("D:href");
+                XML.setTextContent(href);
+                XML.closeElement();
+            }
+
+            XML.closeElement();
+            XML.closeElement();
+
+            Writer writer = response.getWriter();
+            writer.write(XML.toString());
+            writer.close();
+        } catch (ParserConfigurationException e) {
+        	logger.error("parse", e);
+            // nothing
+        }
+    }
+
+    /**
+     * Adds the response of a result truncated by a limit (RFC 5323 5.17), with the
+     * <code>D:number-of-matches-within-limits</code> condition.
+     * 
+     * @param XML
+     *            Multistatus writer, on the <code>D:multistatus</code> element
+     * @param href
+     *            Request URI
+     * @param count
+     *            Number of responses sent
+     */
+    protected void printTruncated(MultiStatusWriter XML, String href, int count) {
+        XML.addChildElement("D:response");
+        XML.addProperty("D:href", href);
+        XML.addProperty("D:status", CalDAVResponse.getStatusLine(CalDAVResponse.SC_INSUFFICIENT_STORAGE));
+        XML.addChildElement("D:error");
+        XML.addProperty("D:number-of-matches-within-limits");
+        XML.closeElement();
+        XML.addProperty("D:responsedescription", "Only " + count + " matching records were returned");
+        XML.closeElement();
+    }
+
+    /**
+     * Prints a response with the status of resources that could not be evaluated, as a failed
+     * calendar of a calendar home query.
+     *
+     * @param XML
+     *            Multistatus response
+     * @param hrefs
+     *            Resources the status refers to
+     * @param status
+     *            HTTP status
+     */
+    protected void printStatus(MultiStatusWriter XML, Collection<String> hrefs, int status) {
+        XML.addChildElement("D:response");
+        for (String href : hrefs) {
+            XML.addProperty("D:href", href);
+        }
+        XML.addProperty("D:status", CalDAVResponse.getStatusLine(status));
+        XML.closeElement();
+    }
+
     protected void sendPrivilegeError(HttpServletResponse response, String uri, String privilege) throws IOException {
         response.setStatus(CalDAVResponse.SC_FORBIDDEN);
 
@@ -14,10 +14,10 @@
  */
 package com.ricardolorenzo.network.http.caldav.method;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -42,8 +42,13 @@ import com.ricardolorenzo.network.http.caldav.locking.ResourceLocksMap;
 import com.ricardolorenzo.network.http.caldav.security.acl.CalDAVResourceACL;
 import com.ricardolorenzo.network.http.caldav.session.CalDAVTransaction;
 import com.ricardolorenzo.network.http.caldav.store.CalDAVStore;
+import com.ricardolorenzo.network.http.caldav.store.CollectionRevision;
+import com.ricardolorenzo.network.http.caldav.store.HomeUIDIndex;
+import com.ricardolorenzo.network.http.caldav.store.SeriesIndex;
 import com.ricardolorenzo.network.http.caldav.store.StoredObject;
 import com.ricardolorenzo.network.http.caldav.store.VCalendarCache;
+import com.ricardolorenzo.network.http.caldav.store.VCalendarIndex;
+import com.ricardolorenzo.network.http.caldav.store.VCalendarWriter;
 
 public class DELETE extends CalDAVAbstractMethod {
 	private final Logger logger = LoggerFactory.getLogger(getClass());
@@ -109,12 +114,27 @@ public class DELETE extends CalDAVAbstractMethod {
                                 "write");
 
                         File _f = new File(this._store.getRootPath() + href);
+                        if (!VCalendarIndex.mightContain(_f, uid)) {
+                            resp.sendError(CalDAVResponse.SC_NOT_FOUND, req.getRequestURI());
+                            return;
+                        }
+                        VCalendarIndex _index = VCalendarIndex.getIndex(_f);
+                        if (_index.getEntry(uid) == null) {
+                            resp.sendError(CalDAVResponse.SC_NOT_FOUND, req.getRequestURI());
+                            return;
+                        }
+                        SeriesIndex _series = SeriesIndex.getIndex(_f);
                         VCalendar _vc = VCalendarCache.getVCalendar(_f);
                         _vc.removeVevent(uid);
                         _vc.removeVtodo(uid);
                         VCalendarCache.putVCalendar(_vc, _f);
-                        this._store.setResourceContent(transaction, href, new ByteArrayInputStream(_vc.toString()
-                                .getBytes()), "text/calendar", null);
+                        VCalendarWriter.write(_vc, this._store, transaction, href);
+                        _index.removeVAction(uid);
+                        _series.update(Collections.singletonMap(uid, Collections.<String> emptyList()),
+                                _index.commit());
+                        HomeUIDIndex _home = HomeUIDIndex.getIndex(_f);
+                        _home.remove(uid, HomeUIDIndex.getCollectionName(_f));
+                        _home.commit();
                         resp.setStatus(CalDAVResponse.SC_NO_CONTENT);
                     } else {
                         deleteResource(transaction, path, errorList, req, resp);
@@ -177,8 +197,19 @@ public class DELETE extends CalDAVAbstractMethod {
                 this.resource_acl.removeCollection(transaction);
             } else {
                 if (so.isFolder()) {
+                    File _directory = new File(this._store.getRootPath() + path);
+                    File _f = new File(_directory, "calendar.ics");
+                    boolean calendar = _f.exists();
                     deleteFolder(transaction, path, errorList, req, resp);
                     this._store.removeObject(transaction, path);
+                    CollectionRevision.remove(_directory);
+                    VCalendarIndex.remove(_directory);
+                    SeriesIndex.remove(_directory);
+                    if (calendar) {
+                        HomeUIDIndex _home = HomeUIDIndex.getIndex(_f);
+                        _home.removeCollection(_directory.getName());
+                        _home.commit();
+                    }
                 } else {
                     resp.sendError(CalDAVResponse.SC_NOT_FOUND);
                 }
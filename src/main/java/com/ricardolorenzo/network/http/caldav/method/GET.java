@@ -27,16 +27,21 @@ import org.slf4j.LoggerFactory;
 
 import com.ricardolorenzo.file.io.IOStreamUtils;
 import com.ricardolorenzo.file.lock.FileLockException;
-import com.ricardolorenzo.icalendar.VCalendar;
 import com.ricardolorenzo.icalendar.VCalendarException;
 import com.ricardolorenzo.network.http.caldav.AccessDeniedException;
 import com.ricardolorenzo.network.http.caldav.CalDAVMimeType;
 import com.ricardolorenzo.network.http.caldav.CalDAVResponse;
+import com.ricardolorenzo.network.http.caldav.CompressedResponse;
 import com.ricardolorenzo.network.http.caldav.locking.ResourceLocksMap;
 import com.ricardolorenzo.network.http.caldav.session.CalDAVTransaction;
 import com.ricardolorenzo.network.http.caldav.store.CalDAVStore;
+import com.ricardolorenzo.network.http.caldav.store.CalendarData;
+import com.ricardolorenzo.network.http.caldav.store.LazyVCalendar;
+import com.ricardolorenzo.network.http.caldav.store.SeriesIndex;
 import com.ricardolorenzo.network.http.caldav.store.StoredObject;
-import com.ricardolorenzo.network.http.caldav.store.VCalendarCache;
+import com.ricardolorenzo.network.http.caldav.store.VActionEntry;
+import com.ricardolorenzo.network.http.caldav.store.VActionSeries;
+import com.ricardolorenzo.network.http.caldav.store.VCalendarIndex;
 
 public class GET extends HEAD {
 	private final Logger logger = LoggerFactory.getLogger(getClass());
@@ -90,22 +95,50 @@ public class GET extends HEAD {
                 String calendarPath = parentPath.concat("/calendar.ics");
                 String uid = path.substring(path.lastIndexOf("/") + 1);
                 uid = uid.substring(0, uid.length() - 4);
+                boolean timezones = isTimeZonesIncluded(req);
 
                 OutputStream os = resp.getOutputStream();
                 try {
                     if (this._store.resourceExists(transaction, calendarPath)) {
+                        resp.setContentType("text/calendar; charset=UTF-8");
                         File _f = new File(this._store.getRootPath() + calendarPath);
-                        VCalendar _vc = VCalendarCache.getVCalendar(_f);
-                        if (_vc.hasVevent(uid) || _vc.hasVtodo(uid)) {
-                            VCalendar _res_vc = new VCalendar();
-                            if (_vc.hasVevent(uid)) {
-                                _res_vc.addVevent(_vc.getVevent(uid));
-                            } else if (_vc.hasVtodo(uid)) {
-                                _res_vc.addVtodo(_vc.getVtodo(uid));
+                        VActionEntry _entry = VCalendarIndex.getIndex(_f).getEntry(uid);
+                        if (_entry != null && _entry.getData() != null) {
+                            /*
+                             * The object as rendered when stored, without loading the calendar
+                             */
+                            VActionSeries _series = SeriesIndex.getIndex(_f).getSeries(uid);
+                            String eTag = _series != null ? _series.getETag() : _entry.getETag();
+                            if (eTag.equals(CompressedResponse.getIdentityETag(req.getHeader("If-None-Match")))) {
+                                resp.setStatus(CalDAVResponse.SC_NOT_MODIFIED);
+                                return;
                             }
-                            IOStreamUtils.write(_res_vc.toString(), os);
+                            resp.setHeader("ETag", eTag);
+                            (_series != null ? _series.getCalendar() : _entry.getData()).write(os, timezones);
+                            return;
+                        }
+                        /*
+                         * The calendar is only scanned, the components are sent as stored
+                         */
+                        LazyVCalendar _vc = LazyVCalendar.load(_f);
+                        CalendarData _data = _vc.getData(uid);
+                        if (_data != null) {
+                            VActionSeries _series = SeriesIndex.getIndex(_f).getSeries(uid);
+                            if (_entry != null) {
+                                String eTag = _series != null ? _series.getETag() : _entry.getETag();
+                                String eTagMatch = CompressedResponse.getIdentityETag(req.getHeader("If-None-Match"));
+                                if (eTag.equals(eTagMatch)) {
+                                    resp.setStatus(CalDAVResponse.SC_NOT_MODIFIED);
+                                    return;
+                                }
+                                resp.setHeader("ETag", eTag);
+                            }
+                            /*
+                             * The master and all its overridden instances
+                             */
+                            (_series != null ? _series.getCalendar() : _data).write(os, timezones);
                         } else {
-                            IOStreamUtils.write(_vc.toString(), os);
+                            _vc.write(os, timezones);
                         }
                     } else {
                         resp.sendError(CalDAVResponse.SC_NOT_FOUND);
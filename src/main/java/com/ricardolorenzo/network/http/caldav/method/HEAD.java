@@ -26,6 +26,7 @@ import com.ricardolorenzo.network.http.caldav.AccessDeniedException;
 import com.ricardolorenzo.network.http.caldav.CalDAVMimeType;
 import com.ricardolorenzo.network.http.caldav.CalDAVResponse;
 import com.ricardolorenzo.network.http.caldav.CalDAVServlet;
+import com.ricardolorenzo.network.http.caldav.CompressedResponse;
 import com.ricardolorenzo.network.http.caldav.ObjectAlreadyExistsException;
 import com.ricardolorenzo.network.http.caldav.locking.LockException;
 import com.ricardolorenzo.network.http.caldav.locking.ResourceLocksMap;
@@ -92,7 +93,7 @@ public class HEAD extends CalDAVAbstractMethod {
                     this.resource_acl.getPrivilegeCollection().checkPrincipalPrivilege(CalDAVServlet.securityProvider.getUserPrincipal(req), "read");
                     String eTagMatch = req.getHeader("If-None-Match");
                     if (eTagMatch != null) {
-                        if (eTagMatch.equals(getETag(so))) {
+                        if (CompressedResponse.getIdentityETag(eTagMatch).equals(getETag(so))) {
                             resp.setStatus(CalDAVResponse.SC_NOT_MODIFIED);
                             return;
                         }
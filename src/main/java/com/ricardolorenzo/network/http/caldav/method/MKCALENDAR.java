@@ -15,6 +15,7 @@
 package com.ricardolorenzo.network.http.caldav.method;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
@@ -44,6 +45,7 @@ import com.ricardolorenzo.network.http.caldav.locking.ResourceLocksMap;
 import com.ricardolorenzo.network.http.caldav.security.acl.CalDAVResourceACL;
 import com.ricardolorenzo.network.http.caldav.session.CalDAVTransaction;
 import com.ricardolorenzo.network.http.caldav.store.CalDAVStore;
+import com.ricardolorenzo.network.http.caldav.store.CollectionRevision;
 import com.ricardolorenzo.network.http.caldav.store.StoredObject;
 
 /**
@@ -104,6 +106,7 @@ public class MKCALENDAR extends CalDAVAbstractMethod {
                             if (length != -1) {
                                 so.setResourceLength(length);
                             }
+                            CollectionRevision.increment(new File(this._store.getRootPath() + path));
 
                             this._store.getResourceACL(transaction, path);
                         } else {
@@ -48,7 +48,7 @@ public class OPTIONS extends CalDAVMethods {
         if (this._resource_locks.lock(transaction, path, tempLockOwner, false, 0, TEMP_TIMEOUT, TEMPORARY)) {
             StoredObject so = null;
             try {
-                resp.addHeader("DAV", "1, 2, access-control, calendar-access");
+                resp.addHeader("DAV", "1, 2, access-control, calendar-access, calendar-no-timezone");
 
                 so = this._store.getStoredObject(transaction, path);
                 String methodsAllowed = determineMethodsAllowed(so);
@@ -14,34 +14,29 @@
  */
 package com.ricardolorenzo.network.http.caldav.method;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.xml.sax.SAXException;
 
 import com.ricardolorenzo.file.lock.FileLockException;
-import com.ricardolorenzo.file.xml.XMLReader;
-import com.ricardolorenzo.file.xml.XMLWriter;
-import com.ricardolorenzo.icalendar.VCalendar;
 import com.ricardolorenzo.icalendar.VCalendarException;
-import com.ricardolorenzo.icalendar.VEvent;
-import com.ricardolorenzo.icalendar.VTodo;
 import com.ricardolorenzo.network.http.caldav.AccessDeniedException;
 import com.ricardolorenzo.network.http.caldav.CalDAVException;
 import com.ricardolorenzo.network.http.caldav.CalDAVMimeType;
@@ -55,8 +50,14 @@ import com.ricardolorenzo.network.http.caldav.security.acl.CalDAVPrivilegeCollec
 import com.ricardolorenzo.network.http.caldav.security.acl.CalDAVResourceACL;
 import com.ricardolorenzo.network.http.caldav.session.CalDAVTransaction;
 import com.ricardolorenzo.network.http.caldav.store.CalDAVStore;
+import com.ricardolorenzo.network.http.caldav.store.SeriesIndex;
 import com.ricardolorenzo.network.http.caldav.store.StoredObject;
-import com.ricardolorenzo.network.http.caldav.store.VCalendarCache;
+import com.ricardolorenzo.network.http.caldav.store.VActionEntry;
+import com.ricardolorenzo.network.http.caldav.store.VCalendarIndex;
+import com.ricardolorenzo.network.http.caldav.xml.DAVDates;
+import com.ricardolorenzo.network.http.caldav.xml.MultiStatusWriter;
+import com.ricardolorenzo.network.http.caldav.xml.PropFindRequest;
+import com.ricardolorenzo.network.http.caldav.xml.PropFindTemplate;
 
 /**
  * @author Ricardo Lorenzo
@@ -67,17 +68,37 @@ public class PROPFIND extends CalDAVAbstractMethod {
     private static final int FIND_BY_PROPERTY = 0;
     private static final int FIND_ALL_PROP = 1;
     private static final int FIND_PROPERTY_NAMES = 2;
+    private static final int MAX_TEMPLATE_BODY = 4096;
+    /*
+     * Properties sent for a D:allprop request, before the calendar ones
+     */
+    private static final String[] ALL_PROPERTIES = new String[] { "creationdate", "displayname",
+            "getlastmodified", "getcontentlength", "getcontenttype", "getetag", "resourcetype", "supportedlock",
+            "lockdiscovery" };
 
     private CalDAVStore _store;
     private ResourceLocksMap _resource_locks;
     private CalDAVResourceACL resource_acl;
     private CalDAVMimeType _mimeType;
     private int _depth;
+    private int _max_results;
+    private Map<String, PropertyProvider> _providers;
 
     public PROPFIND(CalDAVStore store, ResourceLocksMap resLocks, CalDAVMimeType mimeType) {
+        this(store, resLocks, mimeType, 0);
+    }
+
+    /**
+     * @param maxResults
+     *            Maximum number of calendar objects listed, or <code>0</code> for no limit
+     */
+    public PROPFIND(CalDAVStore store, ResourceLocksMap resLocks, CalDAVMimeType mimeType, int maxResults) {
         this._store = store;
         this._resource_locks = resLocks;
         this._mimeType = mimeType;
+        this._max_results = maxResults;
+        this._providers = new HashMap<String, PropertyProvider>();
+        addProviders();
     }
 
     public void execute(CalDAVTransaction transaction, HttpServletRequest req, HttpServletResponse resp)
@@ -102,43 +123,38 @@ public class PROPFIND extends CalDAVAbstractMethod {
                 path = getCleanPath(getRelativePath(req));
 
                 int propertyFindType = FIND_ALL_PROP;
-                Node propNode = null;
-
                 if (req.getContentLength() > 0) {
+                    InputStream is = req.getInputStream();
+                    if (req.getContentLength() <= MAX_TEMPLATE_BODY) {
+                        byte[] body = readBody(is);
+                        PropFindTemplate template = PropFindTemplate.recognize(body);
+                        if (template != null && so.isFolder() && sendTemplate(transaction, req, resp, path, template)) {
+                            return;
+                        }
+                        is = new ByteArrayInputStream(body);
+                    }
                     try {
-                        Document document = XMLReader.getDocument(req.getInputStream());
-                        Element rootElement = document.getDocumentElement();
-
-                        propNode = XMLReader.firstSubElement(rootElement, "prop");
-                        if (propNode != null) {
+                        PropFindRequest request = PropFindRequest.parse(is);
+                        if (request.getType() == PropFindRequest.PROP) {
                             propertyFindType = FIND_BY_PROPERTY;
-                        } else if (XMLReader.firstSubElement(rootElement, "propname") != null) {
+                            properties = request.getProperties();
+                        } else if (request.getType() == PropFindRequest.PROPNAME) {
                             propertyFindType = FIND_PROPERTY_NAMES;
-                        } else if (XMLReader.firstSubElement(rootElement, "allprop") != null) {
-                            propertyFindType = FIND_ALL_PROP;
                         }
-                    } catch (IOException e) {
-                    	logger.error("proprind", e);
-                        resp.sendError(CalDAVResponse.SC_INTERNAL_SERVER_ERROR);
-                        return;
-                    } catch (SAXException e) {
+                    } catch (XMLStreamException e) {
                     	logger.error("propfind", e);
-                        resp.sendError(CalDAVResponse.SC_INTERNAL_SERVER_ERROR);
+                        resp.sendError(CalDAVResponse.SC_BAD_REQUEST);
                         return;
                     }
-                } else {
-                    propertyFindType = FIND_ALL_PROP;
-                }
-
-                if (propertyFindType == FIND_BY_PROPERTY) {
-                    propertyFindType = 0;
-                    properties = XMLReader.getProperties(propNode);
                 }
 
                 resp.setStatus(CalDAVResponse.SC_MULTI_STATUS);
                 resp.setContentType("text/xml; charset=UTF-8");
 
-                XMLWriter XML = new XMLWriter();
+                /*
+                 * The responses are written as they are found, with chunked encoding
+                 */
+                MultiStatusWriter XML = new MultiStatusWriter(resp.getOutputStream());
                 XML.setNameSpace("DAV:", "D");
                 XML.setNameSpace("urn:ietf:params:xml:ns:caldav", "C");
                 XML.setNameSpace("http://calendarserver.org/ns/", "CS");
@@ -148,20 +164,14 @@ public class PROPFIND extends CalDAVAbstractMethod {
                         this._mimeType.getMimeType(path));
                 showCalendarItems(transaction, path, req, XML);
                 XML.closeElement();
-
-                byte[] content = XML.toString().getBytes("UTF-8");
-                resp.setContentLength(content.length);
-                OutputStream os = resp.getOutputStream();
-                os.write(content);
-                os.close();
+                XML.close();
             } catch (AccessDeniedException e) {
                 resp.sendError(CalDAVResponse.SC_FORBIDDEN);
             } catch (IOException e) {
             	logger.error("propfind", e);
-                resp.sendError(CalDAVResponse.SC_INTERNAL_SERVER_ERROR);
-            } catch (ParserConfigurationException e) {
-            	logger.error("propfind", e);
-                resp.sendError(CalDAVResponse.SC_INTERNAL_SERVER_ERROR);
+                if (!resp.isCommitted()) {
+                    resp.sendError(CalDAVResponse.SC_INTERNAL_SERVER_ERROR);
+                }
             } finally {
                 this._resource_locks.unlockTemporaryLockedObjects(transaction, path, tempLockOwner);
             }
@@ -172,6 +182,79 @@ public class PROPFIND extends CalDAVAbstractMethod {
         }
     }
 
+    private static byte[] readBody(InputStream is) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        for (int length = is.read(buffer); length != -1; length = is.read(buffer)) {
+            body.write(buffer, 0, length);
+        }
+        return body.toByteArray();
+    }
+
+    /**
+     * Answers a polling request on a calendar collection from its template, with the same
+     * responses as the general path.
+     * 
+     * @return <code>false</code> if the resource is not a calendar collection or has other
+     *         collections inside, nothing is sent then
+     */
+    private boolean sendTemplate(CalDAVTransaction transaction, HttpServletRequest req, HttpServletResponse resp,
+            String path, PropFindTemplate template) throws IOException {
+        String base = path.endsWith("/") ? path : path + "/";
+        boolean calendar = false;
+        List<String> names = new ArrayList<String>();
+        List<StoredObject> resources = new ArrayList<StoredObject>();
+        for (String name : this._store.getChildrenNames(transaction, path)) {
+            if ("calendar.ics".equals(name)) {
+                calendar = true;
+            } else if (this._depth > 0) {
+                StoredObject so = this._store.getStoredObject(transaction, base + name);
+                if (so == null || so.isFolder()) {
+                    return false;
+                }
+                names.add(name);
+                resources.add(so);
+            }
+        }
+        if (!calendar) {
+            return false;
+        }
+
+        boolean eTags = template.hasProperty("getetag");
+        File _f = new File(this._store.getRootPath() + base + "calendar.ics");
+        resp.setStatus(CalDAVResponse.SC_MULTI_STATUS);
+        resp.setContentType("text/xml; charset=UTF-8");
+        OutputStream os = resp.getOutputStream();
+        template.writeStart(os);
+        template.writeCalendar(os, getHref(req, path, true), eTags ? getETag(this._store.getStoredObject(
+                transaction, base + "calendar.ics")) : null, template.hasProperty("getctag") ? getCTag(_f) : null);
+        for (int i = 0; i < names.size(); i++) {
+            template.writeResource(os, getHref(req, base + names.get(i), false), eTags ? getETag(resources.get(i))
+                    : null);
+        }
+        try {
+            VCalendarIndex _index = VCalendarIndex.getIndex(_f);
+            SeriesIndex _series = SeriesIndex.getIndex(_f);
+            int count = 0;
+            for (VActionEntry _entry : _index.getEntries()) {
+                if (this._max_results > 0 && count == this._max_results) {
+                    template.writeTruncated(os, "/caldav" + path, count);
+                    break;
+                }
+                count++;
+                template.writeItem(os, "/caldav" + path + "/" + _entry.getUid() + ".ics", _series.getETag(_entry));
+            }
+        } catch (VCalendarException e) {
+            logger.error("propfind", e);
+            // nothing
+        } catch (FileLockException e) {
+            logger.error("propfind", e);
+            // nothing
+        }
+        template.writeEnd(os);
+        return true;
+    }
+
     /**
      * goes recursive through all folders. used by propfind
      * 
@@ -188,7 +271,7 @@ public class PROPFIND extends CalDAVAbstractMethod {
      *             if an error in the underlying store occurs
      */
     private void recursiveParseProperties(CalDAVTransaction transaction, String currentPath, HttpServletRequest req,
-            XMLWriter XML, int propertyFindType, List<String> properties, int depth, String mimeType)
+            MultiStatusWriter XML, int propertyFindType, List<String> properties, int depth, String mimeType)
             throws CalDAVException {
 
         parseProperties(transaction, req, XML, currentPath, propertyFindType, properties, mimeType);
@@ -223,56 +306,34 @@ public class PROPFIND extends CalDAVAbstractMethod {
      * @throws IOException
      *             if an error in the underlying store occurs
      */
-    private void showCalendarItems(CalDAVTransaction transaction, String path, HttpServletRequest req, XMLWriter XML)
+    private void showCalendarItems(CalDAVTransaction transaction, String path, HttpServletRequest req, MultiStatusWriter XML)
             throws IOException {
         if (this._store.resourceExists(transaction, path)) {
             for (String name : this._store.getChildrenNames(transaction, path)) {
                 if (name.equals("calendar.ics")) {
                     File _f = new File(this._store.getRootPath() + path + "/calendar.ics");
                     try {
-                        VCalendar _vc = VCalendarCache.getVCalendar(_f);
-                        String status = new String("HTTP/1.1 " + CalDAVResponse.SC_OK + " "
-                                + CalDAVResponse.getStatusText(CalDAVResponse.SC_OK));
-
-                        for (VEvent _ve : _vc.getVevents()) {
-                            XML.addChildElement("D:response");
-
-                            XML.addChildElement("D:href");
-                            XML.setTextContent("/caldav" + path + "/" + _ve.getUid() + ".ics");
-                            XML.closeElement();
-
-                            XML.addChildElement("D:getetag");
-                            XML.setTextContent(getETag(_ve));
-                            XML.closeElement();
-
-                            /*
-                             * if(_ve.hasLastModified()) { XML.addProperty("D:getlastmodified",
-                             * LAST_MODIFIED_DATE_FORMAT.format(_ve.getLastModified().getTime())); }
-                             */
-
-                            XML.addChildElement("D:status");
-                            XML.setTextContent(status);
-                            XML.closeElement();
-
-                            XML.closeElement();
-                        }
-
-                        for (VTodo _vt : _vc.getVtodos()) {
+                        VCalendarIndex _index = VCalendarIndex.getIndex(_f);
+                        SeriesIndex _series = SeriesIndex.getIndex(_f);
+                        String status = CalDAVResponse.getStatusLine(CalDAVResponse.SC_OK);
+
+                        int count = 0;
+                        for (VActionEntry _entry : _index.getEntries()) {
+                            if (this._max_results > 0 && count == this._max_results) {
+                                printTruncated(XML, "/caldav" + path, count);
+                                break;
+                            }
+                            count++;
                             XML.addChildElement("D:response");
 
                             XML.addChildElement("D:href");
-                            XML.setTextContent("/caldav" + path + "/" + _vt.getUid() + ".ics");
+                            XML.setTextContent("/caldav" + path + "/" + _entry.getUid() + ".ics");
                             XML.closeElement();
 
                             XML.addChildElement("D:getetag");
-                            XML.setTextContent(getETag(_vt));
+                            XML.setTextContent(_series.getETag(_entry));
                             XML.closeElement();
 
-                            /*
-                             * if(_vt.hasLastModified()) { XML.addProperty("D:getlastmodified",
-                             * LAST_MODIFIED_DATE_FORMAT.format(_vt.getLastModified().getTime())); }
-                             */
-
                             XML.addChildElement("D:status");
                             XML.setTextContent(status);
                             XML.closeElement();
@@ -310,85 +371,29 @@ public class PROPFIND extends CalDAVAbstractMethod {
      *            If the propfind type is find properties by name, then this Vector contains those
      *            properties
      */
-    private void parseProperties(CalDAVTransaction transaction, HttpServletRequest req, XMLWriter XML, String path,
+    private void parseProperties(CalDAVTransaction transaction, HttpServletRequest req, MultiStatusWriter XML, String path,
             int type, List<String> properties, String mimeType) throws CalDAVException {
-        CalDAVResourceACL ACLResource = this._store.getResourceACL(transaction, path);
-        StoredObject so = this._store.getStoredObject(transaction, path);
-
-        boolean isFolder = so.isFolder();
-        String creationdate = CREATION_DATE_FORMAT.format(so.getCreationDate());
-        String lastModified = LAST_MODIFIED_DATE_FORMAT.format(so.getLastModified());
-        String resourceLength = String.valueOf(so.getResourceLength());
+        ResourceProperties resource = new ResourceProperties(transaction, req, path, mimeType);
+        boolean isFolder = resource.isFolder();
 
         XML.addChildElement("D:response");
-        String status = new String("HTTP/1.1 " + CalDAVResponse.SC_OK + " "
-                + CalDAVResponse.getStatusText(CalDAVResponse.SC_OK));
+        String status = CalDAVResponse.getStatusLine(CalDAVResponse.SC_OK);
 
-        String href = req.getContextPath();
-        try {
-            XML.addChildElement("D:href");
-
-            if (req.getServletPath() != null) {
-                String servletPath = req.getServletPath();
-                if ((href.endsWith("/")) && (servletPath.startsWith("/"))) {
-                    href += servletPath.substring(1);
-                } else {
-                    href += servletPath;
-                }
-            }
-            if ((href.endsWith("/")) && (path.startsWith("/"))) {
-                href += path.substring(1);
-            } else {
-                href += path;
-            }
-            if ((isFolder) && (!href.endsWith("/"))) {
-                href += "/";
-            }
-
-            XML.setTextContent(rewriteUrl(href));
-        } catch (UnsupportedEncodingException e) {
-            throw new CalDAVException("encoding exception [" + href + "]");
-        }
+        XML.addChildElement("D:href");
+        XML.setTextContent(getHref(req, path, isFolder));
         XML.closeElement();
 
-        String resourceName = path;
-        int lastSlash = path.lastIndexOf('/');
-        if (lastSlash != -1) {
-            resourceName = resourceName.substring(lastSlash + 1);
-        }
-
         switch (type) {
             case FIND_ALL_PROP:
                 XML.addChildElement("D:propstat");
                 XML.addChildElement("D:prop");
 
-                XML.addProperty("D:creationdate", creationdate);
-                XML.addChildElement("D:displayname");
-                XML.setDataContent(resourceName);
-                XML.closeElement();
-                if (!isFolder) {
-                    XML.addProperty("D:getlastmodified", lastModified);
-                    XML.addProperty("D:getcontentlength", resourceLength);
-                    String contentType = mimeType;
-                    if (contentType != null) {
-                        XML.addProperty("D:getcontenttype", contentType);
-                    }
-                    XML.addProperty("D:getetag", getETag(so));
-                    XML.addProperty("D:resourcetype");
-                } else {
-                    XML.addChildElement("D:resourcetype");
-                    XML.addProperty("D:collection");
-                    XML.closeElement();
+                for (String property : ALL_PROPERTIES) {
+                    this._providers.get(property).write(resource, XML);
                 }
-
-                writeSupportedLockElements(transaction, XML, path);
-                writeLockDiscoveryElements(transaction, XML, path);
-
-                StoredObject _so = this._store.getStoredObject(transaction, path + "/calendar.ics");
-                if (_so != null) {
+                if (isFolder && resource.isCalendar()) {
                     writeCalendarElements(transaction, XML);
                 }
-
                 XML.addProperty("D:source", "");
                 XML.closeElement();
 
@@ -424,7 +429,6 @@ public class PROPFIND extends CalDAVAbstractMethod {
                 XML.closeElement();
                 break;
             case FIND_BY_PROPERTY:
-                CalDAVPrivilegeCollection collection;
                 List<String> propertiesNotFound = new ArrayList<String>();
 
                 XML.addChildElement("D:propstat");
@@ -435,290 +439,466 @@ public class PROPFIND extends CalDAVAbstractMethod {
                         property = property.substring(property.lastIndexOf(":") + 1);
                     }
 
-                    if (property.equals("creationdate")) {
-                        XML.addProperty("D:creationdate", creationdate);
-                    } else if (property.equals("displayname")) {
-                        XML.addChildElement("D:displayname");
-                        XML.setDataContent(resourceName);
-                        XML.closeElement();
-                    } else if (property.equals("getcontentlanguage")) {
-                        if (isFolder) {
-                            propertiesNotFound.add(property);
-                        } else {
-                            XML.addProperty("D:getcontentlanguage");
-                        }
-                    } else if (property.equals("getcontentlength")) {
-                        if (isFolder) {
-                            propertiesNotFound.add(property);
-                        } else {
-                            XML.addProperty("D:getcontentlength", resourceLength);
-                        }
-                    } else if (property.equals("getcontenttype")) {
-                        if (isFolder) {
-                            propertiesNotFound.add("D:getcontenttype");
-                        } else {
-                            XML.addProperty("D:getcontenttype", mimeType);
-                        }
-                    } else if (property.equals("getetag")) {
-                        if (isFolder || so.isNullResource()) {
-                            List<String> childs = Arrays.asList(this._store.getChildrenNames(transaction, path));
-                            if (childs.contains("calendar.ics")) {
-                                if (!path.endsWith("/")) {
-                                    path = path.concat("/");
-                                }
-                                StoredObject soc = this._store.getStoredObject(transaction, path + "calendar.ics");
-                                XML.addProperty("D:getetag", getETag(soc));
-                            } else {
-                                propertiesNotFound.add("D:getetag");
-                            }
-                        } else {
-                            XML.addProperty("D:getetag", getETag(so));
-                        }
-                    } else if (property.equals("getctag")) {
-                        if (isFolder || so.isNullResource()) {
-                            List<String> childs = Arrays.asList(this._store.getChildrenNames(transaction, path));
-                            if (childs.contains("calendar.ics")) {
-                                if (!path.endsWith("/")) {
-                                    path = path.concat("/");
-                                }
-                                StoredObject soc = this._store.getStoredObject(transaction, path + "calendar.ics");
-                                XML.addProperty("CS:getctag", getCTag(soc));
-                            } else {
-                                propertiesNotFound.add("CS:getctag");
-                            }
-                        } else {
-                            propertiesNotFound.add("CS:getctag");
-                        }
-                    } else if (property.equals("getlastmodified")) {
-                        if (isFolder) {
-                            propertiesNotFound.add(property);
-                        } else {
-                            XML.addProperty("D:getlastmodified", lastModified);
-                        }
-                    } else if (property.equals("resourcetype")) {
-                        if (isFolder) {
-                            XML.addChildElement("D:resourcetype");
-                            XML.addProperty("D:collection");
-                            /*
-                             * TODO Identify when is a calendar collection
-                             */
-                            _so = this._store.getStoredObject(transaction, path + "/calendar.ics");
-                            if (_so != null) {
-                                XML.addProperty("C:calendar");
-                            }
+                    PropertyProvider provider = this._providers.get(property);
+                    if (provider == null) {
+                        propertiesNotFound.add(property);
+                    } else if (!provider.write(resource, XML)) {
+                        propertiesNotFound.add(provider.name);
+                    }
+                }
 
-                            XML.closeElement();
-                        } else {
-                            XML.addProperty("D:resourcetype");
-                        }
-                    } else if (property.equals("source")) {
-                        XML.addProperty("D:source", "");
-                    } else if (property.equals("supportedlock")) {
-                        writeSupportedLockElements(transaction, XML, path);
-                    } else if (property.equals("lockdiscovery")) {
-                        writeLockDiscoveryElements(transaction, XML, path);
-                    } else if (property.equals("owner")) {
-                        collection = this.resource_acl.getPrivilegeCollection();
-
-                        XML.addChildElement("D:owner");
-                        XML.addChildElement("D:href");
-                        XML.setTextContent("http://" + req.getServerName() + "/acl/users/"
-                                + collection.getOwner().getName());
-                        XML.closeElement();
-                        XML.closeElement();
-                    } else if (property.equals("supported-privilege-set")) {
-                        XML.addChildElement("D:supported-privilege-set");
+                XML.closeElement();
+                XML.addChildElement("D:status");
+                XML.setTextContent(status);
+                XML.closeElement();
+                XML.closeElement();
 
-                        Map<String, String> supportedPrivileges = this.resource_acl.getSupportedPrivilegeSet();
+                if (!propertiesNotFound.isEmpty()) {
+                    status = CalDAVResponse.getStatusLine(CalDAVResponse.SC_NOT_FOUND);
 
-                        XML.addChildElement("D:supported-privilege");
-                        XML.addChildElement("D:privilege");
-                        XML.addProperty("D:all");
-                        XML.closeElement();
-                        XML.addProperty("D:abstract");
-                        XML.addChildElement("D:description");
-                        XML.setTextContent(supportedPrivileges.get("all"));
-                        XML.closeElement();
+                    XML.addChildElement("D:propstat");
+                    XML.addChildElement("D:prop");
 
-                        for (String p : supportedPrivileges.keySet()) {
-                            if ("all".equals(p)) {
-                                continue;
-                            }
+                    for (String property : propertiesNotFound) {
+                        XML.addProperty(property);
+                    }
 
-                            XML.addChildElement("D:supported-privilege");
+                    XML.closeElement();
+                    XML.addChildElement("D:status");
+                    XML.setTextContent(status);
+                    XML.closeElement();
 
-                            XML.addChildElement("D:privilege");
-                            XML.addProperty("D:" + p);
-                            XML.closeElement();
+                    XML.closeElement();
+                }
+                break;
+        }
+        XML.closeElement();
+    }
 
-                            XML.addProperty("D:abstract");
+    private String getHref(HttpServletRequest req, String path, boolean isFolder) throws CalDAVException {
+        String href = req.getContextPath();
+        if (req.getServletPath() != null) {
+            String servletPath = req.getServletPath();
+            if ((href.endsWith("/")) && (servletPath.startsWith("/"))) {
+                href += servletPath.substring(1);
+            } else {
+                href += servletPath;
+            }
+        }
+        if ((href.endsWith("/")) && (path.startsWith("/"))) {
+            href += path.substring(1);
+        } else {
+            href += path;
+        }
+        if ((isFolder) && (!href.endsWith("/"))) {
+            href += "/";
+        }
+        try {
+            return rewriteUrl(href);
+        } catch (UnsupportedEncodingException e) {
+            throw new CalDAVException("encoding exception [" + href + "]");
+        }
+    }
 
-                            XML.addChildElement("D:description");
-                            XML.setTextContent(supportedPrivileges.get(p));
-                            XML.closeElement();
+    /**
+     * State of a resource read by the property providers. Every part is read from the store the
+     * first time a provider needs it, so the properties not requested do not read the ACL, the
+     * children or the dates of the resource.
+     */
+    private class ResourceProperties {
+        private CalDAVTransaction transaction;
+        private HttpServletRequest req;
+        private String path;
+        private String mimeType;
+        private StoredObject so;
+        private CalDAVResourceACL acl;
+        private List<String> children;
+
+        private ResourceProperties(CalDAVTransaction transaction, HttpServletRequest req, String path, String mimeType) {
+            this.transaction = transaction;
+            this.req = req;
+            this.path = path;
+            this.mimeType = mimeType;
+        }
 
-                            XML.closeElement();
-                        }
+        private StoredObject getStoredObject() {
+            if (this.so == null) {
+                this.so = _store.getStoredObject(this.transaction, this.path);
+            }
+            return this.so;
+        }
 
-                        XML.closeElement();
-                    } else if (property.equals("current-user-privilege-set")) {
-                        collection = ACLResource.getPrivilegeCollection();
-                        CalDAVPrivilege privilege = collection.getPrincipalPrivilege(transaction.getPrincipal());
+        private boolean isFolder() {
+            return getStoredObject().isFolder();
+        }
 
-                        XML.addChildElement("D:current-user-privilege-set");
+        private CalDAVResourceACL getACL() {
+            if (this.acl == null) {
+                this.acl = _store.getResourceACL(this.transaction, this.path);
+            }
+            return this.acl;
+        }
 
-                        for (String p : privilege.getGrantedPrivileges()) {
-                            XML.addChildElement("D:privilege");
-                            XML.addProperty("D:" + p);
-                            XML.closeElement();
-                        }
+        private List<String> getChildren() {
+            if (this.children == null) {
+                String[] names = _store.getChildrenNames(this.transaction, this.path);
+                if (names != null) {
+                    this.children = Arrays.asList(names);
+                } else {
+                    this.children = Collections.emptyList();
+                }
+            }
+            return this.children;
+        }
 
-                        XML.closeElement();
-                    } else if (property.equals("acl")) {
-                        collection = this.resource_acl.getPrivilegeCollection();
+        private boolean isCalendar() {
+            return getChildren().contains("calendar.ics");
+        }
 
-                        XML.addChildElement("D:acl");
+        private String getCalendarPath() {
+            if (this.path.endsWith("/")) {
+                return this.path + "calendar.ics";
+            }
+            return this.path + "/calendar.ics";
+        }
 
-                        XML.addChildElement("D:ace");
+        private String getName() {
+            int lastSlash = this.path.lastIndexOf('/');
+            if (lastSlash != -1) {
+                return this.path.substring(lastSlash + 1);
+            }
+            return this.path;
+        }
+    }
 
-                        XML.addChildElement("D:principal");
-                        XML.setTextContent("http://" + req.getServerName() + "/acl/users/"
-                                + collection.getOwner().getName());
-                        XML.closeElement();
+    /**
+     * Writer of a property. It reads from the resource only the state the property depends on.
+     */
+    private abstract static class PropertyProvider {
+        private String name;
 
-                        XML.addChildElement("D:grant");
-                        XML.addChildElement("D:privilege");
-                        XML.addProperty("D:all");
-                        XML.closeElement();
-                        XML.closeElement();
+        private PropertyProvider(String name) {
+            this.name = name;
+        }
 
-                        XML.closeElement();
+        /**
+         * Writes the property of the resource.
+         * 
+         * @return <code>false</code> if the resource has not the property
+         */
+        abstract boolean write(ResourceProperties resource, MultiStatusWriter XML);
+    }
 
-                        for (CalDAVPrivilege p : collection.getAllPrivileges()) {
-                            XML.addChildElement("D:ace");
+    private void addProvider(PropertyProvider provider) {
+        this._providers.put(provider.name.substring(provider.name.indexOf(':') + 1), provider);
+    }
 
-                            XML.addChildElement("D:principal");
-                            XML.setTextContent("http://" + req.getServerName() + "/acl/users/" + p.getPrincipalName());
-                            XML.closeElement();
+    private void addProviders() {
+        addProvider(new PropertyProvider("D:creationdate") {
+            boolean write(ResourceProperties resource, MultiStatusWriter XML) {
+                XML.addProperty("D:creationdate", DAVDates.formatCreationDate(resource.getStoredObject()
+                        .getCreationDate()));
+                return true;
+            }
+        });
+        addProvider(new PropertyProvider("D:displayname") {
+            boolean write(ResourceProperties resource, MultiStatusWriter XML) {
+                XML.addChildElement("D:displayname");
+                XML.setDataContent(resource.getName());
+                XML.closeElement();
+                return true;
+            }
+        });
+        addProvider(new PropertyProvider("D:getcontentlanguage") {
+            boolean write(ResourceProperties resource, MultiStatusWriter XML) {
+                if (resource.isFolder()) {
+                    return false;
+                }
+                XML.addProperty("D:getcontentlanguage");
+                return true;
+            }
+        });
+        addProvider(new PropertyProvider("D:getcontentlength") {
+            boolean write(ResourceProperties resource, MultiStatusWriter XML) {
+                if (resource.isFolder()) {
+                    return false;
+                }
+                XML.addProperty("D:getcontentlength", String.valueOf(resource.getStoredObject().getResourceLength()));
+                return true;
+            }
+        });
+        addProvider(new PropertyProvider("D:getcontenttype") {
+            boolean write(ResourceProperties resource, MultiStatusWriter XML) {
+                if (resource.isFolder()) {
+                    return false;
+                }
+                XML.addProperty("D:getcontenttype", resource.mimeType);
+                return true;
+            }
+        });
+        addProvider(new PropertyProvider("D:getetag") {
+            boolean write(ResourceProperties resource, MultiStatusWriter XML) {
+                if (resource.isFolder() || resource.getStoredObject().isNullResource()) {
+                    if (!resource.isCalendar()) {
+                        return false;
+                    }
+                    XML.addProperty("D:getetag", getETag(_store.getStoredObject(resource.transaction, resource
+                            .getCalendarPath())));
+                } else {
+                    XML.addProperty("D:getetag", getETag(resource.getStoredObject()));
+                }
+                return true;
+            }
+        });
+        addProvider(new PropertyProvider("CS:getctag") {
+            boolean write(ResourceProperties resource, MultiStatusWriter XML) {
+                if (!(resource.isFolder() || resource.getStoredObject().isNullResource()) || !resource.isCalendar()) {
+                    return false;
+                }
+                XML.addProperty("CS:getctag", getCTag(new File(_store.getRootPath() + resource.getCalendarPath())));
+                return true;
+            }
+        });
+        addProvider(new PropertyProvider("D:getlastmodified") {
+            boolean write(ResourceProperties resource, MultiStatusWriter XML) {
+                if (resource.isFolder()) {
+                    return false;
+                }
+                XML.addProperty("D:getlastmodified", DAVDates.formatLastModified(resource.getStoredObject()
+                        .getLastModified()));
+                return true;
+            }
+        });
+        addProvider(new PropertyProvider("D:resourcetype") {
+            boolean write(ResourceProperties resource, MultiStatusWriter XML) {
+                if (resource.isFolder()) {
+                    XML.addChildElement("D:resourcetype");
+                    XML.addProperty("D:collection");
+                    if (resource.isCalendar()) {
+                        XML.addProperty("C:calendar");
+                    }
+                    XML.closeElement();
+                } else {
+                    XML.addProperty("D:resourcetype");
+                }
+                return true;
+            }
+        });
+        addProvider(new PropertyProvider("D:source") {
+            boolean write(ResourceProperties resource, MultiStatusWriter XML) {
+                XML.addProperty("D:source", "");
+                return true;
+            }
+        });
+        addProvider(new PropertyProvider("D:supportedlock") {
+            boolean write(ResourceProperties resource, MultiStatusWriter XML) {
+                writeSupportedLockElements(resource.transaction, XML, resource.path);
+                return true;
+            }
+        });
+        addProvider(new PropertyProvider("D:lockdiscovery") {
+            boolean write(ResourceProperties resource, MultiStatusWriter XML) {
+                writeLockDiscoveryElements(resource.transaction, XML, resource.path);
+                return true;
+            }
+        });
+        addProvider(new PropertyProvider("D:owner") {
+            boolean write(ResourceProperties resource, MultiStatusWriter XML) {
+                CalDAVPrivilegeCollection collection = resource_acl.getPrivilegeCollection();
+
+                XML.addChildElement("D:owner");
+                XML.addChildElement("D:href");
+                XML.setTextContent("http://" + resource.req.getServerName() + "/acl/users/"
+                        + collection.getOwner().getName());
+                XML.closeElement();
+                XML.closeElement();
+                return true;
+            }
+        });
+        addProvider(new PropertyProvider("D:supported-privilege-set") {
+            boolean write(ResourceProperties resource, MultiStatusWriter XML) {
+                XML.addChildElement("D:supported-privilege-set");
 
-                            if (!p.getGrantedPrivileges().isEmpty()) {
-                                XML.addChildElement("D:grant");
-                                for (String pn : p.getGrantedPrivileges()) {
-                                    XML.addChildElement("D:privilege");
-                                    XML.addProperty("D:" + pn);
-                                    XML.closeElement();
-                                }
-                                XML.closeElement();
-                            }
+                Map<String, String> supportedPrivileges = resource_acl.getSupportedPrivilegeSet();
 
-                            if (!p.getDeniedPrivileges().isEmpty()) {
-                                XML.addChildElement("D:deny");
-                                for (String pn : p.getDeniedPrivileges()) {
-                                    XML.addChildElement("D:privilege");
-                                    XML.addProperty("D:" + pn);
-                                    XML.closeElement();
-                                }
-                                XML.closeElement();
-                            }
+                XML.addChildElement("D:supported-privilege");
+                XML.addChildElement("D:privilege");
+                XML.addProperty("D:all");
+                XML.closeElement();
+                XML.addProperty("D:abstract");
+                XML.addChildElement("D:description");
+                XML.setTextContent(supportedPrivileges.get("all"));
+                XML.closeElement();
 
-                            XML.closeElement();
-                        }
+                for (String p : supportedPrivileges.keySet()) {
+                    if ("all".equals(p)) {
+                        continue;
+                    }
 
-                        XML.closeElement();
-                    } else if (property.equals("acl-restrictions")) {
-                        XML.addChildElement("D:acl-restrictions");
+                    XML.addChildElement("D:supported-privilege");
 
-                        XML.addProperty("D:no-invert");
-                        XML.addChildElement("D:required-principal");
-                        XML.addProperty("D:all");
-                        XML.closeElement();
+                    XML.addChildElement("D:privilege");
+                    XML.addProperty("D:" + p);
+                    XML.closeElement();
 
-                        XML.closeElement();
-                    } else if (property.equals("principal-collection-set")) {
-                        XML.addChildElement("D:principal-collection-set");
+                    XML.addProperty("D:abstract");
 
-                        XML.addChildElement("D:href");
-                        XML.setTextContent("http://" + req.getServerName() + "/acl/users/");
-                        XML.closeElement();
+                    XML.addChildElement("D:description");
+                    XML.setTextContent(supportedPrivileges.get(p));
+                    XML.closeElement();
 
-                        XML.addChildElement("D:href");
-                        XML.setTextContent("http://" + req.getServerName() + "/acl/groups/");
-                        XML.closeElement();
+                    XML.closeElement();
+                }
 
-                        XML.closeElement();
-                    } else if (property.equals("supported-calendar-component-set")) {
-                        List<String> childs = Arrays.asList(this._store.getChildrenNames(transaction, path));
-                        if (childs.contains("calendar.ics")) {
-                            XML.addChildElement("C:supported-calendar-component-set");
+                XML.closeElement();
+                return true;
+            }
+        });
+        addProvider(new PropertyProvider("D:current-user-privilege-set") {
+            boolean write(ResourceProperties resource, MultiStatusWriter XML) {
+                CalDAVPrivilegeCollection collection = resource.getACL().getPrivilegeCollection();
+                CalDAVPrivilege privilege = collection.getPrincipalPrivilege(resource.transaction.getPrincipal());
 
-                            XML.addChildElement("C:comp");
-                            XML.addAttribute("name", "VTIMEZONE");
-                            XML.closeElement();
+                XML.addChildElement("D:current-user-privilege-set");
 
-                            XML.addChildElement("C:comp");
-                            XML.addAttribute("name", "VEVENT");
-                            XML.closeElement();
+                for (String p : privilege.getGrantedPrivileges()) {
+                    XML.addChildElement("D:privilege");
+                    XML.addProperty("D:" + p);
+                    XML.closeElement();
+                }
 
-                            XML.addChildElement("C:comp");
-                            XML.addAttribute("name", "VTODO");
-                            XML.closeElement();
+                XML.closeElement();
+                return true;
+            }
+        });
+        addProvider(new PropertyProvider("D:acl") {
+            boolean write(ResourceProperties resource, MultiStatusWriter XML) {
+                CalDAVPrivilegeCollection collection = resource_acl.getPrivilegeCollection();
+                String server = resource.req.getServerName();
 
-                            XML.addChildElement("C:comp");
-                            XML.addAttribute("name", "VFREEBUSY");
-                            XML.closeElement();
+                XML.addChildElement("D:acl");
 
+                XML.addChildElement("D:ace");
+
+                XML.addChildElement("D:principal");
+                XML.setTextContent("http://" + server + "/acl/users/" + collection.getOwner().getName());
+                XML.closeElement();
+
+                XML.addChildElement("D:grant");
+                XML.addChildElement("D:privilege");
+                XML.addProperty("D:all");
+                XML.closeElement();
+                XML.closeElement();
+
+                XML.closeElement();
+
+                for (CalDAVPrivilege p : collection.getAllPrivileges()) {
+                    XML.addChildElement("D:ace");
+
+                    XML.addChildElement("D:principal");
+                    XML.setTextContent("http://" + server + "/acl/users/" + p.getPrincipalName());
+                    XML.closeElement();
+
+                    if (!p.getGrantedPrivileges().isEmpty()) {
+                        XML.addChildElement("D:grant");
+                        for (String pn : p.getGrantedPrivileges()) {
+                            XML.addChildElement("D:privilege");
+                            XML.addProperty("D:" + pn);
                             XML.closeElement();
-                        } else {
-                            propertiesNotFound.add("C:supported-calendar-component-set");
                         }
-                    } else if (property.equals("supported-calendar-data")) {
-                        List<String> childs = Arrays.asList(this._store.getChildrenNames(transaction, path));
-                        if (childs.contains("calendar.ics")) {
-                            XML.addChildElement("C:supported-calendar-component-set");
-                            XML.addChildElement("C:calendar-data");
-                            XML.addAttribute("version", "2.0");
-                            XML.addAttribute("content-type", "text/calendar");
-                            XML.closeElement();
+                        XML.closeElement();
+                    }
+
+                    if (!p.getDeniedPrivileges().isEmpty()) {
+                        XML.addChildElement("D:deny");
+                        for (String pn : p.getDeniedPrivileges()) {
+                            XML.addChildElement("D:privilege");
+                            XML.addProperty("D:" + pn);
                             XML.closeElement();
-                        } else {
-                            propertiesNotFound.add("C:supported-calendar-data");
                         }
-                    } else {
-                        propertiesNotFound.add(property);
+                        XML.closeElement();
                     }
+
+                    XML.closeElement();
                 }
 
                 XML.closeElement();
-                XML.addChildElement("D:status");
-                XML.setTextContent(status);
+                return true;
+            }
+        });
+        addProvider(new PropertyProvider("D:acl-restrictions") {
+            boolean write(ResourceProperties resource, MultiStatusWriter XML) {
+                XML.addChildElement("D:acl-restrictions");
+
+                XML.addProperty("D:no-invert");
+                XML.addChildElement("D:required-principal");
+                XML.addProperty("D:all");
                 XML.closeElement();
+
                 XML.closeElement();
+                return true;
+            }
+        });
+        addProvider(new PropertyProvider("D:principal-collection-set") {
+            boolean write(ResourceProperties resource, MultiStatusWriter XML) {
+                XML.addChildElement("D:principal-collection-set");
 
-                if (!propertiesNotFound.isEmpty()) {
-                    status = new String("HTTP/1.1 " + CalDAVResponse.SC_NOT_FOUND + " "
-                            + CalDAVResponse.getStatusText(CalDAVResponse.SC_NOT_FOUND));
+                XML.addChildElement("D:href");
+                XML.setTextContent("http://" + resource.req.getServerName() + "/acl/users/");
+                XML.closeElement();
 
-                    XML.addChildElement("D:propstat");
-                    XML.addChildElement("D:prop");
+                XML.addChildElement("D:href");
+                XML.setTextContent("http://" + resource.req.getServerName() + "/acl/groups/");
+                XML.closeElement();
 
-                    for (String property : propertiesNotFound) {
-                        XML.addProperty(property);
-                    }
+                XML.closeElement();
+                return true;
+            }
+        });
+        addProvider(new PropertyProvider("C:supported-calendar-component-set") {
+            boolean write(ResourceProperties resource, MultiStatusWriter XML) {
+                if (!resource.isCalendar()) {
+                    return false;
+                }
+                XML.addChildElement("C:supported-calendar-component-set");
 
-                    XML.closeElement();
-                    XML.addChildElement("D:status");
-                    XML.setTextContent(status);
-                    XML.closeElement();
+                XML.addChildElement("C:comp");
+                XML.addAttribute("name", "VTIMEZONE");
+                XML.closeElement();
 
-                    XML.closeElement();
+                XML.addChildElement("C:comp");
+                XML.addAttribute("name", "VEVENT");
+                XML.closeElement();
+
+                XML.addChildElement("C:comp");
+                XML.addAttribute("name", "VTODO");
+                XML.closeElement();
+
+                XML.addChildElement("C:comp");
+                XML.addAttribute("name", "VFREEBUSY");
+                XML.closeElement();
+
+                XML.closeElement();
+                return true;
+            }
+        });
+        addProvider(new PropertyProvider("C:supported-calendar-data") {
+            boolean write(ResourceProperties resource, MultiStatusWriter XML) {
+                if (!resource.isCalendar()) {
+                    return false;
                 }
-                break;
-        }
-        XML.closeElement();
-        so = null;
+                XML.addChildElement("C:supported-calendar-component-set");
+                XML.addChildElement("C:calendar-data");
+                XML.addAttribute("version", "2.0");
+                XML.addAttribute("content-type", "text/calendar");
+                XML.closeElement();
+                XML.closeElement();
+                return true;
+            }
+        });
     }
 
-    private void writeSupportedLockElements(CalDAVTransaction transaction, XMLWriter XML, String path) {
+    private void writeSupportedLockElements(CalDAVTransaction transaction, MultiStatusWriter XML, String path) {
         LockedObject lo = this._resource_locks.getLockedObjectByPath(transaction, path);
         XML.addChildElement("D:supportedlock");
 
@@ -769,7 +949,7 @@ public class PROPFIND extends CalDAVAbstractMethod {
         lo = null;
     }
 
-    private void writeLockDiscoveryElements(CalDAVTransaction transaction, XMLWriter XML, String path) {
+    private void writeLockDiscoveryElements(CalDAVTransaction transaction, MultiStatusWriter XML, String path) {
 
         LockedObject lo = this._resource_locks.getLockedObjectByPath(transaction, path);
 
@@ -832,7 +1012,7 @@ public class PROPFIND extends CalDAVAbstractMethod {
         lo = null;
     }
 
-    private void writeCalendarElements(CalDAVTransaction transaction, XMLWriter XML) {
+    private void writeCalendarElements(CalDAVTransaction transaction, MultiStatusWriter XML) {
         XML.addChildElement("C:calendar-description");
         XML.setTextContent("WBSVia-Calendar");
         XML.closeElement();
@@ -170,8 +170,7 @@ public class PROPPATCH extends CalDAVAbstractMethod {
 
                     XML.addChildElement("D:multistatus");
                     XML.addChildElement("D:response");
-                    String status = new String("HTTP/1.1 " + CalDAVResponse.SC_OK + " "
-                            + CalDAVResponse.getStatusText(CalDAVResponse.SC_OK));
+                    String status = CalDAVResponse.getStatusLine(CalDAVResponse.SC_OK);
 
                     // Generating href element
                     XML.addChildElement("D:href");
@@ -19,9 +19,14 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -31,6 +36,7 @@ import org.slf4j.LoggerFactory;
 
 import com.ricardolorenzo.file.io.IOStreamUtils;
 import com.ricardolorenzo.file.lock.FileLockException;
+import com.ricardolorenzo.icalendar.VAction;
 import com.ricardolorenzo.icalendar.VCalendar;
 import com.ricardolorenzo.icalendar.VCalendarException;
 import com.ricardolorenzo.icalendar.VEvent;
@@ -45,8 +51,12 @@ import com.ricardolorenzo.network.http.caldav.security.acl.CalDAVPrivilegeCollec
 import com.ricardolorenzo.network.http.caldav.security.acl.CalDAVResourceACL;
 import com.ricardolorenzo.network.http.caldav.session.CalDAVTransaction;
 import com.ricardolorenzo.network.http.caldav.store.CalDAVStore;
+import com.ricardolorenzo.network.http.caldav.store.HomeUIDIndex;
+import com.ricardolorenzo.network.http.caldav.store.SeriesIndex;
 import com.ricardolorenzo.network.http.caldav.store.StoredObject;
 import com.ricardolorenzo.network.http.caldav.store.VCalendarCache;
+import com.ricardolorenzo.network.http.caldav.store.VCalendarIndex;
+import com.ricardolorenzo.network.http.caldav.store.VCalendarWriter;
 
 public class PUT extends CalDAVAbstractMethod {
 	private final Logger logger = LoggerFactory.getLogger(getClass());
@@ -158,6 +168,19 @@ public class PUT extends CalDAVAbstractMethod {
                 if (path.endsWith(".ics")) {
                     String calendarPath = parentPath.concat("/calendar.ics");
                     File _f = new File(this._store.getRootPath() + calendarPath);
+                    VCalendarIndex _index = VCalendarIndex.getIndex(_f);
+                    if ("*".equals(req.getHeader("If-None-Match"))) {
+                        /*
+                         * Create only, the object must not exists
+                         */
+                        String uid = path.substring(path.lastIndexOf("/") + 1);
+                        uid = uid.substring(0, uid.length() - 4);
+                        if (_index.getEntry(uid) != null) {
+                            resp.sendError(CalDAVResponse.SC_PRECONDITION_FAILED);
+                            return;
+                        }
+                    }
+
                     InputStream is = req.getInputStream();
                     ByteArrayOutputStream os = new ByteArrayOutputStream();
                     IOStreamUtils.write(is, os);
@@ -165,8 +188,23 @@ public class PUT extends CalDAVAbstractMethod {
                     IOStreamUtils.closeQuietly(is);
                     IOStreamUtils.closeQuietly(os);
 
-                    VCalendar _vc = VCalendarCache.getVCalendar(_f);
                     VCalendar _req_vc = new VCalendar(new ByteArrayInputStream(buffer));
+                    HomeUIDIndex _home = HomeUIDIndex.getIndex(_f);
+                    String _collection = HomeUIDIndex.getCollectionName(_f);
+                    for (String uid : getUids(_req_vc)) {
+                        String _other = _home.findCollection(uid);
+                        if (_other != null && !_other.equals(_collection)) {
+                            /*
+                             * The UID must be unique in the calendar home
+                             */
+                            sendPreconditionError(resp, CalDAVResponse.SC_FORBIDDEN, "C:no-uid-conflict", "/caldav"
+                                    + getParentPath(parentPath) + "/" + _other + "/" + uid + ".ics");
+                            return;
+                        }
+                    }
+
+                    SeriesIndex _series = SeriesIndex.getIndex(_f);
+                    VCalendar _vc = VCalendarCache.getVCalendar(_f);
                     for (VEvent ve : _req_vc.getVevents()) {
                         if (!ve.hasLastModified()) {
                             ve.setLastModified(Calendar.getInstance());
@@ -181,8 +219,21 @@ public class PUT extends CalDAVAbstractMethod {
                     }
 
                     VCalendarCache.putVCalendar(_vc, _f);
-                    this._store.setResourceContent(transaction, calendarPath, new ByteArrayInputStream(_vc.toString()
-                            .getBytes()), "text/calendar", null);
+                    VCalendarWriter.write(_vc, this._store, transaction, calendarPath);
+
+                    /*
+                     * The master and its overridden instances are indexed together
+                     */
+                    Map<String, List<VAction>> _objects = getVActions(_vc, getUids(_req_vc));
+                    for (Map.Entry<String, List<VAction>> _object : _objects.entrySet()) {
+                        _index.putVActions(_object.getKey(), _object.getValue(), _vc.getTimeZone());
+                    }
+                    long revision = _index.commit();
+                    _series.update(getComponents(_objects), revision);
+                    for (String uid : _objects.keySet()) {
+                        _home.put(uid, _collection);
+                    }
+                    _home.commit();
                 } else {
                     length = this._store.setResourceContent(transaction, path, req.getInputStream(), null, null);
                 }
@@ -222,6 +273,58 @@ public class PUT extends CalDAVAbstractMethod {
         }
     }
 
+    /*
+     * The components of the objects on the calendar, by UID, in a single pass
+     */
+    private static Map<String, List<VAction>> getVActions(VCalendar vc, List<String> uids) {
+        Map<String, List<VAction>> objects = new LinkedHashMap<String, List<VAction>>();
+        for (String uid : uids) {
+            objects.put(uid, new ArrayList<VAction>());
+        }
+        for (VEvent ve : vc.getVevents()) {
+            List<VAction> components = objects.get(ve.getUid());
+            if (components != null) {
+                components.add(ve);
+            }
+        }
+        for (VTodo vt : vc.getVtodos()) {
+            List<VAction> components = objects.get(vt.getUid());
+            if (components != null) {
+                components.add(vt);
+            }
+        }
+        return objects;
+    }
+
+    /*
+     * The components of the objects, as written on the calendar
+     */
+    private static Map<String, List<String>> getComponents(Map<String, List<VAction>> objects) {
+        Map<String, List<String>> components = new LinkedHashMap<String, List<String>>();
+        for (Map.Entry<String, List<VAction>> object : objects.entrySet()) {
+            List<String> list = new ArrayList<String>(object.getValue().size());
+            for (VAction va : object.getValue()) {
+                list.add(va.toString());
+            }
+            components.put(object.getKey(), list);
+        }
+        return components;
+    }
+
+    /*
+     * The master and its overridden instances share the UID, it is listed once
+     */
+    private static List<String> getUids(VCalendar vc) {
+        Set<String> uids = new LinkedHashSet<String>();
+        for (VEvent ve : vc.getVevents()) {
+            uids.add(ve.getUid());
+        }
+        for (VTodo vt : vc.getVtodos()) {
+            uids.add(vt.getUid());
+        }
+        return new ArrayList<String>(uids);
+    }
+
     /**
      * @param resp
      */
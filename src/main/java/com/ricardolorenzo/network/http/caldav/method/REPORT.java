@@ -16,42 +16,57 @@ package com.ricardolorenzo.network.http.caldav.method;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.Calendar;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.xml.sax.SAXException;
 
 import com.ricardolorenzo.file.lock.FileLockException;
-import com.ricardolorenzo.file.xml.XMLReader;
-import com.ricardolorenzo.file.xml.XMLWriter;
-import com.ricardolorenzo.icalendar.DateTime;
-import com.ricardolorenzo.icalendar.Period;
-import com.ricardolorenzo.icalendar.Person;
 import com.ricardolorenzo.icalendar.VAction;
 import com.ricardolorenzo.icalendar.VCalendar;
 import com.ricardolorenzo.icalendar.VCalendarException;
 import com.ricardolorenzo.icalendar.VEvent;
-import com.ricardolorenzo.icalendar.VFreeBusy;
 import com.ricardolorenzo.icalendar.VTimeZone;
 import com.ricardolorenzo.icalendar.VTodo;
 import com.ricardolorenzo.network.http.caldav.AccessDeniedException;
 import com.ricardolorenzo.network.http.caldav.CalDAVResponse;
 import com.ricardolorenzo.network.http.caldav.locking.LockException;
 import com.ricardolorenzo.network.http.caldav.locking.ResourceLocksMap;
+import com.ricardolorenzo.network.http.caldav.query.CalendarQuery;
+import com.ricardolorenzo.network.http.caldav.query.QueryContext;
+import com.ricardolorenzo.network.http.caldav.query.QueryPlan;
 import com.ricardolorenzo.network.http.caldav.security.acl.CalDAVResourceACL;
 import com.ricardolorenzo.network.http.caldav.session.CalDAVTransaction;
 import com.ricardolorenzo.network.http.caldav.store.CalDAVStore;
+import com.ricardolorenzo.network.http.caldav.store.CalendarData;
+import com.ricardolorenzo.network.http.caldav.store.ICalendarComponent;
+import com.ricardolorenzo.network.http.caldav.store.ICalendarDates;
+import com.ricardolorenzo.network.http.caldav.store.SeriesIndex;
+import com.ricardolorenzo.network.http.caldav.store.VActionEntry;
+import com.ricardolorenzo.network.http.caldav.store.VActionSeries;
 import com.ricardolorenzo.network.http.caldav.store.VCalendarCache;
+import com.ricardolorenzo.network.http.caldav.store.VCalendarIndex;
+import com.ricardolorenzo.network.http.caldav.xml.MultiStatusWriter;
+import com.ricardolorenzo.network.http.caldav.xml.ReportRequest;
 
 /**
  * @author Ricardo Lorenzo
@@ -62,11 +77,64 @@ public class REPORT extends CalDAVAbstractMethod {
     private CalDAVStore _store;
     private ResourceLocksMap _resource_locks;
     private CalDAVResourceACL resource_acl;
-    private boolean expand = false;
+    private ExecutorService _executor;
+    private int _max_results;
+    public static final int DEFAULT_THREADS = 4;
+    private static final int MULTIGET_BATCH = 256;
+
+    private static class ReportEntry {
+        private String href;
+        private String eTag;
+        private String cTag;
+        private CalendarData data;
+
+        private ReportEntry(String href, String eTag, String cTag, CalendarData data) {
+            this.href = href;
+            this.eTag = eTag;
+            this.cTag = cTag;
+            this.data = data;
+        }
+    }
 
     public REPORT(CalDAVStore store, ResourceLocksMap resLocks) {
+        this(store, resLocks, DEFAULT_THREADS);
+    }
+
+    /**
+     * @param threads
+     *            Maximum number of collections evaluated at the same time for the queries on a
+     *            calendar home
+     */
+    public REPORT(CalDAVStore store, ResourceLocksMap resLocks, int threads) {
+        this(store, resLocks, threads, 0);
+    }
+
+    /**
+     * @param threads
+     *            Maximum number of collections evaluated at the same time for the queries on a
+     *            calendar home
+     * @param maxResults
+     *            Maximum number of objects sent by a query, or <code>0</code> for no limit
+     */
+    public REPORT(CalDAVStore store, ResourceLocksMap resLocks, int threads, int maxResults) {
         this._store = store;
+        this._max_results = maxResults;
         this._resource_locks = resLocks;
+        final AtomicInteger count = new AtomicInteger();
+        this._executor = Executors.newFixedThreadPool(threads > 0 ? threads : DEFAULT_THREADS, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "caldav-report-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Stops the threads used by the queries.
+     */
+    public void shutdown() {
+        this._executor.shutdownNow();
     }
 
     public void execute(CalDAVTransaction transaction, HttpServletRequest req, HttpServletResponse resp)
@@ -77,10 +145,22 @@ public class REPORT extends CalDAVAbstractMethod {
         if (this._resource_locks.lock(transaction, path, tempLockOwner, false, 0, TEMP_TIMEOUT, TEMPORARY)) {
             try {
                 if (req.getContentLength() > 0) {
+                    ReportRequest request;
+                    try {
+                        request = ReportRequest.parse(req.getInputStream());
+                    } catch (XMLStreamException e) {
+                    	logger.error("report", e);
+                        resp.sendError(CalDAVResponse.SC_BAD_REQUEST);
+                        return;
+                    }
+
                     resp.setStatus(CalDAVResponse.SC_MULTI_STATUS);
                     resp.setContentType("application/xml; charset=UTF-8");
 
-                    XMLWriter XML = new XMLWriter();
+                    /*
+                     * The responses are written as they are found, with chunked encoding
+                     */
+                    MultiStatusWriter XML = new MultiStatusWriter(resp.getOutputStream());
                     XML.setNameSpace("DAV:", "D");
                     XML.setNameSpace("urn:ietf:params:xml:ns:caldav", "C");
                     XML.setNameSpace("http://calendarserver.org/ns/", "CS");
@@ -88,87 +168,32 @@ public class REPORT extends CalDAVAbstractMethod {
                     XML.addChildElement("D:multistatus");
 
                     try {
-                        Document document = XMLReader.getDocument(req.getInputStream());
-                        Element rootElement = document.getDocumentElement();
-
-                        if ("calendar-query".equals(rootElement.getLocalName())) {
-                            Calendar start = null, end = null;
-                            Node filter = XMLReader.findFirstSubElement(rootElement, "calendar-data");
-                            if (filter != null) {
-                                if (!XMLReader.getChildElements(filter, "expand").isEmpty()) {
-                                    this.expand = true;
-                                }
-                            }
-                            filter = XMLReader.findFirstSubElement(rootElement, "filter");
-                            if (filter != null) {
-                                for (Node n : XMLReader.getAllChildElements(filter, "comp-filter")) {
-                                    String type = ((Element) n).getAttribute("name");
-                                    if (type == null
-                                            || (!type.toUpperCase().equals("VEVENT") && !type.toUpperCase().equals(
-                                                    "VTODO"))) {
-                                        continue;
-                                    }
-                                    if (n.hasChildNodes()) {
-                                        for (Node nn : XMLReader.getChildElements(n)) {
-                                            Element e = (Element) nn;
-                                            if ("time-range".equals(nn.getLocalName())) {
-                                                Period p = null;
-                                                if (e.hasAttribute("start") && e.hasAttribute("end")) {
-                                                    start = DateTime.getCalendarFromString(null,
-                                                            e.getAttribute("start"));
-                                                    end = DateTime.getCalendarFromString(null, e.getAttribute("end"));
-                                                    p = new Period(start, end);
-                                                }
-                                                processPeriodCalendarActions(transaction, path, p, XML, type);
-                                            } else if ("prop-filter".equals(nn.getLocalName())) {
-                                                String subtype = ((Element) nn).getAttribute("name");
-                                                for (Node nnn : XMLReader.getChildElements(nn)) {
-                                                    if ("text-match".equals(nnn.getLocalName())) {
-                                                        processCalendarActions(transaction, path, nnn.getTextContent(),
-                                                                XML, type, subtype);
-                                                    }
-                                                }
-                                            }
-                                        }
-                                    } else {
-                                        processCalendarActions(transaction, path, null, XML, type);
-                                    }
-                                }
-                            }
-                        } else if ("calendar-multiget".equals(rootElement.getLocalName())) {
-                            for (Node calendar : XMLReader.getChildElements(rootElement, "href")) {
-                                processGet(transaction, calendar.getTextContent(), XML);
-                            }
+                        if (ReportRequest.CALENDAR_QUERY.equals(request.getName())) {
+                            processCalendarQuery(transaction, path, getDepth(req), request.getQuery(),
+                                    request.getProperties(), getLimit(request), isTimeZonesIncluded(req), XML);
+                        } else if (ReportRequest.CALENDAR_MULTIGET.equals(request.getName())) {
+                            processMultiget(transaction, request, isTimeZonesIncluded(req), XML);
                         }
-                    } catch (IOException e) {
+                    } catch (XMLStreamException e) {
                     	logger.error("report", e);
-                        resp.sendError(CalDAVResponse.SC_INTERNAL_SERVER_ERROR);
-                        return;
-                    } catch (SAXException e) {
-                    	logger.error("report", e);
-                        resp.sendError(CalDAVResponse.SC_INTERNAL_SERVER_ERROR);
-                        return;
                     } catch (VCalendarException e) {
                     	logger.error("report", e);
-                        resp.sendError(CalDAVResponse.SC_INTERNAL_SERVER_ERROR);
-                        return;
                     } catch (FileLockException e) {
                     	logger.error("report", e);
-                        resp.sendError(CalDAVResponse.SC_INTERNAL_SERVER_ERROR);
-                        return;
+                    } finally {
+                        request.close();
                     }
 
                     XML.closeElement();
-                    XML.write(resp.getOutputStream());
+                    XML.close();
                 }
             } catch (AccessDeniedException e) {
                 resp.sendError(CalDAVResponse.SC_FORBIDDEN);
             } catch (IOException e) {
             	logger.error("report", e);
-                resp.sendError(CalDAVResponse.SC_INTERNAL_SERVER_ERROR);
-            } catch (ParserConfigurationException e) {
-            	logger.error("report", e);
-                resp.sendError(CalDAVResponse.SC_INTERNAL_SERVER_ERROR);
+                if (!resp.isCommitted()) {
+                    resp.sendError(CalDAVResponse.SC_INTERNAL_SERVER_ERROR);
+                }
             } finally {
                 this._resource_locks.unlockTemporaryLockedObjects(transaction, path, tempLockOwner);
             }
@@ -179,216 +204,369 @@ public class REPORT extends CalDAVAbstractMethod {
         }
     }
 
-    private void processPeriodCalendarActions(CalDAVTransaction transaction, String path, Period p, XMLWriter XML,
-            String type) throws VCalendarException, IOException, FileLockException {
-        if ("VFREEBUSY".equals(type)) {
-            String[] names = this._store.getChildrenNames(transaction, path);
-            if (names != null) {
-                for (String name : names) {
-                    processCalendarActions(transaction, path + (path.endsWith("/") ? "" : "/") + name, p, XML, type);
-                }
-            } else {
-                processCalendarActions(transaction, path, p, XML, type);
-            }
-        } else {
-            processCalendarActions(transaction, path, p, XML, type);
+    /*
+     * The smallest of the requested and the server limits, or -1 if there is no limit
+     */
+    private int getLimit(ReportRequest request) {
+        int limit = request.getLimit();
+        if (this._max_results > 0 && (limit < 0 || limit > this._max_results)) {
+            limit = this._max_results;
         }
+        return limit;
     }
 
-    private void processCalendarActions(CalDAVTransaction transaction, String path, Period p, XMLWriter XML, String type)
-            throws VCalendarException, IOException, FileLockException {
+    /*
+     * Verify if the calendar data was requested, a request without properties gets all of them
+     */
+    private static boolean isDataRequested(List<String> properties) {
+        return properties.isEmpty() || properties.contains("C:calendar-data");
+    }
+
+    private void processCalendarQuery(CalDAVTransaction transaction, String path, int depth,
+            final CalendarQuery query, List<String> properties, int limit, boolean timezones,
+            MultiStatusWriter XML) throws VCalendarException, IOException, FileLockException {
+        /*
+         * One more object than the limit is evaluated to know if the result is truncated
+         */
+        final int evaluated = limit < 0 ? -1 : limit + 1;
+        final boolean data = isDataRequested(properties);
         String href = path + "/calendar.ics";
         File _f = new File(this._store.getRootPath() + href);
         if (_f.exists()) {
-            String eTag = getETag(this._store.getStoredObject(transaction, href));
-            String cTag = getCTag(this._store.getStoredObject(transaction, href));
-            if (!"VFREEBUSY".equals(type)) {
+            try {
+                this.resource_acl = this._store.getResourceACL(transaction, href);
+                this.resource_acl.getPrivilegeCollection().checkPrincipalPrivilege(transaction.getPrincipal(),
+                        "read");
+            } catch (AccessDeniedException e) {
+                return;
+            }
+            List<ReportEntry> entries = processCalendarQuery(path, _f, query, data, evaluated);
+            if (printEntries(XML, entries, properties, timezones, limit) < entries.size()) {
+                printTruncated(XML, "/caldav" + path, limit);
+            }
+        } else if (depth > 0) {
+            /*
+             * Calendar home, every child calendar is evaluated on its own thread
+             */
+            CompletionService<List<ReportEntry>> _cs = new ExecutorCompletionService<List<ReportEntry>>(
+                    this._executor);
+            List<Future<List<ReportEntry>>> futures = new ArrayList<Future<List<ReportEntry>>>();
+            Map<Future<List<ReportEntry>>, String> hrefs = new HashMap<Future<List<ReportEntry>>, String>();
+            for (String name : this._store.getChildrenNames(transaction, path)) {
+                final String _path = path + (path.endsWith("/") ? "" : "/") + name;
+                final File _cf = new File(this._store.getRootPath() + _path + "/calendar.ics");
+                if (!_cf.exists()) {
+                    continue;
+                }
                 try {
-                    this.resource_acl = this._store.getResourceACL(transaction, href);
-                    this.resource_acl.getPrivilegeCollection().checkPrincipalPrivilege(transaction.getPrincipal(),
-                            "read");
+                    this._store.getResourceACL(transaction, _path + "/calendar.ics").getPrivilegeCollection()
+                            .checkPrincipalPrivilege(transaction.getPrincipal(), "read");
                 } catch (AccessDeniedException e) {
-                    return;
+                    continue;
                 }
-            }
-
-            VCalendar vc = VCalendarCache.getVCalendar(_f);
-            if ("VEVENT".equals(type)) {
-                if (p == null) {
-                    for (VEvent ve : vc.getVevents()) {
-                        if (ve == null) {
-                            continue;
-                        }
-                        printVAction(XML, path, eTag, cTag, vc.getTimeZone(), ve);
+                Future<List<ReportEntry>> future = _cs.submit(new Callable<List<ReportEntry>>() {
+                    public List<ReportEntry> call() throws Exception {
+                        return processCalendarQuery(_path, _cf, query, data, evaluated);
                     }
-                } else {
-                    if (this.expand) {
-                        for (VEvent ve : vc.getRecurrentVevents(p)) {
-                            if (ve == null) {
-                                continue;
-                            }
-                            printVAction(XML, path, eTag, cTag, vc.getTimeZone(), ve);
-                        }
-                    } else {
-                        for (VEvent ve : vc.getVevents(p)) {
-                            if (ve == null) {
-                                continue;
-                            }
-                            printVAction(XML, path, eTag, cTag, vc.getTimeZone(), ve);
-                        }
-                    }
-                }
-            } else if ("VTODO".equals(type)) {
-                if (p == null) {
-                    for (VTodo vt : vc.getVtodos()) {
-                        if (vt == null) {
-                            continue;
-                        }
-                        printVAction(XML, path, eTag, cTag, vc.getTimeZone(), vt);
-                    }
-                } else {
-                    if (this.expand) {
-                        for (VTodo vt : vc.getRecurrentVtodos(p)) {
-                            if (vt == null) {
-                                continue;
-                            }
-                            printVAction(XML, path, eTag, cTag, vc.getTimeZone(), vt);
-                        }
-                    } else {
-                        for (VTodo vt : vc.getVtodos(p)) {
-                            if (vt == null) {
-                                continue;
-                            }
-                            printVAction(XML, path, eTag, cTag, vc.getTimeZone(), vt);
+                });
+                futures.add(future);
+                hrefs.put(future, "/caldav" + _path);
+            }
+            int printed = 0;
+            for (int tasks = futures.size(); tasks > 0; tasks--) {
+                Future<List<ReportEntry>> future = null;
+                try {
+                    future = _cs.take();
+                    List<ReportEntry> entries = future.get();
+                    int count = printEntries(XML, entries, properties, timezones, limit < 0 ? -1 : limit - printed);
+                    printed += count;
+                    if (count < entries.size()) {
+                        /*
+                         * The collections not evaluated yet are not needed
+                         */
+                        for (Future<List<ReportEntry>> _future : futures) {
+                            _future.cancel(true);
                         }
+                        printTruncated(XML, "/caldav" + path, printed);
+                        break;
                     }
-                }
-            } else if ("VFREEBUSY".equals(type)) {
-                if (p != null) {
-                    VFreeBusy _vfb = vc.getVFreeBusy(p);
-                    _vfb.setOrganizer("", new Person("CN=" + transaction.getPrincipal().getName(), Person.ORGANIZER));
-                    printVFreeBusy(XML, path, eTag, vc.getTimeZone(), _vfb);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("report interrupted");
+                } catch (ExecutionException e) {
+                    logger.error("report", e.getCause());
+                    /*
+                     * The calendar is not left out silently
+                     */
+                    printStatus(XML, Collections.singletonList(hrefs.get(future)),
+                            CalDAVResponse.SC_INTERNAL_SERVER_ERROR);
                 }
             }
         }
     }
 
-    private void processCalendarActions(CalDAVTransaction transaction, String path, String match, XMLWriter XML,
-            String type, String subtype) {
-        String href = path + "/calendar.ics";
-        try {
-            this.resource_acl = this._store.getResourceACL(transaction, href);
-            this.resource_acl.getPrivilegeCollection().checkPrincipalPrivilege(transaction.getPrincipal(), "read");
-        } catch (AccessDeniedException e) {
-            return;
+    /*
+     * Without calendar data, the entries only have the ETag and the objects are not rendered
+     */
+    private List<ReportEntry> processCalendarQuery(String path, File _f, CalendarQuery query, boolean data,
+            int limit) throws VCalendarException, IOException, FileLockException {
+        String cTag = getCTag(_f);
+        VCalendarIndex index = VCalendarIndex.getIndex(_f);
+        QueryPlan plan = QueryPlan.plan(query, index);
+        SeriesIndex series = SeriesIndex.getIndex(_f);
+        List<ReportEntry> entries = new ArrayList<ReportEntry>();
+        QueryContext context = new QueryContext(_f, index, query.isExpand());
+        if (!query.isExpand()) {
+            String _path = path.endsWith("/") ? path : path.concat("/");
+            List<String> uids = data ? null : plan.execute(index, limit);
+            if (uids == null) {
+                /*
+                 * The calendar is only loaded if the index cannot answer for some object
+                 */
+                uids = plan.executeUids(context, limit);
+            }
+            for (String uid : uids) {
+                VActionEntry _entry = index.getEntry(uid);
+                if (_entry == null) {
+                    continue;
+                } else if (!data) {
+                    entries.add(new ReportEntry(_path + uid + ".ics", series.getETag(_entry), cTag, null));
+                    continue;
+                }
+                ReportEntry entry = getEntry(path, series, cTag, _entry);
+                if (entry == null) {
+                    VAction va = context.getVAction(_entry.getType(), uid);
+                    if (va == null) {
+                        continue;
+                    }
+                    entry = getEntry(path, getETag(index, series, va), cTag, context.getVCalendar().getTimeZone(),
+                            va);
+                }
+                entries.add(entry);
+            }
+            return entries;
         }
+        /*
+         * The expanded instances are sent on their own, with the ETag of the whole object
+         */
+        VCalendar vc = context.getVCalendar();
+        for (VAction va : plan.execute(context, limit)) {
+            VActionSeries _series = series.getSeries(va.getUid());
+            ReportEntry entry = _series != null ? getOverride(path, cTag, _series, va, context) : null;
+            if (entry == null) {
+                entry = getEntry(path, getETag(index, series, va), cTag, vc.getTimeZone(), va);
+            }
+            entries.add(entry);
+        }
+        return entries;
+    }
 
-        File _f = new File(this._store.getRootPath() + href);
-        if (_f.exists()) {
-            String eTag = getETag(this._store.getStoredObject(transaction, href));
-            String cTag = getCTag(this._store.getStoredObject(transaction, href));
-            try {
-                VCalendar vc = VCalendarCache.getVCalendar(_f);
-                if ("VEVENT".equals(type)) {
-                    if ("UID".equals(subtype)) {
-                        VEvent ve = vc.getVevent(match);
-                        if (ve != null) {
-                            printVAction(XML, path, eTag, cTag, vc.getTimeZone(), ve);
-                        }
+    /*
+     * The hrefs are read by batches and grouped by collection. Every collection is checked and
+     * loaded once for all its hrefs, and the collections of a batch are evaluated on their own
+     * threads. The batches are answered before reading the rest of the body.
+     */
+    private void processMultiget(CalDAVTransaction transaction, ReportRequest request, final boolean timezones,
+            MultiStatusWriter XML) throws XMLStreamException, IOException {
+        final List<String> properties = request.getProperties();
+        for (boolean more = true; more;) {
+            Map<String, List<String>> groups = new LinkedHashMap<String, List<String>>();
+            int count = 0;
+            for (; count < MULTIGET_BATCH; count++) {
+                String href = request.nextHref();
+                if (href == null) {
+                    break;
+                }
+                String calendarPath = getCalendarPath(href);
+                List<String> hrefs = groups.get(calendarPath);
+                if (hrefs == null) {
+                    hrefs = new ArrayList<String>();
+                    groups.put(calendarPath, hrefs);
+                }
+                hrefs.add(href);
+            }
+            more = count == MULTIGET_BATCH;
+
+            CompletionService<List<ReportEntry>> _cs = new ExecutorCompletionService<List<ReportEntry>>(
+                    this._executor);
+            Map<Future<List<ReportEntry>>, List<String>> hrefs = new HashMap<Future<List<ReportEntry>>, List<String>>();
+            for (final Entry<String, List<String>> group : groups.entrySet()) {
+                final File _f = new File(this._store.getRootPath() + group.getKey());
+                if (!_f.exists()) {
+                    continue;
+                }
+                try {
+                    this._store.getResourceACL(transaction, group.getKey()).getPrivilegeCollection()
+                            .checkPrincipalPrivilege(transaction.getPrincipal(), "read");
+                } catch (AccessDeniedException e) {
+                    continue;
+                }
+                if (groups.size() == 1) {
+                    try {
+                        printEntries(XML, processMultiget(_f, group.getValue(), properties), properties, timezones, -1);
+                    } catch (VCalendarException e) {
+                        logger.error("report", e);
+                        printStatus(XML, group.getValue(), CalDAVResponse.SC_INTERNAL_SERVER_ERROR);
+                    } catch (FileLockException e) {
+                        logger.error("report", e);
+                        printStatus(XML, group.getValue(), CalDAVResponse.SC_INTERNAL_SERVER_ERROR);
                     }
-                } else if ("VTODO".equals(type)) {
-                    if ("UID".equals(subtype)) {
-                        VTodo vt = vc.getVtodo(match);
-                        if (vt != null) {
-                            printVAction(XML, path, eTag, cTag, vc.getTimeZone(), vt);
-                        }
+                    continue;
+                }
+                Future<List<ReportEntry>> future = _cs.submit(new Callable<List<ReportEntry>>() {
+                    public List<ReportEntry> call() throws Exception {
+                        return processMultiget(_f, group.getValue(), properties);
                     }
+                });
+                hrefs.put(future, group.getValue());
+            }
+            for (int tasks = hrefs.size(); tasks > 0; tasks--) {
+                Future<List<ReportEntry>> future = null;
+                try {
+                    future = _cs.take();
+                    printEntries(XML, future.get(), properties, timezones, -1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("report interrupted");
+                } catch (ExecutionException e) {
+                    logger.error("report", e.getCause());
+                    /*
+                     * Every href of the failed calendar gets the error
+                     */
+                    printStatus(XML, hrefs.get(future), CalDAVResponse.SC_INTERNAL_SERVER_ERROR);
                 }
-            } catch (IOException e) {
-            	logger.error("report", e);
-                // nothing
-            } catch (VCalendarException e) {
-            	logger.error("report", e);
-                // nothing
-            } catch (FileLockException e) {
-            	logger.error("report", e);
-                // nothing
             }
         }
     }
 
-    private void processGet(CalDAVTransaction transaction, String path, XMLWriter XML) throws IOException {
-        String href = path.substring(0, path.lastIndexOf("/"));
-        while (href.endsWith(".ics")) {
-            href = href.substring(0, href.lastIndexOf("/"));
-        }
-        if (href.startsWith("/caldav")) {
-            href = href.substring(7);
-        }
-        href = href.concat("/calendar.ics");
-        try {
-            this.resource_acl = this._store.getResourceACL(transaction, href);
-            this.resource_acl.getPrivilegeCollection().checkPrincipalPrivilege(transaction.getPrincipal(), "read");
-        } catch (AccessDeniedException e) {
-            return;
-        }
-
-        File _f = new File(this._store.getRootPath() + href);
-        if (_f.exists()) {
-            String eTag = getETag(this._store.getStoredObject(transaction, href));
-            String cTag = getCTag(this._store.getStoredObject(transaction, href));
-            String uid = path.substring(path.lastIndexOf("/") + 1);
+    /*
+     * The hrefs of a collection, resolved on a single load of the indexes and the calendar
+     */
+    private List<ReportEntry> processMultiget(File _f, List<String> hrefs, List<String> properties)
+            throws VCalendarException, IOException, FileLockException {
+        List<ReportEntry> entries = new ArrayList<ReportEntry>(hrefs.size());
+        String cTag = getCTag(_f);
+        boolean data = isDataRequested(properties);
+        VCalendarIndex index = null;
+        SeriesIndex series = null;
+        VCalendar vc = null;
+        for (String href : hrefs) {
+            String uid = href.substring(href.lastIndexOf("/") + 1);
             if (uid.endsWith(".ics")) {
                 uid = uid.substring(0, uid.length() - 4);
             }
-
-            try {
-                VCalendar vc = VCalendarCache.getVCalendar(_f);
-                try {
-                    VEvent ve = vc.getVevent(uid);
-                    if (ve != null) {
-                        printVAction(XML, path, eTag, cTag, vc.getTimeZone(), ve);
+            /*
+             * The missing objects are skipped before the index is loaded
+             */
+            if (!VCalendarIndex.mightContain(_f, uid)) {
+                continue;
+            }
+            if (index == null) {
+                index = VCalendarIndex.getIndex(_f);
+                series = SeriesIndex.getIndex(_f);
+            }
+            VActionEntry _entry = index.getEntry(uid);
+            ReportEntry entry;
+            if (!data) {
+                if (_entry == null) {
+                    continue;
+                }
+                entry = new ReportEntry(href, series.getETag(_entry), cTag, null);
+            } else {
+                /*
+                 * The objects rendered on the index are sent without loading the calendar
+                 */
+                entry = getEntry(href, series, cTag, _entry);
+                if (entry == null) {
+                    if (vc == null) {
+                        vc = VCalendarCache.getVCalendar(_f);
                     }
-                } catch (VCalendarException e) {
-                    VTodo vt = vc.getVtodo(uid);
-                    if (vt != null) {
-                        printVAction(XML, path, eTag, cTag, vc.getTimeZone(), vt);
+                    VAction va = vc.hasVevent(uid) ? vc.getVevent(uid) : (vc.hasVtodo(uid) ? vc.getVtodo(uid) : null);
+                    if (va == null) {
+                        continue;
                     }
+                    entry = getEntry(href, getETag(index, series, va), cTag, vc.getTimeZone(), va);
                 }
-            } catch (VCalendarException e) {
-            	logger.error("report", e);
-                // nothing
-            } catch (FileLockException e) {
-            	logger.error("report", e);
-                // nothing
             }
+            entry.href = href;
+            entries.add(entry);
         }
+        return entries;
     }
 
-    private static void printVAction(XMLWriter XML, String path, String eTag, String cTag, VTimeZone tz, VAction va)
-            throws VCalendarException {
+    /*
+     * The calendar resource of an object href
+     */
+    private static String getCalendarPath(String href) {
+        String path = href.substring(0, Math.max(0, href.lastIndexOf("/")));
+        while (path.endsWith(".ics")) {
+            path = path.substring(0, path.lastIndexOf("/"));
+        }
+        if (path.startsWith("/caldav")) {
+            path = path.substring(7);
+        }
+        return path.concat("/calendar.ics");
+    }
+
+    /*
+     * Entry with the series or the object as rendered on the index, or null if the object was not
+     * rendered
+     */
+    private static ReportEntry getEntry(String path, SeriesIndex series, String cTag, VActionEntry entry) {
+        if (entry == null) {
+            return null;
+        }
         if (!path.endsWith("/")) {
             path = path.concat("/");
         }
 
-        XML.addChildElement("D:response");
-
-        XML.addChildElement("D:href");
-        XML.setTextContent(path + va.getUid() + ".ics");
-        XML.closeElement();
-
-        XML.addChildElement("D:propstat");
-        XML.addChildElement("D:prop");
+        VActionSeries _series = series.getSeries(entry.getUid());
+        if (_series != null) {
+            return new ReportEntry(path + entry.getUid() + ".ics", _series.getETag(), cTag, _series.getCalendar());
+        } else if (entry.getData() != null) {
+            return new ReportEntry(path + entry.getUid() + ".ics", entry.getETag(), cTag, entry.getData());
+        }
+        return null;
+    }
 
-        XML.addChildElement("D:getetag");
-        XML.setTextContent(eTag);
-        XML.closeElement();
+    /*
+     * The overridden instances of an expanded series are replaced by their override, found by the
+     * start of the instance
+     */
+    private static ReportEntry getOverride(String path, String cTag, VActionSeries series, VAction va,
+            QueryContext context) throws VCalendarException {
+        ICalendarComponent component = ICalendarComponent.parse(va.toString());
+        if (component == null) {
+            return null;
+        }
+        Long start = ICalendarDates.getTime(component.getProperty("DTSTART"), context.getTimeZones());
+        CalendarData data = start != null ? series.getInstance(start) : null;
+        if (data == null) {
+            return null;
+        }
+        if (!path.endsWith("/")) {
+            path = path.concat("/");
+        }
+        return new ReportEntry(path + va.getUid() + ".ics", series.getETag(), cTag, data);
+    }
 
-        XML.addChildElement("CS:getctag");
-        XML.setTextContent(cTag);
-        XML.closeElement();
+    /*
+     * The ETag of the whole series if the object has overridden instances, as sent by the other
+     * methods
+     */
+    private static String getETag(VCalendarIndex index, SeriesIndex series, VAction va) {
+        VActionSeries _series = series.getSeries(va.getUid());
+        if (_series != null) {
+            return _series.getETag();
+        }
+        return index.getETag(va);
+    }
 
-        XML.addChildElement("C:calendar-data");
+    private static ReportEntry getEntry(String path, String eTag, String cTag, VTimeZone tz, VAction va)
+            throws VCalendarException {
+        if (!path.endsWith("/")) {
+            path = path.concat("/");
+        }
 
         VCalendar vcal = new VCalendar();
         vcal.setTimeZone(tz);
@@ -397,64 +575,94 @@ public class REPORT extends CalDAVAbstractMethod {
         } else if (va instanceof VTodo) {
             vcal.addVtodo((VTodo) va);
         }
-        XML.setDataContent(vcal.toString());
-
-        XML.closeElement();
-
-        XML.addChildElement("D:status");
-        XML.setTextContent(new String("HTTP/1.1 " + CalDAVResponse.SC_OK + " "
-                + CalDAVResponse.getStatusText(CalDAVResponse.SC_OK)));
-        XML.closeElement();
-
-        XML.closeElement();
-
-        XML.closeElement();
-
-        XML.closeElement();
+        return new ReportEntry(path + va.getUid() + ".ics", eTag, cTag, CalendarData.parse(vcal.toString()));
     }
 
-    private static void printVFreeBusy(XMLWriter XML, String path, String eTag, VTimeZone tz, VFreeBusy vfb) {
-        if (!path.endsWith("/")) {
-            path = path.concat("/");
+    /*
+     * Prints the entries up to the limit, -1 for all of them, and returns the number printed
+     */
+    private static int printEntries(MultiStatusWriter XML, List<ReportEntry> entries, List<String> properties,
+            boolean timezones, int limit) {
+        int count = 0;
+        for (ReportEntry entry : entries) {
+            if (limit >= 0 && count >= limit) {
+                break;
+            }
+            printEntry(XML, entry, properties, timezones);
+            count++;
         }
+        return count;
+    }
 
+    /*
+     * Prints the requested properties of the entry, or all of them if the request has no
+     * properties. The properties not supported by the report are sent as not found. The calendar
+     * data is written by pieces, the shared time zones are left out for the clients that get them
+     * by reference.
+     */
+    private static void printEntry(MultiStatusWriter XML, ReportEntry entry, List<String> properties,
+            boolean timezones) {
+        boolean all = properties.isEmpty();
         XML.addChildElement("D:response");
 
         XML.addChildElement("D:href");
-        XML.setTextContent(path + "calendar.ics");
+        XML.setTextContent(entry.href);
         XML.closeElement();
 
         XML.addChildElement("D:propstat");
         XML.addChildElement("D:prop");
 
-        XML.addChildElement("D:getetag");
-        XML.setTextContent(eTag);
-        XML.closeElement();
-
-        XML.addChildElement("C:calendar-data");
+        if (all || properties.contains("D:getetag")) {
+            XML.addChildElement("D:getetag");
+            XML.setTextContent(entry.eTag);
+            XML.closeElement();
+        }
 
-        StringBuilder _sb = new StringBuilder();
-        _sb.append("BEGIN:VCALENDAR\n");
-        _sb.append("VERSION:" + VCalendar.version + "\n");
-        _sb.append("PRODID:" + VCalendar.prodid + "\n");
-        if (tz != null) {
-            _sb.append(tz.toString());
+        if (all || properties.contains("CS:getctag")) {
+            XML.addChildElement("CS:getctag");
+            XML.setTextContent(entry.cTag);
+            XML.closeElement();
         }
-        _sb.append(vfb.toString());
-        _sb.append("END:VCALENDAR\n");
 
-        XML.setDataContent(_sb.toString());
+        if ((all || properties.contains("C:calendar-data")) && entry.data != null) {
+            XML.addChildElement("C:calendar-data");
+            for (String piece : entry.data.getPieces(timezones)) {
+                if (piece.length() > 0) {
+                    XML.setDataContent(piece);
+                }
+            }
+            XML.closeElement();
+        }
 
         XML.closeElement();
 
         XML.addChildElement("D:status");
-        XML.setTextContent(new String("HTTP/1.1 " + CalDAVResponse.SC_OK + " "
-                + CalDAVResponse.getStatusText(CalDAVResponse.SC_OK)));
+        XML.setTextContent(CalDAVResponse.getStatusLine(CalDAVResponse.SC_OK));
         XML.closeElement();
 
         XML.closeElement();
 
-        XML.closeElement();
+        List<String> notFound = new ArrayList<String>();
+        for (String property : properties) {
+            if (!"D:getetag".equals(property) && !"CS:getctag".equals(property)
+                    && !"C:calendar-data".equals(property) && property.indexOf(':') != -1) {
+                notFound.add(property);
+            }
+        }
+        if (!notFound.isEmpty()) {
+            XML.addChildElement("D:propstat");
+            XML.addChildElement("D:prop");
+            for (String property : notFound) {
+                XML.addProperty(property);
+            }
+            XML.closeElement();
+
+            XML.addChildElement("D:status");
+            XML.setTextContent(CalDAVResponse.getStatusLine(CalDAVResponse.SC_NOT_FOUND));
+            XML.closeElement();
+
+            XML.closeElement();
+        }
 
         XML.closeElement();
     }
@@ -0,0 +1,85 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ricardolorenzo.network.http.caldav.query;
+
+import com.ricardolorenzo.icalendar.VAction;
+import com.ricardolorenzo.icalendar.VCalendarException;
+import com.ricardolorenzo.network.http.caldav.store.ICalendarComponent;
+
+/**
+ * A <code>C:calendar-query</code> report request (RFC 4791 7.8).
+ *
+ * @author Ricardo Lorenzo
+ *
+ */
+public class CalendarQuery {
+    private CompFilter filter;
+    private boolean expand;
+
+    public CalendarQuery(CompFilter filter, boolean expand) {
+        this.filter = filter;
+        this.expand = expand;
+    }
+
+    /**
+     * Gets the <code>VCALENDAR</code> filter of the query.
+     *
+     * @return The filter or <code>null</code> if the query has no filter
+     */
+    public CompFilter getFilter() {
+        return this.filter;
+    }
+
+    public boolean isExpand() {
+        return this.expand;
+    }
+
+    /**
+     * Verify if the calendar object matches the query filter.
+     *
+     * @param va
+     *            Calendar object
+     * @param context
+     *            Query context
+     */
+    public boolean matches(VAction va, QueryContext context) throws VCalendarException {
+        if (this.filter == null || !"VCALENDAR".equals(this.filter.getName())) {
+            return false;
+        }
+        ICalendarComponent component = ICalendarComponent.parse(va.toString());
+        if (component == null) {
+            return false;
+        }
+        ICalendarComponent vcalendar = new ICalendarComponent("VCALENDAR");
+        vcalendar.addComponent(component);
+        vcalendar.setTimeZones(context.getTimeZones());
+        return this.filter.matches(vcalendar, null, context);
+    }
+
+    /**
+     * Verify if the calendar object resource matches the query filter.
+     *
+     * @param vcalendar
+     *            <code>VCALENDAR</code> component of the calendar object
+     * @param context
+     *            Query context
+     */
+    public boolean matches(ICalendarComponent vcalendar, QueryContext context) {
+        if (this.filter == null || !"VCALENDAR".equals(this.filter.getName())) {
+            return false;
+        }
+        return this.filter.matches(vcalendar, null, context);
+    }
+}
@@ -0,0 +1,158 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ricardolorenzo.network.http.caldav.query;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import com.ricardolorenzo.network.http.caldav.store.ICalendarComponent;
+import com.ricardolorenzo.network.http.caldav.xml.RequestReader;
+
+/**
+ * The <code>C:comp-filter</code> element of a calendar query (RFC 4791 9.7.1).
+ *
+ * @author Ricardo Lorenzo
+ *
+ */
+public class CompFilter {
+    private String name;
+    private boolean isNotDefined;
+    private boolean anyOf;
+    private TimeRange timeRange;
+    private List<PropFilter> propFilters;
+    private List<CompFilter> compFilters;
+
+    public CompFilter(String name) {
+        this.name = name.toUpperCase();
+        this.propFilters = new ArrayList<PropFilter>();
+        this.compFilters = new ArrayList<CompFilter>();
+    }
+
+    /**
+     * Parses the filter.
+     *
+     * @param reader
+     *            Reader on the start of the <code>C:comp-filter</code> element, left on its end
+     * @return The filter
+     */
+    public static CompFilter parse(XMLStreamReader reader) throws XMLStreamException {
+        CompFilter filter = new CompFilter(RequestReader.getAttribute(reader, "name"));
+        filter.anyOf = "anyof".equals(RequestReader.getAttribute(reader, "test"));
+        while (RequestReader.nextChild(reader)) {
+            String name = reader.getLocalName();
+            if ("time-range".equals(name)) {
+                filter.timeRange = TimeRange.parse(reader);
+            } else if ("prop-filter".equals(name)) {
+                filter.propFilters.add(PropFilter.parse(reader));
+            } else if ("comp-filter".equals(name)) {
+                filter.compFilters.add(CompFilter.parse(reader));
+            } else {
+                if ("is-not-defined".equals(name)) {
+                    filter.isNotDefined = true;
+                }
+                RequestReader.skip(reader);
+            }
+        }
+        return filter;
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    public boolean isNotDefined() {
+        return this.isNotDefined;
+    }
+
+    public boolean isAnyOf() {
+        return this.anyOf;
+    }
+
+    public TimeRange getTimeRange() {
+        return this.timeRange;
+    }
+
+    public List<PropFilter> getPropFilters() {
+        return this.propFilters;
+    }
+
+    public List<CompFilter> getCompFilters() {
+        return this.compFilters;
+    }
+
+    /**
+     * Verify if the filter has no tests, so any component with the name matches.
+     */
+    public boolean isEmpty() {
+        return this.timeRange == null && this.propFilters.isEmpty() && this.compFilters.isEmpty();
+    }
+
+    /**
+     * Verify if the component matches the filter.
+     *
+     * @param component
+     *            Component with the same name as the filter
+     * @param parent
+     *            Parent component or <code>null</code>
+     * @param context
+     *            Query context, used to evaluate the time ranges of the recurrent components
+     */
+    public boolean matches(ICalendarComponent component, ICalendarComponent parent, QueryContext context) {
+        if (isEmpty()) {
+            return true;
+        }
+        if (this.timeRange != null) {
+            boolean result;
+            if (context != null && parent != null && "VCALENDAR".equals(parent.getName())
+                    && component.getValue("UID") != null) {
+                result = context.isInTimeRange(this.name, this.timeRange, component);
+            } else {
+                result = this.timeRange.matches(component, parent);
+            }
+            if (result == this.anyOf) {
+                return result;
+            }
+        }
+        for (PropFilter filter : this.propFilters) {
+            boolean result = filter.matches(component);
+            if (result == this.anyOf) {
+                return result;
+            }
+        }
+        for (CompFilter filter : this.compFilters) {
+            boolean result = filter.matchesChildren(component, context);
+            if (result == this.anyOf) {
+                return result;
+            }
+        }
+        return !this.anyOf;
+    }
+
+    private boolean matchesChildren(ICalendarComponent parent, QueryContext context) {
+        List<ICalendarComponent> components = parent.getComponents(this.name);
+        if (this.isNotDefined) {
+            return components.isEmpty();
+        }
+        for (ICalendarComponent component : components) {
+            if (matches(component, parent, context)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,86 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ricardolorenzo.network.http.caldav.query;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import com.ricardolorenzo.network.http.caldav.store.ICalendarProperty;
+import com.ricardolorenzo.network.http.caldav.xml.RequestReader;
+
+/**
+ * The <code>C:param-filter</code> element of a calendar query (RFC 4791 9.7.3).
+ *
+ * @author Ricardo Lorenzo
+ *
+ */
+public class ParamFilter {
+    private String name;
+    private boolean isNotDefined;
+    private TextMatch textMatch;
+
+    public ParamFilter(String name) {
+        this.name = name.toUpperCase();
+    }
+
+    /**
+     * Parses the filter.
+     *
+     * @param reader
+     *            Reader on the start of the <code>C:param-filter</code> element, left on its end
+     * @return The filter
+     */
+    public static ParamFilter parse(XMLStreamReader reader) throws XMLStreamException {
+        ParamFilter filter = new ParamFilter(RequestReader.getAttribute(reader, "name"));
+        while (RequestReader.nextChild(reader)) {
+            if ("text-match".equals(reader.getLocalName())) {
+                filter.textMatch = TextMatch.parse(reader);
+            } else {
+                if ("is-not-defined".equals(reader.getLocalName())) {
+                    filter.isNotDefined = true;
+                }
+                RequestReader.skip(reader);
+            }
+        }
+        return filter;
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    public boolean matches(ICalendarProperty property) {
+        return matches(property.getParameter(this.name));
+    }
+
+    /**
+     * Verify if the parameter value matches the filter.
+     *
+     * @param value
+     *            Parameter value or <code>null</code> if the parameter is not defined
+     */
+    public boolean matches(String value) {
+        if (this.isNotDefined) {
+            return value == null;
+        }
+        if (value == null) {
+            return false;
+        }
+        if (this.textMatch != null) {
+            return this.textMatch.matches(value);
+        }
+        return true;
+    }
+}
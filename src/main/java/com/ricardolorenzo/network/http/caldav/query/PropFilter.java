@@ -0,0 +1,191 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ricardolorenzo.network.http.caldav.query;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import com.ricardolorenzo.network.http.caldav.store.ICalendarComponent;
+import com.ricardolorenzo.network.http.caldav.store.ICalendarDates;
+import com.ricardolorenzo.network.http.caldav.store.ICalendarProperty;
+import com.ricardolorenzo.network.http.caldav.store.ParticipantEntry;
+import com.ricardolorenzo.network.http.caldav.xml.RequestReader;
+
+/**
+ * The <code>C:prop-filter</code> element of a calendar query (RFC 4791 9.7.2).
+ *
+ * @author Ricardo Lorenzo
+ *
+ */
+public class PropFilter {
+    private String name;
+    private boolean isNotDefined;
+    private boolean anyOf;
+    private TimeRange timeRange;
+    private TextMatch textMatch;
+    private List<ParamFilter> paramFilters;
+
+    public PropFilter(String name) {
+        this.name = name.toUpperCase();
+        this.paramFilters = new ArrayList<ParamFilter>();
+    }
+
+    /**
+     * Parses the filter.
+     *
+     * @param reader
+     *            Reader on the start of the <code>C:prop-filter</code> element, left on its end
+     * @return The filter
+     */
+    public static PropFilter parse(XMLStreamReader reader) throws XMLStreamException {
+        PropFilter filter = new PropFilter(RequestReader.getAttribute(reader, "name"));
+        filter.anyOf = "anyof".equals(RequestReader.getAttribute(reader, "test"));
+        while (RequestReader.nextChild(reader)) {
+            String name = reader.getLocalName();
+            if ("time-range".equals(name)) {
+                filter.timeRange = TimeRange.parse(reader);
+            } else if ("text-match".equals(name)) {
+                filter.textMatch = TextMatch.parse(reader);
+            } else if ("param-filter".equals(name)) {
+                filter.paramFilters.add(ParamFilter.parse(reader));
+            } else {
+                if ("is-not-defined".equals(name)) {
+                    filter.isNotDefined = true;
+                }
+                RequestReader.skip(reader);
+            }
+        }
+        return filter;
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    public boolean isNotDefined() {
+        return this.isNotDefined;
+    }
+
+    public boolean isAnyOf() {
+        return this.anyOf;
+    }
+
+    public TimeRange getTimeRange() {
+        return this.timeRange;
+    }
+
+    public TextMatch getTextMatch() {
+        return this.textMatch;
+    }
+
+    public List<ParamFilter> getParamFilters() {
+        return this.paramFilters;
+    }
+
+    /**
+     * Verify if the filter selects participants that can be looked up by their address in the
+     * collection index. The text match must be required and the parameter filters only on the
+     * indexed <code>PARTSTAT</code> and <code>ROLE</code> parameters.
+     */
+    public boolean isParticipantLookup() {
+        if (!ParticipantEntry.ATTENDEE.equals(this.name) && !ParticipantEntry.ORGANIZER.equals(this.name)) {
+            return false;
+        }
+        if (this.isNotDefined || this.timeRange != null || this.textMatch == null || this.textMatch.isNegate()) {
+            return false;
+        }
+        if (this.anyOf && !this.paramFilters.isEmpty()) {
+            return false;
+        }
+        for (ParamFilter filter : this.paramFilters) {
+            if (!"PARTSTAT".equals(filter.getName()) && !"ROLE".equals(filter.getName())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Verify if the indexed participant matches the filter. Only valid when
+     * <code>isParticipantLookup()</code> is <code>true</code>.
+     *
+     * @param participant
+     *            Participant of the collection index
+     */
+    public boolean matches(ParticipantEntry participant) {
+        if (!this.name.equals(participant.getProperty())) {
+            return false;
+        }
+        if (!this.textMatch.matches(participant.getValue())) {
+            return false;
+        }
+        for (ParamFilter filter : this.paramFilters) {
+            if (!filter.matches(participant.getParameter(filter.getName()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Verify if the filter has no other test than the text match.
+     */
+    public boolean isTextMatchOnly() {
+        return !this.isNotDefined && this.textMatch != null && this.timeRange == null
+                && this.paramFilters.isEmpty();
+    }
+
+    public boolean matches(ICalendarComponent component) {
+        List<ICalendarProperty> properties = component.getProperties(this.name);
+        if (this.isNotDefined) {
+            return properties.isEmpty();
+        }
+        for (ICalendarProperty property : properties) {
+            if (matches(property, component)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean matches(ICalendarProperty property, ICalendarComponent component) {
+        if (this.timeRange == null && this.textMatch == null && this.paramFilters.isEmpty()) {
+            return true;
+        }
+        if (this.timeRange != null) {
+            Long time = ICalendarDates.getTime(property, component.getTimeZones());
+            boolean result = time != null && this.timeRange.contains(time);
+            if (result == this.anyOf) {
+                return result;
+            }
+        }
+        if (this.textMatch != null) {
+            boolean result = this.textMatch.matches(property.getValue());
+            if (result == this.anyOf) {
+                return result;
+            }
+        }
+        for (ParamFilter filter : this.paramFilters) {
+            boolean result = filter.matches(property);
+            if (result == this.anyOf) {
+                return result;
+            }
+        }
+        return !this.anyOf;
+    }
+}
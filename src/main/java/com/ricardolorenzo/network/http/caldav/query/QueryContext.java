@@ -0,0 +1,243 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ricardolorenzo.network.http.caldav.query;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ricardolorenzo.file.lock.FileLockException;
+import com.ricardolorenzo.icalendar.VAction;
+import com.ricardolorenzo.icalendar.VCalendar;
+import com.ricardolorenzo.icalendar.VCalendarException;
+import com.ricardolorenzo.network.http.caldav.store.CalendarData;
+import com.ricardolorenzo.network.http.caldav.store.ICalendarComponent;
+import com.ricardolorenzo.network.http.caldav.store.TimeZoneRegistry;
+import com.ricardolorenzo.network.http.caldav.store.VActionEntry;
+import com.ricardolorenzo.network.http.caldav.store.VCalendarCache;
+import com.ricardolorenzo.network.http.caldav.store.VCalendarIndex;
+
+/**
+ * Access to the calendar objects of a collection during the execution of a query.
+ *
+ * The time ranges are checked first against the bounds of the objects in the collection index.
+ * Only the recurrent objects that may overlap a range go through the calendar, and the result of
+ * that lookup is kept, so every range is resolved once against the calendar.
+ *
+ * The calendar is loaded the first time it is needed. The objects rendered on the index are
+ * checked against the filters from their stored data, without loading the calendar.
+ *
+ * @author Ricardo Lorenzo
+ *
+ */
+public class QueryContext {
+    private final static Logger logger = LoggerFactory.getLogger(QueryContext.class);
+    private File vcalendar_file;
+    private VCalendar vcalendar;
+    private VCalendarIndex index;
+    private boolean expand;
+    private Map<TimeRange, Set<String>> ranges;
+    private Map<String, TimeZone> timezones;
+
+    public QueryContext(File vcalendar_file, VCalendarIndex index, boolean expand) {
+        this.vcalendar_file = vcalendar_file;
+        this.index = index;
+        this.expand = expand;
+        this.ranges = new IdentityHashMap<TimeRange, Set<String>>();
+    }
+
+    /**
+     * Gets the calendar, loading it the first time.
+     *
+     * @return Calendar
+     */
+    public VCalendar getVCalendar() throws VCalendarException {
+        if (this.vcalendar == null) {
+            try {
+                this.vcalendar = VCalendarCache.getVCalendar(this.vcalendar_file);
+            } catch (IOException e) {
+                logger.error("query calendar=" + this.vcalendar_file.getAbsolutePath(), e);
+                throw new VCalendarException("cannot read calendar [" + this.vcalendar_file.getAbsolutePath() + "]");
+            } catch (FileLockException e) {
+                logger.error("query calendar=" + this.vcalendar_file.getAbsolutePath(), e);
+                throw new VCalendarException("cannot read calendar [" + this.vcalendar_file.getAbsolutePath() + "]");
+            }
+        }
+        return this.vcalendar;
+    }
+
+    public VCalendarIndex getIndex() {
+        return this.index;
+    }
+
+    public boolean isExpand() {
+        return this.expand;
+    }
+
+    /**
+     * Gets the time zones defined by the calendar, used to read the dates of its objects.
+     *
+     * @return The time zones by <code>TZID</code>
+     */
+    public Map<String, TimeZone> getTimeZones() throws VCalendarException {
+        if (this.timezones == null) {
+            VCalendar _vc = new VCalendar();
+            _vc.setTimeZone(getVCalendar().getTimeZone());
+            this.timezones = TimeZoneRegistry.getTimeZones(_vc.toString());
+        }
+        return this.timezones;
+    }
+
+    /**
+     * Gets the calendar object as stored on the index, with the time zones of the calendar.
+     *
+     * @param uid
+     *            Calendar object UID
+     * @return The <code>VCALENDAR</code> component of the object, or <code>null</code> if the
+     *         object is not rendered on the index
+     */
+    public ICalendarComponent getComponent(String uid) {
+        VActionEntry entry = this.index.getEntry(uid);
+        if (entry == null || entry.getData() == null) {
+            return null;
+        }
+        CalendarData data = entry.getData();
+        ICalendarComponent component = ICalendarComponent.parse(data.toString());
+        if (component != null) {
+            component.setTimeZones(TimeZoneRegistry.getTimeZones(data.getTimeZones()));
+        }
+        return component;
+    }
+
+    /**
+     * Gets all the calendar objects of the type.
+     *
+     * @param type
+     *            <code>VEVENT</code> or <code>VTODO</code>
+     */
+    public List<? extends VAction> getVActions(String type) throws VCalendarException {
+        if (VActionEntry.VEVENT.equals(type)) {
+            return getVCalendar().getVevents();
+        } else if (VActionEntry.VTODO.equals(type)) {
+            return getVCalendar().getVtodos();
+        }
+        return new ArrayList<VAction>();
+    }
+
+    /**
+     * Gets the calendar objects of the type that overlap the time range, or their instances if the
+     * query expands the recurrences.
+     *
+     * @param type
+     *            <code>VEVENT</code> or <code>VTODO</code>
+     * @param range
+     *            Time range
+     */
+    public List<? extends VAction> getVActions(String type, TimeRange range) throws VCalendarException {
+        List<? extends VAction> result;
+        if (VActionEntry.VEVENT.equals(type)) {
+            if (this.expand) {
+                result = getVCalendar().getRecurrentVevents(range.getPeriod());
+            } else {
+                result = getVCalendar().getVevents(range.getPeriod());
+            }
+        } else if (VActionEntry.VTODO.equals(type)) {
+            if (this.expand) {
+                result = getVCalendar().getRecurrentVtodos(range.getPeriod());
+            } else {
+                result = getVCalendar().getVtodos(range.getPeriod());
+            }
+        } else {
+            result = new ArrayList<VAction>();
+        }
+        if (!this.ranges.containsKey(range)) {
+            Set<String> uids = new HashSet<String>();
+            for (VAction va : result) {
+                if (va != null) {
+                    uids.add(va.getUid());
+                }
+            }
+            this.ranges.put(range, uids);
+        }
+        return result;
+    }
+
+    /**
+     * Gets a calendar object.
+     *
+     * @param type
+     *            <code>VEVENT</code> or <code>VTODO</code>
+     * @param uid
+     *            Calendar object UID
+     * @return The calendar object or <code>null</code> if it does not exists
+     */
+    public VAction getVAction(String type, String uid) {
+        try {
+            VCalendar vc = getVCalendar();
+            if (VActionEntry.VEVENT.equals(type) && vc.hasVevent(uid)) {
+                return vc.getVevent(uid);
+            } else if (VActionEntry.VTODO.equals(type) && vc.hasVtodo(uid)) {
+                return vc.getVtodo(uid);
+            }
+        } catch (VCalendarException e) {
+            logger.error("query uid=" + uid, e);
+        }
+        return null;
+    }
+
+    /**
+     * Verify if the calendar object, including its recurrences, overlaps the time range.
+     *
+     * @param type
+     *            <code>VEVENT</code> or <code>VTODO</code>
+     * @param range
+     *            Time range
+     * @param component
+     *            Calendar object
+     */
+    public boolean isInTimeRange(String type, TimeRange range, ICalendarComponent component) {
+        String uid = component.getValue("UID");
+        VActionEntry entry = this.index.getEntry(uid);
+        if (entry != null) {
+            if (!entry.mayOverlap(range.getStart(), range.getEnd())) {
+                return false;
+            }
+            if (!entry.isRecurrent()) {
+                return range.matches(component, null);
+            }
+        }
+
+        Set<String> uids = this.ranges.get(range);
+        if (uids == null) {
+            try {
+                getVActions(type, range);
+            } catch (VCalendarException e) {
+                logger.error("query time-range", e);
+                this.ranges.put(range, new HashSet<String>());
+            }
+            uids = this.ranges.get(range);
+        }
+        return uids.contains(uid);
+    }
+}
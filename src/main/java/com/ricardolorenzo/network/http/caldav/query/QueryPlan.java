@@ -0,0 +1,524 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ricardolorenzo.network.http.caldav.query;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.ricardolorenzo.icalendar.VAction;
+import com.ricardolorenzo.icalendar.VCalendarException;
+import com.ricardolorenzo.network.http.caldav.store.ICalendarComponent;
+import com.ricardolorenzo.network.http.caldav.store.ParticipantEntry;
+import com.ricardolorenzo.network.http.caldav.store.VActionEntry;
+import com.ricardolorenzo.network.http.caldav.store.VCalendarIndex;
+
+/**
+ * Execution plan of a calendar query on a collection.
+ *
+ * For every component filter that can drive the query, the planner counts the candidates of each
+ * access path using the collection index and picks the cheapest one. The rest of the filter is
+ * evaluated on the candidates in a single pass, and skipped when the access path already covers
+ * the whole filter.
+ *
+ * The time range path selects the objects whose occurrence bounds overlap the range, so the
+ * recurrences are only resolved for the few objects that may match.
+ *
+ * The participant path looks up the <code>ATTENDEE</code> and <code>ORGANIZER</code> filters by
+ * calendar user address, checking the text and the <code>PARTSTAT</code> and <code>ROLE</code>
+ * parameters on the indexed participants.
+ *
+ * The todo filters are answered from the task index of the collection: the time ranges by the
+ * sorted bounds, and the <code>STATUS</code> and <code>COMPLETED</code> property filters by their
+ * indexed values. All of them are intersected in a single task step.
+ *
+ * @author Ricardo Lorenzo
+ *
+ */
+public class QueryPlan {
+    public static final int EMPTY = 0;
+    public static final int UID = 1;
+    public static final int TIME_RANGE = 2;
+    public static final int SCAN = 3;
+    public static final int PARTICIPANT = 4;
+    public static final int TASK = 5;
+
+    private CalendarQuery query;
+    private List<Step> steps;
+    private boolean residual;
+
+    private static class Step {
+        private String type;
+        private int access;
+        private long cost;
+        private CompFilter filter;
+        private List<String> uids;
+        private boolean covered;
+
+        private Step(String type, int access, long cost) {
+            this.type = type;
+            this.access = access;
+            this.cost = cost;
+        }
+    }
+
+    private QueryPlan(CalendarQuery query) {
+        this.query = query;
+        this.steps = new ArrayList<Step>();
+    }
+
+    /**
+     * Plans the query on a collection.
+     *
+     * @param query
+     *            Calendar query
+     * @param index
+     *            Collection index
+     * @return Query plan
+     */
+    public static QueryPlan plan(CalendarQuery query, VCalendarIndex index) {
+        QueryPlan plan = new QueryPlan(query);
+        CompFilter filter = query.getFilter();
+        if (filter == null || !"VCALENDAR".equals(filter.getName())) {
+            return plan;
+        }
+
+        List<VActionEntry> entries = index.getEntries();
+        List<CompFilter> drivers = new ArrayList<CompFilter>();
+        boolean scan = filter.getTimeRange() != null || !filter.getPropFilters().isEmpty();
+        for (CompFilter f : filter.getCompFilters()) {
+            if (f.isNotDefined()) {
+                scan = scan || filter.isAnyOf();
+            } else {
+                drivers.add(f);
+            }
+        }
+
+        if (drivers.isEmpty() || (scan && filter.isAnyOf())) {
+            /*
+             * Nothing restricts the candidates, every object must be checked
+             */
+            plan.steps.add(planScan(VActionEntry.VEVENT, entries));
+            plan.steps.add(planScan(VActionEntry.VTODO, entries));
+            plan.residual = !filter.isEmpty();
+        } else if (filter.isAnyOf()) {
+            plan.residual = false;
+            for (CompFilter f : drivers) {
+                Step step = planStep(f, index, entries, query.isExpand());
+                plan.steps.add(step);
+                plan.residual = plan.residual || !step.covered;
+            }
+        } else {
+            Step best = null;
+            for (CompFilter f : drivers) {
+                Step step = planStep(f, index, entries, query.isExpand());
+                if (best == null || step.cost < best.cost) {
+                    best = step;
+                }
+            }
+            plan.steps.add(best);
+            plan.residual = scan || filter.getCompFilters().size() > 1 || !best.covered;
+        }
+        return plan;
+    }
+
+    private static Step planScan(String type, List<VActionEntry> entries) {
+        return new Step(type, SCAN, count(type, entries));
+    }
+
+    private static Step planStep(CompFilter filter, VCalendarIndex index, List<VActionEntry> entries,
+            boolean expand) {
+        String type = filter.getName();
+        if (!VActionEntry.VEVENT.equals(type) && !VActionEntry.VTODO.equals(type)) {
+            /*
+             * The store only keeps events and todos
+             */
+            Step step = new Step(type, EMPTY, 0);
+            step.covered = true;
+            return step;
+        }
+
+        Step best = planScan(type, entries);
+        best.filter = filter;
+        int tests = filter.getPropFilters().size() + filter.getCompFilters().size()
+                + (filter.getTimeRange() != null ? 1 : 0);
+        if (!filter.isAnyOf() || tests == 1) {
+            Step task = null;
+            if (VActionEntry.VTODO.equals(type)) {
+                task = planTask(filter, index, expand);
+            }
+            if (filter.getTimeRange() != null && task == null) {
+                TimeRange range = filter.getTimeRange();
+                Step step = new Step(type, TIME_RANGE, 0);
+                step.uids = new ArrayList<String>();
+                for (VActionEntry entry : entries) {
+                    if (type.equals(entry.getType()) && entry.mayOverlap(range.getStart(), range.getEnd())) {
+                        step.uids.add(entry.getUid());
+                    }
+                }
+                step.cost = step.uids.size();
+                if (expand || step.cost < best.cost) {
+                    best = step;
+                }
+            }
+            for (PropFilter pf : filter.getPropFilters()) {
+                if ("UID".equals(pf.getName()) && pf.isTextMatchOnly() && !pf.getTextMatch().isNegate()) {
+                    Step step = new Step(type, UID, 0);
+                    step.uids = new ArrayList<String>();
+                    for (VActionEntry entry : entries) {
+                        if (type.equals(entry.getType()) && pf.getTextMatch().matches(entry.getUid())) {
+                            step.uids.add(entry.getUid());
+                        }
+                    }
+                    step.cost = step.uids.size();
+                    /*
+                     * Expanded queries must go through the time range to get the instances
+                     */
+                    if (step.cost < best.cost && !(expand && filter.getTimeRange() != null)) {
+                        best = step;
+                    }
+                } else if (pf.isParticipantLookup()) {
+                    Step step = planParticipant(type, pf, index);
+                    if (step.cost < best.cost && !(expand && filter.getTimeRange() != null)) {
+                        best = step;
+                    }
+                }
+            }
+            if (task != null && task.cost <= best.cost) {
+                best = task;
+            }
+        }
+
+        best.filter = filter;
+        /*
+         * The task steps know which tests they cover
+         */
+        if (!filter.getCompFilters().isEmpty()) {
+            best.covered = false;
+        } else if (best.access == SCAN) {
+            best.covered = filter.isEmpty();
+        } else if (best.access == TIME_RANGE) {
+            /*
+             * The bounds only discard objects, the expanded instances are the exact ones
+             */
+            best.covered = expand && filter.getPropFilters().isEmpty();
+        } else if (best.access == UID || best.access == PARTICIPANT) {
+            best.covered = filter.getTimeRange() == null && filter.getPropFilters().size() == 1;
+        }
+        return best;
+    }
+
+    private static Step planTask(CompFilter filter, VCalendarIndex index, boolean expand) {
+        if (expand && filter.getTimeRange() != null) {
+            return null;
+        }
+        Set<String> uids = null;
+        int indexed = 0;
+        if (filter.getTimeRange() != null) {
+            TimeRange range = filter.getTimeRange();
+            uids = new LinkedHashSet<String>(index.getTodoUids(range.getStart(), range.getEnd()));
+        }
+        for (PropFilter pf : filter.getPropFilters()) {
+            List<String> selected = getTodoUids(pf, index);
+            if (selected == null) {
+                continue;
+            }
+            indexed++;
+            if (uids == null) {
+                uids = new LinkedHashSet<String>(selected);
+            } else {
+                uids.retainAll(new HashSet<String>(selected));
+            }
+        }
+        if (uids == null) {
+            return null;
+        }
+        Step step = new Step(VActionEntry.VTODO, TASK, uids.size());
+        step.uids = new ArrayList<String>(uids);
+        /*
+         * The bounds only discard todos, the time range is checked again
+         */
+        step.covered = filter.getTimeRange() == null && indexed == filter.getPropFilters().size();
+        return step;
+    }
+
+    /*
+     * Todos that match a STATUS or COMPLETED property filter, or null if the index does not
+     * answer the filter
+     */
+    private static List<String> getTodoUids(PropFilter filter, VCalendarIndex index) {
+        boolean empty = filter.getTextMatch() == null && filter.getTimeRange() == null
+                && filter.getParamFilters().isEmpty();
+        if ("COMPLETED".equals(filter.getName())) {
+            if (filter.isNotDefined()) {
+                return index.getTodoUids(false);
+            } else if (empty) {
+                return index.getTodoUids(true);
+            } else if (filter.getTextMatch() == null && filter.getParamFilters().isEmpty()) {
+                TimeRange range = filter.getTimeRange();
+                return index.getCompletedTodoUids(range.getStart(), range.getEnd());
+            }
+        } else if ("STATUS".equals(filter.getName())) {
+            if (filter.isNotDefined()) {
+                return index.getTodoUids((String) null);
+            } else if (empty || filter.isTextMatchOnly()) {
+                List<String> uids = new ArrayList<String>();
+                for (String status : index.getTodoStatuses()) {
+                    if (empty || filter.getTextMatch().matches(status)) {
+                        uids.addAll(index.getTodoUids(status));
+                    }
+                }
+                return uids;
+            }
+        }
+        return null;
+    }
+
+    private static Step planParticipant(String type, PropFilter filter, VCalendarIndex index) {
+        Step step = new Step(type, PARTICIPANT, 0);
+        Set<String> uids = new LinkedHashSet<String>();
+        TextMatch match = filter.getTextMatch();
+        for (String address : index.getParticipantAddresses()) {
+            /*
+             * The addresses are normalized, the text is checked again on the written value
+             */
+            if (!match.mayMatch(address) && !match.mayMatch("mailto:".concat(address))) {
+                continue;
+            }
+            for (VActionEntry entry : index.getParticipantEntries(address)) {
+                if (!type.equals(entry.getType()) || uids.contains(entry.getUid())) {
+                    continue;
+                }
+                for (ParticipantEntry participant : entry.getParticipants()) {
+                    if (address.equals(participant.getAddress()) && filter.matches(participant)) {
+                        uids.add(entry.getUid());
+                        break;
+                    }
+                }
+            }
+        }
+        step.uids = new ArrayList<String>(uids);
+        step.cost = step.uids.size();
+        return step;
+    }
+
+    private static long count(String type, List<VActionEntry> entries) {
+        long count = 0;
+        for (VActionEntry entry : entries) {
+            if (type.equals(entry.getType())) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Gets the access path of the first step, as <code>QueryPlan.UID</code>
+     *
+     * @return Access path
+     */
+    public int getAccess() {
+        if (this.steps.isEmpty()) {
+            return EMPTY;
+        }
+        return this.steps.get(0).access;
+    }
+
+    /**
+     * Verify if the candidates are checked against the query filter.
+     */
+    public boolean hasResidual() {
+        return this.residual;
+    }
+
+    /**
+     * Executes the plan.
+     *
+     * @param context
+     *            Query context for the collection
+     * @return The calendar objects that match the query
+     */
+    public List<VAction> execute(QueryContext context) throws VCalendarException {
+        return execute(context, -1);
+    }
+
+    /**
+     * Executes the plan, stopping once the limit is reached.
+     *
+     * @param context
+     *            Query context for the collection
+     * @param limit
+     *            Maximum number of objects, or <code>-1</code> for all of them
+     * @return The calendar objects that match the query, up to the limit
+     */
+    public List<VAction> execute(QueryContext context, int limit) throws VCalendarException {
+        List<VAction> result = new ArrayList<VAction>();
+        Set<String> uids = new HashSet<String>();
+        for (Step step : this.steps) {
+            if (limit >= 0 && result.size() >= limit) {
+                break;
+            }
+            for (VAction va : getCandidates(step, context)) {
+                if (limit >= 0 && result.size() >= limit) {
+                    break;
+                }
+                if (va == null) {
+                    continue;
+                }
+                if (!context.isExpand() && !uids.add(va.getUid())) {
+                    continue;
+                }
+                if (this.residual && !this.query.matches(va, context)) {
+                    continue;
+                }
+                result.add(va);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Executes the plan on the collection index, without reading the calendar objects. Only the
+     * plans that do not check the candidates against the filter can be executed on the index.
+     *
+     * @param index
+     *            Collection index
+     * @param limit
+     *            Maximum number of objects, or <code>-1</code> for all of them
+     * @return The UIDs of the matching objects, up to the limit, or <code>null</code> if the
+     *         objects must be read
+     */
+    public List<String> execute(VCalendarIndex index, int limit) {
+        if (this.residual || this.query.isExpand()) {
+            return null;
+        }
+        for (Step step : this.steps) {
+            if (step.access == TIME_RANGE) {
+                return null;
+            }
+        }
+        Set<String> uids = new LinkedHashSet<String>();
+        for (Step step : this.steps) {
+            List<String> candidates;
+            if (step.access == SCAN) {
+                candidates = new ArrayList<String>();
+                for (VActionEntry entry : index.getEntries()) {
+                    candidates.add(entry.getUid());
+                }
+            } else if (step.uids != null) {
+                candidates = step.uids;
+            } else {
+                continue;
+            }
+            for (String uid : candidates) {
+                if (limit >= 0 && uids.size() >= limit) {
+                    return new ArrayList<String>(uids);
+                }
+                VActionEntry entry = index.getEntry(uid);
+                if (entry != null && step.type.equals(entry.getType())) {
+                    uids.add(uid);
+                }
+            }
+        }
+        return new ArrayList<String>(uids);
+    }
+
+    /**
+     * Executes the plan on the collection index, checking the candidates against the filter from
+     * the objects rendered on the index. The calendar is only loaded for the objects not rendered
+     * and for the time ranges of the recurrent objects. The plans that expand the recurrences must
+     * be executed on the calendar objects.
+     *
+     * @param context
+     *            Query context for the collection
+     * @param limit
+     *            Maximum number of objects, or <code>-1</code> for all of them
+     * @return The UIDs of the matching objects, up to the limit, or <code>null</code> if the query
+     *         expands the recurrences
+     */
+    public List<String> executeUids(QueryContext context, int limit) throws VCalendarException {
+        if (context.isExpand()) {
+            return null;
+        }
+        VCalendarIndex index = context.getIndex();
+        Set<String> uids = new LinkedHashSet<String>();
+        for (Step step : this.steps) {
+            List<String> candidates;
+            if (step.access == SCAN) {
+                candidates = new ArrayList<String>();
+                for (VActionEntry entry : index.getEntries()) {
+                    candidates.add(entry.getUid());
+                }
+            } else if (step.uids != null) {
+                candidates = step.uids;
+            } else {
+                continue;
+            }
+            for (String uid : candidates) {
+                if (limit >= 0 && uids.size() >= limit) {
+                    return new ArrayList<String>(uids);
+                }
+                VActionEntry entry = index.getEntry(uid);
+                if (entry == null || !step.type.equals(entry.getType()) || uids.contains(uid)) {
+                    continue;
+                }
+                if (this.residual && !matches(uid, step.type, context)) {
+                    continue;
+                }
+                uids.add(uid);
+            }
+        }
+        return new ArrayList<String>(uids);
+    }
+
+    private boolean matches(String uid, String type, QueryContext context) throws VCalendarException {
+        ICalendarComponent component = context.getComponent(uid);
+        if (component != null) {
+            return this.query.matches(component, context);
+        }
+        VAction va = context.getVAction(type, uid);
+        return va != null && this.query.matches(va, context);
+    }
+
+    private static List<? extends VAction> getCandidates(Step step, QueryContext context)
+            throws VCalendarException {
+        switch (step.access) {
+            case TIME_RANGE:
+                if (context.isExpand()) {
+                    return context.getVActions(step.type, step.filter.getTimeRange());
+                }
+                /*
+                 * Objects whose bounds overlap the range, checked later by the residual filter
+                 */
+            case UID:
+            case PARTICIPANT:
+            case TASK:
+                List<VAction> candidates = new ArrayList<VAction>();
+                for (String uid : step.uids) {
+                    VAction va = context.getVAction(step.type, uid);
+                    if (va != null) {
+                        candidates.add(va);
+                    }
+                }
+                return candidates;
+            case SCAN:
+                return context.getVActions(step.type);
+            default:
+                return new ArrayList<VAction>();
+        }
+    }
+}
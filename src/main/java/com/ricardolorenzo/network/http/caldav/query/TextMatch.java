@@ -0,0 +1,88 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ricardolorenzo.network.http.caldav.query;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import com.ricardolorenzo.network.http.caldav.xml.RequestReader;
+
+/**
+ * The <code>C:text-match</code> element of a calendar query (RFC 4791 9.7.5).
+ *
+ * @author Ricardo Lorenzo
+ *
+ */
+public class TextMatch {
+    public static final String ASCII_CASEMAP = "i;ascii-casemap";
+    public static final String OCTET = "i;octet";
+
+    private String text;
+    private String collation;
+    private boolean negate;
+
+    public TextMatch(String text, String collation, boolean negate) {
+        this.collation = collation == null || collation.isEmpty() ? ASCII_CASEMAP : collation;
+        this.negate = negate;
+        this.text = OCTET.equals(this.collation) ? text : text.toUpperCase();
+    }
+
+    /**
+     * Parses the text match.
+     *
+     * @param reader
+     *            Reader on the start of the <code>C:text-match</code> element, left on its end
+     * @return The text match
+     */
+    public static TextMatch parse(XMLStreamReader reader) throws XMLStreamException {
+        String collation = RequestReader.getAttribute(reader, "collation");
+        boolean negate = "yes".equals(RequestReader.getAttribute(reader, "negate-condition"));
+        return new TextMatch(RequestReader.getText(reader), collation, negate);
+    }
+
+    /**
+     * Verify if the value contains the text.
+     *
+     * @param value
+     *            Value
+     */
+    public boolean matches(String value) {
+        if (value == null) {
+            return this.negate;
+        }
+        if (!OCTET.equals(this.collation)) {
+            value = value.toUpperCase();
+        }
+        return value.contains(this.text) != this.negate;
+    }
+
+    /**
+     * Verify if the value contains the text, regardless of the case and the collation. The value
+     * may match this way and not with the collation, never the opposite.
+     *
+     * @param value
+     *            Value
+     */
+    public boolean mayMatch(String value) {
+        if (value == null) {
+            return this.negate;
+        }
+        return value.toUpperCase().contains(this.text.toUpperCase()) || this.negate;
+    }
+
+    public boolean isNegate() {
+        return this.negate;
+    }
+}
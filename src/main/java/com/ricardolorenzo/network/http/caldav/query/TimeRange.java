@@ -0,0 +1,259 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ricardolorenzo.network.http.caldav.query;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import com.ricardolorenzo.icalendar.Period;
+import com.ricardolorenzo.network.http.caldav.store.ICalendarComponent;
+import com.ricardolorenzo.network.http.caldav.store.ICalendarDates;
+import com.ricardolorenzo.network.http.caldav.store.ICalendarProperty;
+import com.ricardolorenzo.network.http.caldav.xml.RequestReader;
+
+/**
+ * The <code>C:time-range</code> element of a calendar query (RFC 4791 9.9). A missing bound means
+ * the range is open on that side.
+ *
+ * @author Ricardo Lorenzo
+ *
+ */
+public class TimeRange {
+    /*
+     * Bounds used for the library periods when the range is open
+     */
+    private static final long MIN_PERIOD = -2208988800000L;
+    private static final long MAX_PERIOD = 4102444800000L;
+    private static final long DAY = 86400000L;
+
+    private long start;
+    private long end;
+
+    public TimeRange(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * Parses the time range.
+     *
+     * @param reader
+     *            Reader on the start of the <code>C:time-range</code> element, left on its end
+     * @return The time range
+     */
+    public static TimeRange parse(XMLStreamReader reader) throws XMLStreamException {
+        long start = Long.MIN_VALUE, end = Long.MAX_VALUE;
+        String value = RequestReader.getAttribute(reader, "start");
+        if (!value.isEmpty()) {
+            Long time = ICalendarDates.getTime(value, ICalendarDates.UTC);
+            if (time != null) {
+                start = time;
+            }
+        }
+        value = RequestReader.getAttribute(reader, "end");
+        if (!value.isEmpty()) {
+            Long time = ICalendarDates.getTime(value, ICalendarDates.UTC);
+            if (time != null) {
+                end = time;
+            }
+        }
+        RequestReader.skip(reader);
+        return new TimeRange(start, end);
+    }
+
+    public long getStart() {
+        return this.start;
+    }
+
+    public long getEnd() {
+        return this.end;
+    }
+
+    /**
+     * Gets the range as a period for the calendar library.
+     *
+     * @return Period
+     */
+    public Period getPeriod() {
+        return new Period(ICalendarDates.getCalendar(Math.max(this.start, MIN_PERIOD)),
+                ICalendarDates.getCalendar(Math.min(this.end, MAX_PERIOD)));
+    }
+
+    /**
+     * Verify if the time is in the range.
+     *
+     * @param time
+     *            Time in milliseconds
+     */
+    public boolean contains(long time) {
+        return this.start <= time && this.end > time;
+    }
+
+    /**
+     * Verify if the interval overlaps the range.
+     *
+     * @param start
+     *            Interval start, in milliseconds
+     * @param end
+     *            Interval end, in milliseconds
+     */
+    public boolean overlaps(long start, long end) {
+        return this.start < end && this.end > start;
+    }
+
+    /**
+     * Verify if a non recurrent component overlaps the range, following the rules of the RFC 4791
+     * section 9.9.
+     *
+     * @param component
+     *            Component
+     * @param parent
+     *            The parent component, used by the alarms
+     */
+    public boolean matches(ICalendarComponent component, ICalendarComponent parent) {
+        String name = component.getName();
+        if ("VEVENT".equals(name)) {
+            return matchesEvent(component);
+        } else if ("VTODO".equals(name)) {
+            return matchesTodo(component);
+        } else if ("VJOURNAL".equals(name)) {
+            ICalendarProperty dtstart = component.getProperty("DTSTART");
+            Long start = ICalendarDates.getTime(dtstart, component.getTimeZones());
+            if (start == null) {
+                return false;
+            }
+            if (ICalendarDates.isDate(dtstart)) {
+                return overlaps(start, start + DAY);
+            }
+            return contains(start);
+        } else if ("VFREEBUSY".equals(name)) {
+            Long start = ICalendarDates.getTime(component.getProperty("DTSTART"), component.getTimeZones());
+            Long end = ICalendarDates.getTime(component.getProperty("DTEND"), component.getTimeZones());
+            if (start == null || end == null) {
+                return false;
+            }
+            return this.start <= end && this.end > start;
+        } else if ("VALARM".equals(name)) {
+            return matchesAlarm(component, parent);
+        }
+        return false;
+    }
+
+    private boolean matchesEvent(ICalendarComponent component) {
+        ICalendarProperty dtstart = component.getProperty("DTSTART");
+        Long start = ICalendarDates.getTime(dtstart, component.getTimeZones());
+        if (start == null) {
+            return false;
+        }
+        Long end = ICalendarDates.getTime(component.getProperty("DTEND"), component.getTimeZones());
+        if (end != null) {
+            return overlaps(start, end);
+        }
+        Long duration = ICalendarDates.getDuration(component.getValue("DURATION"));
+        if (duration != null) {
+            if (duration > 0) {
+                return overlaps(start, start + duration);
+            }
+            return contains(start);
+        }
+        if (ICalendarDates.isDate(dtstart)) {
+            return overlaps(start, start + DAY);
+        }
+        return contains(start);
+    }
+
+    private boolean matchesTodo(ICalendarComponent component) {
+        Long start = ICalendarDates.getTime(component.getProperty("DTSTART"), component.getTimeZones());
+        Long due = ICalendarDates.getTime(component.getProperty("DUE"), component.getTimeZones());
+        Long duration = ICalendarDates.getDuration(component.getValue("DURATION"));
+        if (start != null && duration != null) {
+            return this.start <= start + duration && (this.end > start || this.end >= start + duration);
+        } else if (start != null && due != null) {
+            return (this.start < due || this.start <= start) && (this.end > start || this.end >= due);
+        } else if (start != null) {
+            return this.start <= start && this.end > start;
+        } else if (due != null) {
+            return this.start < due && this.end >= due;
+        }
+        Long completed = ICalendarDates.getTime(component.getProperty("COMPLETED"), component.getTimeZones());
+        Long created = ICalendarDates.getTime(component.getProperty("CREATED"), component.getTimeZones());
+        if (completed != null && created != null) {
+            return (this.start <= created || this.start <= completed)
+                    && (this.end >= created || this.end >= completed);
+        } else if (completed != null) {
+            return this.start <= completed && this.end >= completed;
+        } else if (created != null) {
+            return this.end > created;
+        }
+        return true;
+    }
+
+    private boolean matchesAlarm(ICalendarComponent component, ICalendarComponent parent) {
+        ICalendarProperty trigger = component.getProperty("TRIGGER");
+        if (trigger == null) {
+            return false;
+        }
+        Long time;
+        if ("DATE-TIME".equalsIgnoreCase(trigger.getParameter("VALUE"))) {
+            time = ICalendarDates.getTime(trigger, component.getTimeZones());
+        } else {
+            Long offset = ICalendarDates.getDuration(trigger.getValue());
+            if (offset == null || parent == null) {
+                return false;
+            }
+            Long base;
+            if ("END".equalsIgnoreCase(trigger.getParameter("RELATED"))) {
+                base = ICalendarDates.getTime(parent.getProperty("DTEND"), parent.getTimeZones());
+                if (base == null) {
+                    base = ICalendarDates.getTime(parent.getProperty("DUE"), parent.getTimeZones());
+                }
+                if (base == null) {
+                    Long start = ICalendarDates.getTime(parent.getProperty("DTSTART"), parent.getTimeZones());
+                    Long duration = ICalendarDates.getDuration(parent.getValue("DURATION"));
+                    if (start != null && duration != null) {
+                        base = start + duration;
+                    }
+                }
+            } else {
+                base = ICalendarDates.getTime(parent.getProperty("DTSTART"), parent.getTimeZones());
+            }
+            if (base == null) {
+                return false;
+            }
+            time = base + offset;
+        }
+        if (time == null) {
+            return false;
+        }
+        if (contains(time)) {
+            return true;
+        }
+        Long interval = ICalendarDates.getDuration(component.getValue("DURATION"));
+        String repeat = component.getValue("REPEAT");
+        if (interval != null && interval > 0 && repeat != null) {
+            try {
+                int count = Integer.parseInt(repeat.trim());
+                for (int i = 1; i <= count; i++) {
+                    if (contains(time + (i * interval))) {
+                        return true;
+                    }
+                }
+            } catch (NumberFormatException e) {
+                // nothing
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,118 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ricardolorenzo.network.http.caldav.store;
+
+/**
+ * Bloom filter of strings. A negative answer is always right, a positive answer may be wrong with
+ * the false positive rate used to size the filter.
+ *
+ * @author Ricardo Lorenzo
+ *
+ */
+public class BloomFilter {
+    private static final double LN2 = Math.log(2);
+    private long[] bits;
+    private int size;
+    private int hashes;
+    private int capacity;
+    private int count;
+
+    /**
+     * @param capacity
+     *            Expected number of elements
+     * @param fpp
+     *            False positive rate, between 0 and 1
+     */
+    public BloomFilter(int capacity, double fpp) {
+        if (capacity < 1) {
+            capacity = 1;
+        }
+        if (fpp <= 0 || fpp >= 1) {
+            throw new IllegalArgumentException("invalid false positive rate [" + fpp + "]");
+        }
+        long size = (long) Math.ceil(-capacity * Math.log(fpp) / (LN2 * LN2));
+        if (size < 64) {
+            size = 64;
+        }
+        if (size > Integer.MAX_VALUE) {
+            size = Integer.MAX_VALUE;
+        }
+        this.size = (int) size;
+        this.hashes = Math.max(1, (int) Math.round((double) this.size / capacity * LN2));
+        this.bits = new long[(this.size + 63) >>> 6];
+        this.capacity = capacity;
+        this.count = 0;
+    }
+
+    /**
+     * Adds the value to the filter.
+     *
+     * @param value
+     *            Value
+     */
+    public void put(String value) {
+        long hash = hash(value);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < this.hashes; i++) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % this.size;
+            this.bits[bit >>> 6] |= 1L << bit;
+        }
+        this.count++;
+    }
+
+    /**
+     * Verify if the value may have been added to the filter.
+     *
+     * @param value
+     *            Value
+     * @return <code>false</code> if the value was never added
+     */
+    public boolean mightContain(String value) {
+        long hash = hash(value);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < this.hashes; i++) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % this.size;
+            if ((this.bits[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Verify if the filter holds more elements than it was sized for, so the false positive rate
+     * is no longer guaranteed.
+     */
+    public boolean isSaturated() {
+        return this.count > this.capacity;
+    }
+
+    /*
+     * 64 bits FNV-1a hash of the characters
+     */
+    private static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            hash ^= c & 0xff;
+            hash *= 0x100000001b3L;
+            hash ^= c >>> 8;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,151 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ricardolorenzo.network.http.caldav.store;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+
+/**
+ * Serialized calendar object resource, kept in three pieces: the calendar properties, the
+ * <code>VTIMEZONE</code> components and the rest of the calendar.
+ *
+ * The time zones are shared through the <code>TimeZoneRegistry</code>, and can be left out of
+ * the responses for the clients that get them by reference (RFC 7809) without scanning the text
+ * again.
+ *
+ * @author Ricardo Lorenzo
+ *
+ */
+public class CalendarData implements Serializable {
+    private static final long serialVersionUID = -2290853616520263186L;
+    private static final String BEGIN = "BEGIN:VTIMEZONE";
+    private static final String END = "END:VTIMEZONE";
+
+    private String start;
+    private String timezones;
+    private String end;
+
+    private CalendarData(String start, String timezones, String end) {
+        this.start = start;
+        this.timezones = TimeZoneRegistry.intern(timezones);
+        this.end = end;
+    }
+
+    /**
+     * Creates the calendar data from its pieces, already split.
+     *
+     * @param start
+     *            The calendar properties, from <code>BEGIN:VCALENDAR</code>
+     * @param timezones
+     *            The <code>VTIMEZONE</code> components or <code>null</code>
+     * @param end
+     *            The rest of the components and <code>END:VCALENDAR</code>
+     * @return The calendar data
+     */
+    public static CalendarData create(String start, String timezones, String end) {
+        return new CalendarData(start, timezones, end);
+    }
+
+    /**
+     * Splits a serialized calendar. The <code>VTIMEZONE</code> components must be written
+     * together, before the rest of the components.
+     *
+     * @param calendar
+     *            Serialized calendar
+     * @return The calendar data or <code>null</code> if the calendar is <code>null</code>
+     */
+    public static CalendarData parse(String calendar) {
+        if (calendar == null) {
+            return null;
+        }
+        int first = calendar.indexOf(BEGIN);
+        int last = calendar.lastIndexOf(END);
+        if (first < 0 || last < first || (first > 0 && calendar.charAt(first - 1) != '\n')) {
+            return new CalendarData(calendar, null, "");
+        }
+        last = calendar.indexOf('\n', last);
+        last = last < 0 ? calendar.length() : last + 1;
+        return new CalendarData(calendar.substring(0, first), calendar.substring(first, last),
+                calendar.substring(last));
+    }
+
+    /**
+     * Gets the pieces of the calendar, to be written one after the other.
+     *
+     * @param timezones
+     *            Include the <code>VTIMEZONE</code> components
+     * @return Pieces of the serialized calendar
+     */
+    public String[] getPieces(boolean timezones) {
+        if (timezones && this.timezones != null) {
+            return new String[] { this.start, this.timezones, this.end };
+        }
+        return new String[] { this.start, this.end };
+    }
+
+    /**
+     * Gets the <code>VTIMEZONE</code> components of the calendar.
+     *
+     * @return Serialized time zones or <code>null</code> if the calendar has none
+     */
+    public String getTimeZones() {
+        return this.timezones;
+    }
+
+    /**
+     * Writes the calendar as UTF-8.
+     *
+     * @param timezones
+     *            Include the <code>VTIMEZONE</code> components
+     */
+    public void write(OutputStream os, boolean timezones) throws IOException {
+        for (String piece : getPieces(timezones)) {
+            os.write(piece.getBytes("UTF-8"));
+        }
+    }
+
+    /**
+     * Gets the whole calendar.
+     *
+     * @param timezones
+     *            Include the <code>VTIMEZONE</code> components
+     * @return Serialized calendar
+     */
+    public String toString(boolean timezones) {
+        if (timezones) {
+            return toString();
+        }
+        return this.start.concat(this.end);
+    }
+
+    @Override
+    public String toString() {
+        if (this.timezones == null) {
+            return this.start.concat(this.end);
+        }
+        StringBuilder _sb = new StringBuilder(this.start.length() + this.timezones.length() + this.end.length());
+        _sb.append(this.start);
+        _sb.append(this.timezones);
+        _sb.append(this.end);
+        return _sb.toString();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        this.timezones = TimeZoneRegistry.intern(this.timezones);
+    }
+}
@@ -0,0 +1,166 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ricardolorenzo.network.http.caldav.store;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ricardolorenzo.file.io.IOStreamUtils;
+
+/**
+ * Revision counter of a calendar collection.
+ *
+ * The revision is incremented on every change of the collection and is kept in memory, so the
+ * <code>CS:getctag</code> value can be served without touching the filesystem. The last value is
+ * persisted in the hidden <code>.revision</code> file of the collection folder to survive
+ * restarts.
+ *
+ * @author Ricardo Lorenzo
+ *
+ */
+public class CollectionRevision {
+    private final static Logger logger = LoggerFactory.getLogger(CollectionRevision.class);
+    private static final String REVISION_FILE = ".revision";
+    private static final Map<String, AtomicLong> revisions = new ConcurrentHashMap<String, AtomicLong>();
+
+    /**
+     * Gets the current revision of the collection.
+     *
+     * @param vcalendar_file
+     *            The <code>calendar.ics</code> file of the collection
+     * @return Current revision
+     */
+    public static long getRevision(File vcalendar_file) {
+        return getCounter(vcalendar_file).get();
+    }
+
+    /**
+     * Increments the revision of the collection. Must be called after every change on the
+     * collection content.
+     *
+     * @param vcalendar_file
+     *            The <code>calendar.ics</code> file of the collection
+     * @return New revision
+     */
+    public static long increment(File vcalendar_file) {
+        AtomicLong counter = getCounter(vcalendar_file);
+        synchronized (counter) {
+            long revision = counter.incrementAndGet();
+            storeRevision(getRevisionFile(vcalendar_file), revision);
+            return revision;
+        }
+    }
+
+    /**
+     * Forgets the revision of a removed collection.
+     *
+     * @param directory
+     *            The collection folder
+     */
+    public static void remove(File directory) {
+        revisions.remove(directory.getAbsolutePath());
+    }
+
+    private static AtomicLong getCounter(File vcalendar_file) {
+        File directory = getDirectory(vcalendar_file);
+        String key = directory.getAbsolutePath();
+        AtomicLong counter = revisions.get(key);
+        if (counter == null) {
+            synchronized (revisions) {
+                counter = revisions.get(key);
+                if (counter == null) {
+                    counter = new AtomicLong(loadRevision(vcalendar_file));
+                    revisions.put(key, counter);
+                }
+            }
+        }
+        return counter;
+    }
+
+    private static File getDirectory(File vcalendar_file) {
+        File directory = vcalendar_file.getAbsoluteFile().getParentFile();
+        if (directory == null) {
+            directory = new File(".").getAbsoluteFile();
+        }
+        return directory;
+    }
+
+    private static File getRevisionFile(File vcalendar_file) {
+        return new File(getDirectory(vcalendar_file), REVISION_FILE);
+    }
+
+    private static long loadRevision(File vcalendar_file) {
+        File revision_file = getRevisionFile(vcalendar_file);
+        if (revision_file.exists()) {
+            BufferedReader reader = null;
+            try {
+                reader = new BufferedReader(new InputStreamReader(new FileInputStream(revision_file), "UTF-8"));
+                String line = reader.readLine();
+                if (line != null) {
+                    return Long.parseLong(line.trim());
+                }
+            } catch (IOException e) {
+                logger.error("revision file=" + revision_file.getAbsolutePath(), e);
+            } catch (NumberFormatException e) {
+                logger.error("revision file=" + revision_file.getAbsolutePath(), e);
+            } finally {
+                if (reader != null) {
+                    try {
+                        reader.close();
+                    } catch (IOException e) {
+                        // nothing
+                    }
+                }
+            }
+        }
+        /*
+         * Collections created before the revision counter existed start from the last
+         * modification of the calendar file, so the new values never repeat an old one
+         */
+        return vcalendar_file.lastModified();
+    }
+
+    private static void storeRevision(File revision_file, long revision) {
+        File temp_file = new File(revision_file.getParentFile(), REVISION_FILE + ".tmp");
+        try {
+            OutputStream os = new FileOutputStream(temp_file);
+            try {
+                os.write(String.valueOf(revision).getBytes("UTF-8"));
+                os.flush();
+            } finally {
+                IOStreamUtils.closeQuietly(os);
+            }
+            if (!temp_file.renameTo(revision_file)) {
+                revision_file.delete();
+                if (!temp_file.renameTo(revision_file)) {
+                    logger.error("cannot store revision file [" + revision_file.getAbsolutePath() + "]");
+                }
+            }
+        } catch (IOException e) {
+            logger.error("revision file=" + revision_file.getAbsolutePath(), e);
+        }
+    }
+}
@@ -0,0 +1,439 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ricardolorenzo.network.http.caldav.store;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TimeZone;
+
+/**
+ * Time zone compiled from a <code>VTIMEZONE</code> component.
+ *
+ * The onsets of the <code>STANDARD</code> and <code>DAYLIGHT</code> observances are generated
+ * once, up to <code>MAX_YEAR</code>, into a sorted table of UTC transitions. The offset of a time
+ * is found by a binary search on the table, without any calendar arithmetic.
+ *
+ * Only the yearly rules used by the time zone definitions are supported: <code>BYMONTH</code>,
+ * <code>BYDAY</code> with or without ordinal, <code>BYMONTHDAY</code>, <code>INTERVAL</code>,
+ * <code>UNTIL</code> and <code>COUNT</code>. The components with other rules are not compiled.
+ *
+ * @author Ricardo Lorenzo
+ *
+ */
+public class CompiledTimeZone extends TimeZone {
+    private static final long serialVersionUID = 6109862723617592367L;
+    public static final int MAX_YEAR = 2100;
+    private static final long SECOND = 1000L;
+    private static final long MINUTE = 60L * SECOND;
+    private static final long HOUR = 60L * MINUTE;
+    private static final long DAY = 24L * HOUR;
+    private static final String[] WEEKDAYS = new String[] { "SU", "MO", "TU", "WE", "TH", "FR", "SA" };
+
+    private long[] transitions;
+    private int[] offsets;
+    private int initial_offset;
+    private int raw_offset;
+    private int dst_savings;
+
+    private CompiledTimeZone(String tzid, long[] transitions, int[] offsets, int initial_offset, int raw_offset,
+            int dst_savings) {
+        setID(tzid);
+        this.transitions = transitions;
+        this.offsets = offsets;
+        this.initial_offset = initial_offset;
+        this.raw_offset = raw_offset;
+        this.dst_savings = dst_savings;
+    }
+
+    /**
+     * Compiles a <code>VTIMEZONE</code> component.
+     *
+     * @param vtimezone
+     *            Component
+     * @return The time zone or <code>null</code> if the component has no <code>TZID</code> or uses
+     *         a rule that is not supported
+     */
+    public static CompiledTimeZone compile(ICalendarComponent vtimezone) {
+        String tzid = vtimezone.getValue("TZID");
+        if (tzid == null) {
+            return null;
+        }
+        List<long[]> onsets = new ArrayList<long[]>();
+        int raw_offset = Integer.MIN_VALUE, dst_savings = 0;
+        long last_standard = Long.MIN_VALUE;
+        for (ICalendarComponent observance : vtimezone.getComponents()) {
+            boolean daylight = "DAYLIGHT".equals(observance.getName());
+            if (!daylight && !"STANDARD".equals(observance.getName())) {
+                continue;
+            }
+            Integer from = getOffset(observance.getValue("TZOFFSETFROM"));
+            Integer to = getOffset(observance.getValue("TZOFFSETTO"));
+            ICalendarProperty dtstart = observance.getProperty("DTSTART");
+            Long start = dtstart != null ? getLocalTime(dtstart.getValue()) : null;
+            if (from == null || to == null || start == null) {
+                return null;
+            }
+            int count = onsets.size();
+            if (!addOnsets(observance, start, from, to, onsets)) {
+                return null;
+            }
+            if (daylight) {
+                dst_savings = Math.max(dst_savings, to - from);
+            } else {
+                for (int i = count; i < onsets.size(); i++) {
+                    if (onsets.get(i)[0] >= last_standard) {
+                        last_standard = onsets.get(i)[0];
+                        raw_offset = to;
+                    }
+                }
+            }
+        }
+        if (onsets.isEmpty()) {
+            return null;
+        }
+        Collections.sort(onsets, new Comparator<long[]>() {
+            public int compare(long[] o1, long[] o2) {
+                return o1[0] < o2[0] ? -1 : (o1[0] == o2[0] ? 0 : 1);
+            }
+        });
+
+        long[] transitions = new long[onsets.size()];
+        int[] offsets = new int[onsets.size()];
+        int length = 0;
+        for (long[] onset : onsets) {
+            if (length > 0 && transitions[length - 1] == onset[0]) {
+                offsets[length - 1] = (int) onset[1];
+                continue;
+            }
+            transitions[length] = onset[0];
+            offsets[length] = (int) onset[1];
+            length++;
+        }
+        if (raw_offset == Integer.MIN_VALUE) {
+            raw_offset = offsets[length - 1] - dst_savings;
+        }
+        return new CompiledTimeZone(tzid, Arrays.copyOf(transitions, length), Arrays.copyOf(offsets, length),
+                (int) onsets.get(0)[2], raw_offset, dst_savings);
+    }
+
+    /**
+     * Gets the offset from UTC at the time.
+     *
+     * @param date
+     *            UTC time in milliseconds
+     * @return Offset in milliseconds
+     */
+    @Override
+    public int getOffset(long date) {
+        int i = Arrays.binarySearch(this.transitions, date);
+        if (i < 0) {
+            i = -i - 2;
+        }
+        return i < 0 ? this.initial_offset : this.offsets[i];
+    }
+
+    @Override
+    public int getOffset(int era, int year, int month, int day, int dayOfWeek, int milliseconds) {
+        if (era == 0) {
+            year = 1 - year;
+        }
+        long local = getLocalTime(year, month + 1, day) + milliseconds;
+        return getOffset(local - getOffset(local - getOffset(local)));
+    }
+
+    @Override
+    public int getRawOffset() {
+        return this.raw_offset;
+    }
+
+    /**
+     * The compiled time zones are shared, the offsets come from the definition and cannot be
+     * changed. The call is ignored.
+     */
+    @Override
+    public void setRawOffset(int offsetMillis) {
+        // nothing
+    }
+
+    /**
+     * The identifier is the <code>TZID</code> of the definition, set once. Later calls are ignored.
+     */
+    @Override
+    public void setID(String ID) {
+        if (getID() == null) {
+            super.setID(ID);
+        }
+    }
+
+    @Override
+    public int getDSTSavings() {
+        return this.dst_savings;
+    }
+
+    @Override
+    public boolean useDaylightTime() {
+        return this.dst_savings > 0;
+    }
+
+    @Override
+    public boolean inDaylightTime(Date date) {
+        return getOffset(date.getTime()) != this.raw_offset;
+    }
+
+    /**
+     * Gets the time of the local date, as if it were in UTC.
+     *
+     * @param year
+     *            Year
+     * @param month
+     *            Month, from 1 to 12. Other values move to the previous or next years.
+     * @param day
+     *            Day of the month. Other values move to the previous or next months.
+     * @return Time in milliseconds
+     */
+    public static long getLocalTime(long year, long month, long day) {
+        year += floorDiv(month - 1, 12);
+        month = month - 1 - floorDiv(month - 1, 12) * 12 + 1;
+        /*
+         * Days from the civil date, with the years starting in March
+         */
+        if (month <= 2) {
+            year--;
+        }
+        long era = floorDiv(year, 400);
+        long yoe = year - era * 400;
+        long doy = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5;
+        long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return (era * 146097 + doe - 719468 + day - 1) * DAY;
+    }
+
+    private static long floorDiv(long x, long y) {
+        long q = x / y;
+        if ((x % y != 0) && ((x < 0) != (y < 0))) {
+            q--;
+        }
+        return q;
+    }
+
+    /*
+     * Local DATE-TIME value without time zone, as if it were in UTC
+     */
+    private static Long getLocalTime(String value) {
+        if (value == null) {
+            return null;
+        }
+        value = value.trim();
+        if (value.length() < 8) {
+            return null;
+        }
+        try {
+            long time = getLocalTime(Integer.parseInt(value.substring(0, 4)), Integer.parseInt(value
+                    .substring(4, 6)), Integer.parseInt(value.substring(6, 8)));
+            if (value.length() >= 15 && value.charAt(8) == 'T') {
+                time += Integer.parseInt(value.substring(9, 11)) * HOUR;
+                time += Integer.parseInt(value.substring(11, 13)) * MINUTE;
+                time += Integer.parseInt(value.substring(13, 15)) * SECOND;
+            }
+            return time;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /*
+     * UTC offset value, as -0500 or +053000
+     */
+    private static Integer getOffset(String value) {
+        if (value == null) {
+            return null;
+        }
+        value = value.trim();
+        if (value.length() != 5 && value.length() != 7) {
+            return null;
+        }
+        int sign;
+        if (value.charAt(0) == '+') {
+            sign = 1;
+        } else if (value.charAt(0) == '-') {
+            sign = -1;
+        } else {
+            return null;
+        }
+        try {
+            long offset = Integer.parseInt(value.substring(1, 3)) * HOUR + Integer.parseInt(value.substring(3, 5))
+                    * MINUTE;
+            if (value.length() == 7) {
+                offset += Integer.parseInt(value.substring(5, 7)) * SECOND;
+            }
+            return (int) (sign * offset);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /*
+     * Adds the onsets of the observance as { UTC time, offset to, offset from }
+     */
+    private static boolean addOnsets(ICalendarComponent observance, long start, int from, int to,
+            List<long[]> onsets) {
+        onsets.add(new long[] { start - from, to, from });
+        for (ICalendarProperty rdate : observance.getProperties("RDATE")) {
+            for (String value : rdate.getValue().split(",")) {
+                Long time = getLocalTime(value);
+                if (time == null) {
+                    return false;
+                }
+                onsets.add(new long[] { time - from, to, from });
+            }
+        }
+        ICalendarProperty rrule = observance.getProperty("RRULE");
+        if (rrule == null) {
+            return true;
+        }
+
+        String freq = null, until = null;
+        int interval = 1, count = Integer.MAX_VALUE, month = -1, weekday = -1, ordinal = 0;
+        Set<Integer> monthdays = null;
+        try {
+            for (String part : rrule.getValue().toUpperCase().split(";")) {
+                int equals = part.indexOf('=');
+                if (equals == -1) {
+                    return false;
+                }
+                String name = part.substring(0, equals), value = part.substring(equals + 1);
+                if ("FREQ".equals(name)) {
+                    freq = value;
+                } else if ("INTERVAL".equals(name)) {
+                    interval = Integer.parseInt(value);
+                } else if ("COUNT".equals(name)) {
+                    count = Integer.parseInt(value);
+                } else if ("UNTIL".equals(name)) {
+                    until = value;
+                } else if ("BYMONTH".equals(name)) {
+                    month = Integer.parseInt(value);
+                } else if ("BYMONTHDAY".equals(name)) {
+                    monthdays = new HashSet<Integer>();
+                    for (String day : value.split(",")) {
+                        monthdays.add(Integer.parseInt(day));
+                    }
+                } else if ("BYDAY".equals(name)) {
+                    if (value.indexOf(',') != -1 || value.length() < 2) {
+                        return false;
+                    }
+                    weekday = Arrays.asList(WEEKDAYS).indexOf(value.substring(value.length() - 2));
+                    if (weekday < 0) {
+                        return false;
+                    }
+                    if (value.length() > 2) {
+                        String number = value.substring(0, value.length() - 2);
+                        ordinal = Integer.parseInt(number.startsWith("+") ? number.substring(1) : number);
+                    }
+                } else if (!"WKST".equals(name)) {
+                    return false;
+                }
+            }
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        if (!"YEARLY".equals(freq) || interval < 1) {
+            return false;
+        }
+
+        long until_time = Long.MAX_VALUE;
+        if (until != null) {
+            Long time = getLocalTime(until);
+            if (time == null) {
+                return false;
+            }
+            until_time = until.endsWith("Z") ? time : time - from;
+        }
+        long days = floorDiv(start, DAY);
+        long time_of_day = start - days * DAY;
+        int[] date = getDate(days);
+        if (month < 0) {
+            month = date[1];
+        }
+        if (weekday < 0 && monthdays == null) {
+            monthdays = Collections.singleton(date[2]);
+        }
+
+        int generated = 0;
+        for (int year = date[0]; year <= MAX_YEAR && generated < count; year += interval) {
+            long first = floorDiv(getLocalTime(year, month, 1), DAY);
+            int length = (int) (floorDiv(getLocalTime(year, month + 1, 1), DAY) - first);
+            for (int day = 1; day <= length && generated < count; day++) {
+                if (!matches(first, length, day, weekday, ordinal, monthdays)) {
+                    continue;
+                }
+                long local = (first + day - 1) * DAY + time_of_day;
+                if (local < start) {
+                    continue;
+                }
+                long utc = local - from;
+                if (utc > until_time) {
+                    return true;
+                }
+                onsets.add(new long[] { utc, to, from });
+                generated++;
+            }
+        }
+        return true;
+    }
+
+    private static boolean matches(long first, int length, int day, int weekday, int ordinal,
+            Set<Integer> monthdays) {
+        if (monthdays != null && !monthdays.contains(day) && !monthdays.contains(day - length - 1)) {
+            return false;
+        }
+        if (weekday < 0) {
+            return true;
+        }
+        if ((int) (((first + day - 1 + 4) % 7 + 7) % 7) != weekday) {
+            return false;
+        }
+        if (ordinal > 0) {
+            return (day - 1) / 7 == ordinal - 1;
+        } else if (ordinal < 0) {
+            return (length - day) / 7 == -ordinal - 1;
+        }
+        return true;
+    }
+
+    /**
+     * Gets the civil date of the days from the epoch.
+     *
+     * @param days
+     *            Days from 1970-01-01
+     * @return Year, month from 1 to 12 and day of the month
+     */
+    public static int[] getDate(long days) {
+        days += 719468;
+        long era = floorDiv(days, 146097);
+        long doe = days - era * 146097;
+        long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        long mp = (5 * doy + 2) / 153;
+        int day = (int) (doy - (153 * mp + 2) / 5 + 1);
+        int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        int year = (int) (yoe + era * 400 + (month <= 2 ? 1 : 0));
+        return new int[] { year, month, day };
+    }
+}
@@ -209,10 +209,14 @@ import com.ricardolorenzo.network.http.caldav.session.CalDAVTransaction;
     public void removeObject(final CalDAVTransaction transaction, final String uri) throws CalDAVException {
         final File file = new File(this.root, uri);
         if (file.isDirectory()) {
-            final File _acl = new File(file.getAbsolutePath() + "/.acl.xml");
-            if (_acl.exists()) {
-                if (!_acl.delete()) {
-                    throw new CalDAVException("cannot delete object: " + uri);
+            /*
+             * Hidden files (ACL, revision, ...) are not listed as children
+             */
+            for (final File _hidden : file.listFiles()) {
+                if (_hidden.getName().startsWith(".") && _hidden.isFile()) {
+                    if (!_hidden.delete()) {
+                        throw new CalDAVException("cannot delete object: " + uri);
+                    }
                 }
             }
         }
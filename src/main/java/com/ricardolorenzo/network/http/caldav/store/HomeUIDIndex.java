@@ -0,0 +1,281 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ricardolorenzo.network.http.caldav.store;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ricardolorenzo.file.lock.FileLock;
+import com.ricardolorenzo.file.lock.FileLockException;
+import com.ricardolorenzo.icalendar.VCalendarException;
+
+/**
+ * Index of the calendar object UIDs of a calendar home, pointing to the calendar (child folder)
+ * that contains each object.
+ *
+ * The index is updated when the objects are written and persisted in the hidden
+ * <code>.uid_index</code> file of the home folder. If the file does not exists, the index is
+ * rebuilt from the indexes of the calendars.
+ *
+ * @author Ricardo Lorenzo
+ *
+ */
+public class HomeUIDIndex implements Serializable {
+    private static final long serialVersionUID = -6411953290547181402L;
+    private final static Logger logger = LoggerFactory.getLogger(HomeUIDIndex.class);
+    private static final String INDEX_FILE = ".uid_index";
+    private static final Map<String, HomeUIDIndex> indexes = new ConcurrentHashMap<String, HomeUIDIndex>();
+
+    private transient File directory;
+    private Map<String, String> collections;
+
+    private HomeUIDIndex(File directory) {
+        this.directory = directory;
+        this.collections = new HashMap<String, String>();
+    }
+
+    /**
+     * Gets the index of the home that contains the calendar.
+     *
+     * @param vcalendar_file
+     *            The <code>calendar.ics</code> file of a calendar
+     * @return The home index
+     */
+    public static HomeUIDIndex getIndex(File vcalendar_file) {
+        return getHomeIndex(getHomeDirectory(vcalendar_file));
+    }
+
+    /**
+     * Gets the index of the home.
+     *
+     * @param directory
+     *            The home folder
+     * @return The home index
+     */
+    public static HomeUIDIndex getHomeIndex(File directory) {
+        String key = directory.getAbsolutePath();
+        HomeUIDIndex index = indexes.get(key);
+        if (index == null) {
+            /*
+             * Loading may rebuild the indexes of the calendars, so it is done without the lock.
+             * Concurrent loads of the same home build the same index, the first one is kept.
+             */
+            HomeUIDIndex loaded = loadIndex(directory.getAbsoluteFile());
+            synchronized (indexes) {
+                index = indexes.get(key);
+                if (index == null) {
+                    index = loaded;
+                    indexes.put(key, index);
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Gets the name of the calendar folder of the object.
+     *
+     * @param vcalendar_file
+     *            The <code>calendar.ics</code> file of a calendar
+     * @return Calendar folder name
+     */
+    public static String getCollectionName(File vcalendar_file) {
+        return vcalendar_file.getAbsoluteFile().getParentFile().getName();
+    }
+
+    /**
+     * Finds the calendar that contains the object.
+     *
+     * @param uid
+     *            Calendar object UID
+     * @return The calendar folder name, or <code>null</code> if no calendar of the home contains
+     *         the object
+     */
+    public String findCollection(String uid) {
+        String collection;
+        synchronized (this) {
+            collection = this.collections.get(uid);
+        }
+        if (collection == null) {
+            return null;
+        }
+        /*
+         * Objects can be removed out of the servlet, check the calendar still has it. The calendar
+         * index may be rebuilt, so the home is not locked meanwhile.
+         */
+        File _f = new File(new File(this.directory, collection), "calendar.ics");
+        try {
+            if (_f.exists() && VCalendarIndex.mightContain(_f, uid)
+                    && VCalendarIndex.getIndex(_f).getEntry(uid) != null) {
+                return collection;
+            }
+            remove(uid, collection);
+            return null;
+        } catch (VCalendarException e) {
+            logger.error("uid index", e);
+        } catch (IOException e) {
+            logger.error("uid index", e);
+        } catch (FileLockException e) {
+            logger.error("uid index", e);
+        }
+        return collection;
+    }
+
+    /**
+     * Sets the calendar of the object.
+     *
+     * @param uid
+     *            Calendar object UID
+     * @param collection
+     *            Calendar folder name
+     */
+    public synchronized void put(String uid, String collection) {
+        this.collections.put(uid, collection);
+    }
+
+    /**
+     * Removes the object if it belongs to the calendar.
+     *
+     * @param uid
+     *            Calendar object UID
+     * @param collection
+     *            Calendar folder name
+     */
+    public synchronized void remove(String uid, String collection) {
+        if (collection.equals(this.collections.get(uid))) {
+            this.collections.remove(uid);
+        }
+    }
+
+    /**
+     * Sets the calendar of all its objects, as after a copy.
+     *
+     * @param collection
+     *            Calendar folder name
+     * @param entries
+     *            Entries of the calendar index
+     */
+    public synchronized void putCollection(String collection, List<VActionEntry> entries) {
+        for (VActionEntry entry : entries) {
+            this.collections.put(entry.getUid(), collection);
+        }
+    }
+
+    /**
+     * Removes all the objects of a removed calendar.
+     *
+     * @param collection
+     *            Calendar folder name
+     */
+    public synchronized void removeCollection(String collection) {
+        for (Iterator<Entry<String, String>> it = this.collections.entrySet().iterator(); it.hasNext();) {
+            if (collection.equals(it.next().getValue())) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Persists the index. Must be called once the changes have been done.
+     */
+    public synchronized void commit() {
+        File index_file = new File(this.directory, INDEX_FILE);
+        try {
+            FileLock _fl = new FileLock(index_file);
+            ObjectOutputStream os = new ObjectOutputStream(new FileOutputStream(index_file));
+            _fl.lock();
+            try {
+                os.writeObject(this);
+                os.flush();
+            } finally {
+                _fl.unlockQuietly();
+                os.close();
+            }
+        } catch (IOException e) {
+            logger.error("uid index file=" + index_file.getAbsolutePath(), e);
+        } catch (FileLockException e) {
+            logger.error("uid index file=" + index_file.getAbsolutePath(), e);
+        }
+    }
+
+    private static File getHomeDirectory(File vcalendar_file) {
+        File directory = vcalendar_file.getAbsoluteFile().getParentFile().getParentFile();
+        if (directory == null) {
+            directory = new File(".").getAbsoluteFile();
+        }
+        return directory;
+    }
+
+    private static HomeUIDIndex loadIndex(File directory) {
+        File index_file = new File(directory, INDEX_FILE);
+        if (index_file.exists()) {
+            try {
+                ObjectInputStream is = new ObjectInputStream(new FileInputStream(index_file));
+                try {
+                    HomeUIDIndex index = (HomeUIDIndex) is.readObject();
+                    index.directory = directory;
+                    return index;
+                } finally {
+                    is.close();
+                }
+            } catch (ClassNotFoundException e) {
+                logger.error("uid index file=" + index_file.getAbsolutePath(), e);
+            } catch (IOException e) {
+                logger.error("uid index file=" + index_file.getAbsolutePath(), e);
+            }
+        }
+
+        HomeUIDIndex index = new HomeUIDIndex(directory);
+        index.rebuild();
+        index.commit();
+        return index;
+    }
+
+    private void rebuild() {
+        File[] children = this.directory.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            File _f = new File(child, "calendar.ics");
+            if (child.getName().startsWith(".") || !_f.exists()) {
+                continue;
+            }
+            try {
+                putCollection(child.getName(), VCalendarIndex.getIndex(_f).getEntries());
+            } catch (VCalendarException e) {
+                logger.error("uid index calendar=" + _f.getAbsolutePath(), e);
+            } catch (IOException e) {
+                logger.error("uid index calendar=" + _f.getAbsolutePath(), e);
+            } catch (FileLockException e) {
+                logger.error("uid index calendar=" + _f.getAbsolutePath(), e);
+            }
+        }
+    }
+}
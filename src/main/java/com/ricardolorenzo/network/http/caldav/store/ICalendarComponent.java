@@ -0,0 +1,258 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ricardolorenzo.network.http.caldav.store;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Lightweight view of an iCalendar component (RFC 5545) used to evaluate query filters and to
+ * compute the index metadata without going through the full calendar model.
+ *
+ * @author Ricardo Lorenzo
+ *
+ */
+public class ICalendarComponent {
+    private String name;
+    private List<ICalendarProperty> properties;
+    private List<ICalendarComponent> components;
+    private Map<String, TimeZone> timezones;
+
+    public ICalendarComponent(String name) {
+        this.name = name;
+        this.properties = new ArrayList<ICalendarProperty>();
+        this.components = new ArrayList<ICalendarComponent>();
+    }
+
+    /**
+     * Parses the serialized component. If the text contains more than one top level component,
+     * only the first one is returned.
+     *
+     * @param content
+     *            Serialized iCalendar content
+     * @return The component or <code>null</code> if the content has no components
+     */
+    public static ICalendarComponent parse(String content) {
+        LinkedList<ICalendarComponent> stack = new LinkedList<ICalendarComponent>();
+        ICalendarComponent root = null;
+        for (String line : unfold(content)) {
+            ICalendarProperty property = ICalendarProperty.parse(line);
+            if (property == null) {
+                continue;
+            }
+            if ("BEGIN".equals(property.getName())) {
+                ICalendarComponent component = new ICalendarComponent(property.getValue().trim().toUpperCase());
+                if (stack.isEmpty()) {
+                    if (root != null) {
+                        break;
+                    }
+                    root = component;
+                } else {
+                    stack.getLast().components.add(component);
+                }
+                stack.addLast(component);
+            } else if ("END".equals(property.getName())) {
+                if (!stack.isEmpty()) {
+                    stack.removeLast();
+                }
+            } else if (!stack.isEmpty()) {
+                stack.getLast().properties.add(property);
+            }
+        }
+        return root;
+    }
+
+    /**
+     * Splits the content in unfolded content lines.
+     *
+     * @param content
+     *            Serialized iCalendar content
+     * @return Content lines
+     */
+    public static List<String> unfold(String content) {
+        List<String> lines = new ArrayList<String>();
+        StringBuilder _sb = null;
+        int length = content.length();
+        int start = 0;
+        while (start < length) {
+            int end = content.indexOf('\n', start);
+            if (end == -1) {
+                end = length;
+            }
+            int lineEnd = end;
+            if (lineEnd > start && content.charAt(lineEnd - 1) == '\r') {
+                lineEnd--;
+            }
+            if (lineEnd > start) {
+                char first = content.charAt(start);
+                if ((first == ' ' || first == '\t') && _sb != null) {
+                    _sb.append(content, start + 1, lineEnd);
+                } else {
+                    if (_sb != null) {
+                        lines.add(_sb.toString());
+                    }
+                    _sb = new StringBuilder(lineEnd - start);
+                    _sb.append(content, start, lineEnd);
+                }
+            }
+            start = end + 1;
+        }
+        if (_sb != null) {
+            lines.add(_sb.toString());
+        }
+        return lines;
+    }
+
+    /**
+     * Gets the component name in upper case, as <code>VEVENT</code>
+     *
+     * @return Component name
+     */
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * Gets the first property with the name.
+     *
+     * @param name
+     *            Property name
+     * @return The property or <code>null</code> if it is not defined
+     */
+    public ICalendarProperty getProperty(String name) {
+        for (ICalendarProperty property : this.properties) {
+            if (property.getName().equals(name)) {
+                return property;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets all the properties with the name.
+     *
+     * @param name
+     *            Property name
+     * @return A (possibly empty) list of properties
+     */
+    public List<ICalendarProperty> getProperties(String name) {
+        List<ICalendarProperty> result = new ArrayList<ICalendarProperty>();
+        for (ICalendarProperty property : this.properties) {
+            if (property.getName().equals(name)) {
+                result.add(property);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Gets all the properties.
+     *
+     * @return A (possibly empty) list of properties
+     */
+    public List<ICalendarProperty> getProperties() {
+        return this.properties;
+    }
+
+    /**
+     * Gets the first property value with the name.
+     *
+     * @param name
+     *            Property name
+     * @return The value or <code>null</code> if it is not defined
+     */
+    public String getValue(String name) {
+        ICalendarProperty property = getProperty(name);
+        if (property == null) {
+            return null;
+        }
+        return property.getValue();
+    }
+
+    /**
+     * Gets the sub components with the name.
+     *
+     * @param name
+     *            Component name
+     * @return A (possibly empty) list of components
+     */
+    public List<ICalendarComponent> getComponents(String name) {
+        List<ICalendarComponent> result = new ArrayList<ICalendarComponent>();
+        for (ICalendarComponent component : this.components) {
+            if (component.getName().equals(name)) {
+                result.add(component);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Gets all the sub components.
+     *
+     * @return A (possibly empty) list of components
+     */
+    public List<ICalendarComponent> getComponents() {
+        return this.components;
+    }
+
+    /**
+     * Gets the time zones defined by the calendar of the component, used to read its dates.
+     *
+     * @return The time zones by <code>TZID</code>
+     */
+    public Map<String, TimeZone> getTimeZones() {
+        if (this.timezones == null) {
+            return Collections.emptyMap();
+        }
+        return this.timezones;
+    }
+
+    /**
+     * Sets the time zones defined by the calendar of the component and its sub components.
+     *
+     * @param timezones
+     *            The time zones by <code>TZID</code>
+     */
+    public void setTimeZones(Map<String, TimeZone> timezones) {
+        this.timezones = timezones;
+        for (ICalendarComponent component : this.components) {
+            component.setTimeZones(timezones);
+        }
+    }
+
+    /**
+     * Adds a property to the component.
+     *
+     * @param property
+     *            Property
+     */
+    public void addProperty(ICalendarProperty property) {
+        this.properties.add(property);
+    }
+
+    /**
+     * Adds a sub component to the component.
+     *
+     * @param component
+     *            Sub component
+     */
+    public void addComponent(ICalendarComponent component) {
+        this.components.add(component);
+    }
+}
@@ -0,0 +1,214 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ricardolorenzo.network.http.caldav.store;
+
+import java.util.Calendar;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Parsing of the iCalendar DATE, DATE-TIME and DURATION values (RFC 5545).
+ *
+ * @author Ricardo Lorenzo
+ *
+ */
+public class ICalendarDates {
+    public static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+    private static final long SECOND = 1000L;
+    private static final long MINUTE = 60L * SECOND;
+    private static final long HOUR = 60L * MINUTE;
+    private static final long DAY = 24L * HOUR;
+    private static final long WEEK = 7L * DAY;
+
+    /**
+     * Verify if the property has a DATE value.
+     *
+     * @param property
+     *            Property
+     */
+    public static boolean isDate(ICalendarProperty property) {
+        if ("DATE".equalsIgnoreCase(property.getParameter("VALUE"))) {
+            return true;
+        }
+        return property.getValue().trim().length() == 8;
+    }
+
+    /**
+     * Gets the time of a DATE or DATE-TIME property, using the <code>TZID</code> parameter when the
+     * value is not in UTC. Floating values, and the values with an unknown <code>TZID</code>, use
+     * the server time zone.
+     *
+     * @param property
+     *            Property
+     * @param timezones
+     *            Time zones defined by the calendar of the property
+     * @return The time in milliseconds or <code>null</code> if the value cannot be parsed
+     */
+    public static Long getTime(ICalendarProperty property, Map<String, TimeZone> timezones) {
+        if (property == null) {
+            return null;
+        }
+        return getTime(property.getValue(), getTimeZone(property, timezones));
+    }
+
+    /**
+     * Gets the time zone of the <code>TZID</code> parameter of the property.
+     *
+     * @param property
+     *            Property
+     * @param timezones
+     *            Time zones defined by the calendar of the property
+     * @return The time zone or <code>null</code> if the property has no <code>TZID</code> or it is
+     *         unknown
+     */
+    public static TimeZone getTimeZone(ICalendarProperty property, Map<String, TimeZone> timezones) {
+        String tzid = property.getParameter("TZID");
+        if (tzid == null) {
+            return null;
+        }
+        return TimeZoneRegistry.getTimeZone(tzid, timezones);
+    }
+
+    /**
+     * Verify if the property value is floating, a DATE or a DATE-TIME without UTC or time zone, so
+     * its time depends on the time zone of the reader.
+     *
+     * @param property
+     *            Property
+     */
+    public static boolean isFloating(ICalendarProperty property) {
+        return property.getParameter("TZID") == null && !property.getValue().trim().endsWith("Z");
+    }
+
+    /**
+     * Gets the time of a DATE or DATE-TIME value. The local time is converted with the offsets of
+     * the time zone, without creating a calendar.
+     *
+     * @param value
+     *            Value, as <code>20060104T000000Z</code>
+     * @param tz
+     *            Time zone for values not in UTC, or <code>null</code> for the server time zone
+     * @return The time in milliseconds or <code>null</code> if the value cannot be parsed
+     */
+    public static Long getTime(String value, TimeZone tz) {
+        if (value == null) {
+            return null;
+        }
+        value = value.trim();
+        int comma = value.indexOf(',');
+        if (comma != -1) {
+            value = value.substring(0, comma);
+        }
+        if (value.length() < 8) {
+            return null;
+        }
+        try {
+            long local = CompiledTimeZone.getLocalTime(Integer.parseInt(value.substring(0, 4)), Integer
+                    .parseInt(value.substring(4, 6)), Integer.parseInt(value.substring(6, 8)));
+            if (value.length() >= 15 && value.charAt(8) == 'T') {
+                local += Integer.parseInt(value.substring(9, 11)) * HOUR;
+                local += Integer.parseInt(value.substring(11, 13)) * MINUTE;
+                local += Integer.parseInt(value.substring(13, 15)) * SECOND;
+            }
+            if (value.endsWith("Z")) {
+                return local;
+            }
+            if (tz == null) {
+                tz = TimeZone.getDefault();
+            }
+            /*
+             * The offset at the local time read as UTC, corrected once for the transitions
+             */
+            return local - tz.getOffset(local - tz.getOffset(local));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Gets the length of a DURATION value, as <code>-P1DT2H</code>.
+     *
+     * @param value
+     *            Value
+     * @return The duration in milliseconds or <code>null</code> if the value cannot be parsed
+     */
+    public static Long getDuration(String value) {
+        if (value == null) {
+            return null;
+        }
+        value = value.trim().toUpperCase();
+        int i = 0;
+        long sign = 1;
+        if (value.startsWith("-")) {
+            sign = -1;
+            i++;
+        } else if (value.startsWith("+")) {
+            i++;
+        }
+        if (i >= value.length() || value.charAt(i) != 'P') {
+            return null;
+        }
+        i++;
+        long duration = 0;
+        long number = -1;
+        for (; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= '0' && c <= '9') {
+                number = (number < 0 ? 0 : number * 10) + (c - '0');
+                continue;
+            }
+            if (c == 'T') {
+                continue;
+            }
+            if (number < 0) {
+                return null;
+            }
+            switch (c) {
+                case 'W':
+                    duration += number * WEEK;
+                    break;
+                case 'D':
+                    duration += number * DAY;
+                    break;
+                case 'H':
+                    duration += number * HOUR;
+                    break;
+                case 'M':
+                    duration += number * MINUTE;
+                    break;
+                case 'S':
+                    duration += number * SECOND;
+                    break;
+                default:
+                    return null;
+            }
+            number = -1;
+        }
+        return sign * duration;
+    }
+
+    /**
+     * Gets a UTC calendar for the time.
+     *
+     * @param time
+     *            Time in milliseconds
+     * @return Calendar
+     */
+    public static Calendar getCalendar(long time) {
+        Calendar _c = Calendar.getInstance(UTC);
+        _c.setTimeInMillis(time);
+        return _c;
+    }
+}
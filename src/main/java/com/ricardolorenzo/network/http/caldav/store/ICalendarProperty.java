@@ -0,0 +1,130 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ricardolorenzo.network.http.caldav.store;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A property of an iCalendar component, with its parameters and raw value.
+ *
+ * @author Ricardo Lorenzo
+ *
+ */
+public class ICalendarProperty {
+    private String name;
+    private Map<String, String> parameters;
+    private String value;
+
+    public ICalendarProperty(String name, String value) {
+        this.name = name;
+        this.value = value;
+        this.parameters = Collections.emptyMap();
+    }
+
+    /**
+     * Parses an unfolded content line.
+     *
+     * @param line
+     *            Content line
+     * @return The property or <code>null</code> if the line is not valid
+     */
+    public static ICalendarProperty parse(String line) {
+        int colon = -1;
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (c == ':' && !quoted) {
+                colon = i;
+                break;
+            }
+        }
+        if (colon <= 0) {
+            return null;
+        }
+
+        String head = line.substring(0, colon);
+        int semicolon = head.indexOf(';');
+        if (semicolon == -1) {
+            return new ICalendarProperty(head.trim().toUpperCase(), line.substring(colon + 1));
+        }
+
+        ICalendarProperty property = new ICalendarProperty(head.substring(0, semicolon).trim().toUpperCase(),
+                line.substring(colon + 1));
+        property.parameters = new LinkedHashMap<String, String>();
+        int start = semicolon + 1;
+        quoted = false;
+        for (int i = start; i <= head.length(); i++) {
+            if (i < head.length() && head.charAt(i) == '"') {
+                quoted = !quoted;
+            }
+            if (i == head.length() || (head.charAt(i) == ';' && !quoted)) {
+                String parameter = head.substring(start, i);
+                int equal = parameter.indexOf('=');
+                if (equal > 0) {
+                    String pvalue = parameter.substring(equal + 1);
+                    if (pvalue.length() > 1 && pvalue.startsWith("\"") && pvalue.endsWith("\"")) {
+                        pvalue = pvalue.substring(1, pvalue.length() - 1);
+                    }
+                    property.parameters.put(parameter.substring(0, equal).trim().toUpperCase(), pvalue);
+                }
+                start = i + 1;
+            }
+        }
+        return property;
+    }
+
+    /**
+     * Gets the property name in upper case
+     *
+     * @return Property name
+     */
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * Gets the raw property value
+     *
+     * @return Property value
+     */
+    public String getValue() {
+        return this.value;
+    }
+
+    /**
+     * Gets a property parameter.
+     *
+     * @param name
+     *            Parameter name
+     * @return Parameter value or <code>null</code> if it is not defined
+     */
+    public String getParameter(String name) {
+        return this.parameters.get(name.toUpperCase());
+    }
+
+    /**
+     * Verify if the property has the parameter.
+     *
+     * @param name
+     *            Parameter name
+     */
+    public boolean hasParameter(String name) {
+        return this.parameters.containsKey(name.toUpperCase());
+    }
+}
@@ -0,0 +1,407 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ricardolorenzo.network.http.caldav.store;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import com.ricardolorenzo.file.lock.FileLock;
+import com.ricardolorenzo.file.lock.FileLockException;
+
+/**
+ * Calendar read without decoding its components.
+ *
+ * <code>new VCalendar(file)</code> decodes every property of every component. The lazy calendar
+ * only finds the boundaries of the top level components in a single scan of the text, and the
+ * properties are decoded when they are requested. The components keep their original text, which
+ * is sent as it is.
+ *
+ * Only the calendar properties written before the first component are kept.
+ *
+ * @author Ricardo Lorenzo
+ *
+ */
+public class LazyVCalendar {
+    private static final int BUFFER_SIZE = 8192;
+    private static final String BEGIN = "BEGIN:";
+    private static final String END = "END:";
+    private static final String VCALENDAR = "VCALENDAR";
+    private static final String VTIMEZONE = "VTIMEZONE";
+    private static final String END_VCALENDAR = "END:VCALENDAR\r\n";
+
+    private String content;
+    private String header;
+    private String timezones;
+    private List<Component> components;
+
+    /**
+     * Top level component of the calendar, as <code>VEVENT</code>, <code>VTODO</code> or
+     * <code>VTIMEZONE</code>.
+     */
+    public class Component {
+        private String name;
+        private int start;
+        private int end;
+
+        private Component(String name, int start, int end) {
+            this.name = name;
+            this.start = start;
+            this.end = end;
+        }
+
+        /**
+         * Gets the component name in upper case, as <code>VEVENT</code>
+         *
+         * @return Component name
+         */
+        public String getName() {
+            return this.name;
+        }
+
+        /**
+         * Gets the component as written on the calendar, from its <code>BEGIN</code> line to its
+         * <code>END</code> line.
+         *
+         * @return Component text
+         */
+        public String getText() {
+            return content.substring(this.start, this.end);
+        }
+
+        /**
+         * Gets the component as a calendar object resource, with the calendar properties and the
+         * time zones of the calendar. The text is not scanned again.
+         *
+         * @return Calendar data
+         */
+        public CalendarData getData() {
+            return getCalendarData(getText());
+        }
+
+        /**
+         * Decodes the first property with the name, without decoding the rest of the component.
+         * The properties of the sub components, as <code>VALARM</code>, are skipped.
+         *
+         * @param name
+         *            Property name
+         * @return The property or <code>null</code> if it is not defined
+         */
+        public ICalendarProperty getProperty(String name) {
+            int depth = 0;
+            for (int i = nextLine(this.start); i < this.end; i = nextLine(i)) {
+                if (isLine(i, BEGIN)) {
+                    depth++;
+                } else if (isLine(i, END)) {
+                    depth--;
+                } else if (depth == 0 && isLine(i, name)) {
+                    int next = i + name.length();
+                    if (next < this.end && (content.charAt(next) == ':' || content.charAt(next) == ';')) {
+                        return ICalendarProperty.parse(unfold(i));
+                    }
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Decodes the first property value with the name.
+         *
+         * @param name
+         *            Property name
+         * @return The value or <code>null</code> if it is not defined
+         */
+        public String getValue(String name) {
+            ICalendarProperty property = getProperty(name);
+            if (property == null) {
+                return null;
+            }
+            return property.getValue();
+        }
+
+        /**
+         * Decodes only the properties with the names, in a single pass over the component. The
+         * sub components are not decoded.
+         *
+         * @param names
+         *            Property names, in upper case
+         * @return Component with the properties found
+         */
+        public ICalendarComponent parse(Collection<String> names) {
+            ICalendarComponent component = new ICalendarComponent(this.name);
+            int depth = 0;
+            for (int i = nextLine(this.start); i < this.end; i = nextLine(i)) {
+                if (isLine(i, BEGIN)) {
+                    depth++;
+                } else if (isLine(i, END)) {
+                    depth--;
+                } else if (depth == 0 && !isFolded(i)) {
+                    int name_end = i;
+                    while (name_end < this.end && content.charAt(name_end) != ':'
+                            && content.charAt(name_end) != ';' && content.charAt(name_end) != '\n') {
+                        name_end++;
+                    }
+                    if (names.contains(content.substring(i, name_end).toUpperCase())) {
+                        ICalendarProperty property = ICalendarProperty.parse(unfold(i));
+                        if (property != null) {
+                            component.addProperty(property);
+                        }
+                    }
+                }
+            }
+            return component;
+        }
+
+        /**
+         * Decodes the whole component.
+         *
+         * @return The component or <code>null</code> if it cannot be decoded
+         */
+        public ICalendarComponent parse() {
+            return ICalendarComponent.parse(getText());
+        }
+
+        /*
+         * The content line starting at the offset, with the folded lines joined
+         */
+        private String unfold(int i) {
+            int next = nextLine(i);
+            if (next >= this.end || !isFolded(next)) {
+                return content.substring(i, trimLine(i, next));
+            }
+            StringBuilder _sb = new StringBuilder();
+            _sb.append(content, i, trimLine(i, next));
+            for (i = next; i < this.end && isFolded(i); i = next) {
+                next = nextLine(i);
+                _sb.append(content, i + 1, trimLine(i + 1, next));
+            }
+            return _sb.toString();
+        }
+    }
+
+    private LazyVCalendar(String content) {
+        this.content = content;
+        this.components = new ArrayList<Component>();
+        scan();
+    }
+
+    /**
+     * Reads the calendar file.
+     *
+     * @param vcalendar_file
+     *            The <code>calendar.ics</code> file of the collection
+     * @return The calendar, empty if the file does not exist
+     */
+    public static LazyVCalendar load(File vcalendar_file) throws IOException, FileLockException {
+        if (vcalendar_file == null || !vcalendar_file.exists()) {
+            return new LazyVCalendar("");
+        }
+        StringBuilder _sb = new StringBuilder((int) Math.min(Integer.MAX_VALUE, vcalendar_file.length()));
+        FileLock _fl = new FileLock(vcalendar_file);
+        Reader reader = new InputStreamReader(new FileInputStream(vcalendar_file), "UTF-8");
+        _fl.lock();
+        try {
+            char[] buffer = new char[BUFFER_SIZE];
+            for (int length = reader.read(buffer); length != -1; length = reader.read(buffer)) {
+                _sb.append(buffer, 0, length);
+            }
+        } finally {
+            _fl.unlockQuietly();
+            reader.close();
+        }
+        return new LazyVCalendar(_sb.toString());
+    }
+
+    /**
+     * Reads a serialized calendar.
+     *
+     * @param content
+     *            Serialized calendar
+     * @return The calendar
+     */
+    public static LazyVCalendar parse(String content) {
+        return new LazyVCalendar(content == null ? "" : content);
+    }
+
+    /**
+     * Gets all the top level components, in the order of the calendar.
+     *
+     * @return A (possibly empty) list of components
+     */
+    public List<Component> getComponents() {
+        return this.components;
+    }
+
+    /**
+     * Gets the top level components with the name.
+     *
+     * @param name
+     *            Component name
+     * @return A (possibly empty) list of components
+     */
+    public List<Component> getComponents(String name) {
+        List<Component> result = new ArrayList<Component>();
+        for (Component component : this.components) {
+            if (component.getName().equals(name)) {
+                result.add(component);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Gets the calendar properties, from the <code>BEGIN:VCALENDAR</code> line to the first
+     * component, as written on it.
+     *
+     * @return Calendar header
+     */
+    public String getHeader() {
+        return this.header;
+    }
+
+    /**
+     * Gets the <code>VTIMEZONE</code> components of the calendar, as written on it.
+     *
+     * @return Time zones or <code>null</code> if the calendar has none
+     */
+    public String getTimeZones() {
+        return this.timezones;
+    }
+
+    /**
+     * Gets the components with the UID as a calendar object resource, the master and its
+     * overridden instances, with the calendar properties and the time zones of the calendar.
+     *
+     * @param uid
+     *            Calendar object UID
+     * @return Calendar data or <code>null</code> if there is no component with the UID
+     */
+    public CalendarData getData(String uid) {
+        StringBuilder _sb = null;
+        for (Component component : this.components) {
+            if (VTIMEZONE.equals(component.getName()) || !uid.equals(component.getValue("UID"))) {
+                continue;
+            }
+            if (_sb == null) {
+                _sb = new StringBuilder();
+            }
+            _sb.append(this.content, component.start, component.end);
+        }
+        return _sb == null ? null : getCalendarData(_sb.toString());
+    }
+
+    /**
+     * Writes the calendar as it was read, as UTF-8.
+     *
+     * @param os
+     *            Output, flushed but not closed
+     * @param timezones
+     *            Include the <code>VTIMEZONE</code> components
+     */
+    public void write(OutputStream os, boolean timezones) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(os, "UTF-8"), BUFFER_SIZE);
+        int i = 0;
+        if (!timezones) {
+            for (Component component : getComponents(VTIMEZONE)) {
+                writer.write(this.content, i, component.start - i);
+                i = component.end;
+            }
+        }
+        writer.write(this.content, i, this.content.length() - i);
+        writer.flush();
+    }
+
+    private CalendarData getCalendarData(String components) {
+        return CalendarData.create(this.header, this.timezones, components.concat(END_VCALENDAR));
+    }
+
+    /*
+     * Single pass over the lines, only the BEGIN and END lines are looked at
+     */
+    private void scan() {
+        StringBuilder _timezones = new StringBuilder();
+        int depth = 0;
+        int start = -1;
+        int header_end = -1;
+        String name = null;
+        for (int i = 0; i < this.content.length(); i = nextLine(i)) {
+            if (isLine(i, BEGIN)) {
+                depth++;
+                if (depth == 2) {
+                    start = i;
+                    name = getLineValue(i, BEGIN.length());
+                    if (header_end < 0) {
+                        header_end = i;
+                    }
+                } else if (depth == 1 && !VCALENDAR.equals(getLineValue(i, BEGIN.length()))) {
+                    depth = 0;
+                }
+            } else if (isLine(i, END)) {
+                if (depth == 2 && start >= 0) {
+                    int end = nextLine(i);
+                    this.components.add(new Component(name, start, end));
+                    if (VTIMEZONE.equals(name)) {
+                        _timezones.append(this.content, start, end);
+                    }
+                    start = -1;
+                } else if (depth == 1 && header_end < 0) {
+                    header_end = i;
+                }
+                depth = Math.max(0, depth - 1);
+            }
+        }
+        this.header = header_end < 0 ? "" : this.content.substring(0, header_end);
+        this.timezones = _timezones.length() == 0 ? null : TimeZoneRegistry.intern(_timezones.toString());
+    }
+
+    private boolean isLine(int i, String prefix) {
+        return this.content.regionMatches(true, i, prefix, 0, prefix.length());
+    }
+
+    private boolean isFolded(int i) {
+        return i < this.content.length() && (this.content.charAt(i) == ' ' || this.content.charAt(i) == '\t');
+    }
+
+    private String getLineValue(int i, int offset) {
+        return this.content.substring(i + offset, trimLine(i, nextLine(i))).trim().toUpperCase();
+    }
+
+    /*
+     * Start of the next line
+     */
+    private int nextLine(int i) {
+        int end = this.content.indexOf('\n', i);
+        return end < 0 ? this.content.length() : end + 1;
+    }
+
+    /*
+     * End of the line, without the line break
+     */
+    private int trimLine(int i, int next) {
+        while (next > i && (this.content.charAt(next - 1) == '\n' || this.content.charAt(next - 1) == '\r')) {
+            next--;
+        }
+        return next;
+    }
+}
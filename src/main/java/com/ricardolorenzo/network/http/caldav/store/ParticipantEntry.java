@@ -0,0 +1,121 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ricardolorenzo.network.http.caldav.store;
+
+import java.io.Serializable;
+
+/**
+ * An <code>ATTENDEE</code> or <code>ORGANIZER</code> property of a calendar object, as kept in
+ * the collection index. The raw value and the <code>PARTSTAT</code> and <code>ROLE</code>
+ * parameters are kept, so the query filters on them can be evaluated without the calendar.
+ *
+ * @author Ricardo Lorenzo
+ *
+ */
+public class ParticipantEntry implements Serializable {
+    private static final long serialVersionUID = 4873209214658172305L;
+    public static final String ATTENDEE = "ATTENDEE";
+    public static final String ORGANIZER = "ORGANIZER";
+
+    private String property;
+    private String value;
+    private String address;
+    private String partstat;
+    private String role;
+
+    public ParticipantEntry(String property, String value, String partstat, String role) {
+        this.property = property;
+        this.value = value;
+        this.address = normalize(value);
+        this.partstat = partstat;
+        this.role = role;
+    }
+
+    /**
+     * Normalizes a calendar user address, removing the <code>mailto:</code> scheme and the case.
+     *
+     * @param address
+     *            Calendar user address
+     * @return Normalized address
+     */
+    public static String normalize(String address) {
+        address = address.trim().toLowerCase();
+        if (address.startsWith("mailto:")) {
+            address = address.substring(7);
+        }
+        return address;
+    }
+
+    /**
+     * Gets the property name, <code>ATTENDEE</code> or <code>ORGANIZER</code>
+     *
+     * @return Property name
+     */
+    public String getProperty() {
+        return this.property;
+    }
+
+    /**
+     * Gets the value of the property, as written
+     *
+     * @return Value
+     */
+    public String getValue() {
+        return this.value;
+    }
+
+    /**
+     * Gets the normalized calendar user address
+     *
+     * @return Address
+     */
+    public String getAddress() {
+        return this.address;
+    }
+
+    /**
+     * Gets the <code>PARTSTAT</code> parameter
+     *
+     * @return Participation status or <code>null</code> if it is not defined
+     */
+    public String getPartstat() {
+        return this.partstat;
+    }
+
+    /**
+     * Gets the <code>ROLE</code> parameter
+     *
+     * @return Role or <code>null</code> if it is not defined
+     */
+    public String getRole() {
+        return this.role;
+    }
+
+    /**
+     * Gets a parameter of the property.
+     *
+     * @param name
+     *            <code>PARTSTAT</code> or <code>ROLE</code>
+     * @return The parameter or <code>null</code> if it is not defined or not indexed
+     */
+    public String getParameter(String name) {
+        if ("PARTSTAT".equals(name)) {
+            return this.partstat;
+        } else if ("ROLE".equals(name)) {
+            return this.role;
+        }
+        return null;
+    }
+}
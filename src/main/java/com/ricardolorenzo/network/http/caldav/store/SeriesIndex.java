@@ -0,0 +1,301 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ricardolorenzo.network.http.caldav.store;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Index of the recurrent objects of a collection that have overridden instances.
+ *
+ * The calendar keeps the overrides as components sharing the UID of the master, so the series are
+ * grouped once from the calendar file, instead of looking for the components of the UID on every
+ * request. The objects without overrides are not kept.
+ *
+ * The writes of the server update the series of the object written. The calendar file is only
+ * grouped again when the collection revision changes in any other way.
+ *
+ * @author Ricardo Lorenzo
+ *
+ */
+public class SeriesIndex {
+    private static final Map<String, SeriesIndex> indexes = new ConcurrentHashMap<String, SeriesIndex>();
+    private static final Set<String> SERIES_PROPERTIES = new HashSet<String>(Arrays.asList("UID",
+            "RECURRENCE-ID"));
+
+    private File vcalendar_file;
+    private long revision;
+    private Map<String, VActionSeries> series;
+    private String header;
+    private Map<String, String> timezones;
+    private Map<String, TimeZone> zones;
+
+    private static class Block {
+        private LazyVCalendar.Component component;
+        private ICalendarComponent properties;
+
+        private Block(LazyVCalendar.Component component) {
+            this.component = component;
+            this.properties = component.parse(SERIES_PROPERTIES);
+        }
+    }
+
+    private SeriesIndex(File vcalendar_file) {
+        this.vcalendar_file = vcalendar_file;
+        this.revision = Long.MIN_VALUE;
+        this.series = new HashMap<String, VActionSeries>();
+        this.header = "";
+        this.timezones = new HashMap<String, String>();
+        this.zones = new HashMap<String, TimeZone>();
+    }
+
+    /**
+     * Gets the series index of the collection, grouping the series again if the collection has
+     * changed.
+     *
+     * @param vcalendar_file
+     *            The <code>calendar.ics</code> file of the collection
+     * @return The series index
+     */
+    public static SeriesIndex getIndex(File vcalendar_file) throws IOException {
+        String key = vcalendar_file.getAbsolutePath();
+        SeriesIndex index = indexes.get(key);
+        if (index == null) {
+            synchronized (indexes) {
+                index = indexes.get(key);
+                if (index == null) {
+                    index = new SeriesIndex(vcalendar_file.getAbsoluteFile());
+                    indexes.put(key, index);
+                }
+            }
+        }
+        index.validate();
+        return index;
+    }
+
+    /**
+     * Forgets the series of a removed collection.
+     *
+     * @param directory
+     *            The collection folder
+     */
+    public static void remove(File directory) {
+        indexes.remove(new File(directory, "calendar.ics").getAbsolutePath());
+    }
+
+    /**
+     * Gets the series of the calendar object.
+     *
+     * @param uid
+     *            Calendar object UID
+     * @return The series or <code>null</code> if the object has no overridden instances
+     */
+    public synchronized VActionSeries getSeries(String uid) {
+        return this.series.get(uid);
+    }
+
+    /**
+     * Gets the ETag of the calendar object, which covers all the series if the object has
+     * overridden instances.
+     *
+     * @param entry
+     *            Entry of the collection index
+     * @return ETag, including the quotes
+     */
+    public String getETag(VActionEntry entry) {
+        VActionSeries s = getSeries(entry.getUid());
+        if (s != null) {
+            return s.getETag();
+        }
+        return entry.getETag();
+    }
+
+    private synchronized void validate() throws IOException {
+        long current = CollectionRevision.getRevision(this.vcalendar_file);
+        if (this.revision != current) {
+            group(LazyVCalendar.parse(read(this.vcalendar_file)));
+            this.revision = current;
+        }
+    }
+
+    private static String read(File file) throws IOException {
+        if (!file.exists()) {
+            return "";
+        }
+        StringBuilder _sb = new StringBuilder((int) Math.min(file.length(), Integer.MAX_VALUE));
+        Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+        try {
+            char[] buffer = new char[8192];
+            for (int read = reader.read(buffer); read != -1; read = reader.read(buffer)) {
+                _sb.append(buffer, 0, read);
+            }
+        } finally {
+            reader.close();
+        }
+        return _sb.toString();
+    }
+
+    /**
+     * Updates the series of the calendar objects of a write done by the server. All the objects
+     * of the write are updated at once. The update only applies if the index was current before
+     * the write, otherwise the calendar is grouped again on the next access.
+     *
+     * @param objects
+     *            The components of every written object by UID, as written on the calendar, none
+     *            if the object was removed
+     * @param revision
+     *            Collection revision after the write
+     */
+    public synchronized void update(Map<String, List<String>> objects, long revision) {
+        if (this.revision != revision - 1) {
+            return;
+        }
+        StringBuilder _sb = new StringBuilder("BEGIN:VCALENDAR\r\n");
+        for (Map.Entry<String, List<String>> object : objects.entrySet()) {
+            this.series.remove(object.getKey());
+            for (String component : object.getValue()) {
+                _sb.append(component);
+                if (!component.endsWith("\n")) {
+                    _sb.append("\r\n");
+                }
+            }
+        }
+        _sb.append("END:VCALENDAR\r\n");
+
+        Map<String, List<Block>> blocks = new LinkedHashMap<String, List<Block>>();
+        Set<String> recurrent = new LinkedHashSet<String>();
+        for (LazyVCalendar.Component component : LazyVCalendar.parse(_sb.toString()).getComponents()) {
+            Block block = new Block(component);
+            String uid = block.properties.getValue("UID");
+            if (uid == null || !objects.containsKey(uid)) {
+                continue;
+            }
+            List<Block> list = blocks.get(uid);
+            if (list == null) {
+                list = new ArrayList<Block>(1);
+                blocks.put(uid, list);
+            }
+            list.add(block);
+            if (block.properties.getProperty("RECURRENCE-ID") != null) {
+                recurrent.add(uid);
+            }
+        }
+        for (String uid : recurrent) {
+            this.series.put(uid, build(uid, blocks.get(uid)));
+        }
+        this.revision = revision;
+    }
+
+    /*
+     * Groups the top level components of the calendar keeping the written lines, so the
+     * components are sent as they were stored. Only the UID and the RECURRENCE-ID of the
+     * components are decoded, and the whole components of the series only.
+     */
+    private void group(LazyVCalendar vc) {
+        this.header = vc.getHeader();
+        this.timezones = new HashMap<String, String>();
+        this.zones = new HashMap<String, TimeZone>();
+        Map<String, List<Block>> objects = new LinkedHashMap<String, List<Block>>();
+        Set<String> recurrent = new LinkedHashSet<String>();
+        for (LazyVCalendar.Component component : vc.getComponents()) {
+            if ("VTIMEZONE".equals(component.getName())) {
+                String tzid = component.getValue("TZID");
+                if (tzid != null) {
+                    String timezone = TimeZoneRegistry.intern(component.getText());
+                    this.timezones.put(tzid, timezone);
+                    this.zones.putAll(TimeZoneRegistry.getTimeZones(timezone));
+                }
+            } else if (VActionEntry.VEVENT.equals(component.getName())
+                    || VActionEntry.VTODO.equals(component.getName())) {
+                Block block = new Block(component);
+                String uid = block.properties.getValue("UID");
+                if (uid != null) {
+                    List<Block> blocks = objects.get(uid);
+                    if (blocks == null) {
+                        blocks = new ArrayList<Block>(1);
+                        objects.put(uid, blocks);
+                    }
+                    blocks.add(block);
+                    if (block.properties.getProperty("RECURRENCE-ID") != null) {
+                        recurrent.add(uid);
+                    }
+                }
+            }
+        }
+
+        this.series = new HashMap<String, VActionSeries>();
+        for (String uid : recurrent) {
+            this.series.put(uid, build(uid, objects.get(uid)));
+        }
+    }
+
+    private VActionSeries build(String uid, List<Block> blocks) {
+        VActionSeries s = new VActionSeries(uid, blocks.get(0).component.getName());
+        Set<String> tzids = new LinkedHashSet<String>();
+        for (Block b : blocks) {
+            String content = b.component.getText();
+            ICalendarProperty recurrence_id = b.properties.getProperty("RECURRENCE-ID");
+            if (recurrence_id == null) {
+                s.setMaster(content);
+            } else {
+                s.addOverride(ICalendarDates.getTime(recurrence_id, this.zones), content);
+            }
+            ICalendarComponent component = b.component.parse();
+            if (component != null) {
+                addTimeZones(component, tzids);
+            }
+        }
+
+        StringBuilder _sb = new StringBuilder();
+        _sb.append(this.header);
+        for (String tzid : tzids) {
+            if (this.timezones.containsKey(tzid)) {
+                _sb.append(this.timezones.get(tzid));
+            }
+        }
+        for (String component : s.getComponents()) {
+            _sb.append(component);
+        }
+        _sb.append("END:VCALENDAR\r\n");
+        s.setCalendar(_sb.toString());
+        return s;
+    }
+
+    private static void addTimeZones(ICalendarComponent component, Set<String> tzids) {
+        for (ICalendarProperty property : component.getProperties()) {
+            String tzid = property.getParameter("TZID");
+            if (tzid != null) {
+                tzids.add(tzid);
+            }
+        }
+        for (ICalendarComponent child : component.getComponents()) {
+            addTimeZones(child, tzids);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ricardolorenzo.network.http.caldav.store;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * In memory index of the todos of a collection.
+ *
+ * The todos are sorted by the end of their bounds, that is the <code>DUE</code> date or the
+ * completion of the undated todos, so the time ranges only look at the todos that end after the
+ * range starts. They are also grouped by <code>STATUS</code> and by their <code>COMPLETED</code>
+ * time. The index is updated incrementally as the todos are written and removed.
+ *
+ * The instances are not thread safe, the collection index synchronizes the access.
+ *
+ * @author Ricardo Lorenzo
+ *
+ */
+public class TaskIndex {
+    private TreeMap<Long, Map<String, VActionEntry>> ends;
+    private TreeMap<Long, Map<String, VActionEntry>> completions;
+    private Map<String, Map<String, VActionEntry>> statuses;
+    private Map<String, VActionEntry> completed;
+    private Map<String, VActionEntry> incomplete;
+
+    public TaskIndex() {
+        this.ends = new TreeMap<Long, Map<String, VActionEntry>>();
+        this.completions = new TreeMap<Long, Map<String, VActionEntry>>();
+        this.statuses = new HashMap<String, Map<String, VActionEntry>>();
+        this.completed = new LinkedHashMap<String, VActionEntry>();
+        this.incomplete = new LinkedHashMap<String, VActionEntry>();
+    }
+
+    /**
+     * Adds the todo to the index. Other objects are ignored.
+     *
+     * @param entry
+     *            Entry of the collection index
+     */
+    public void put(VActionEntry entry) {
+        if (!VActionEntry.VTODO.equals(entry.getType())) {
+            return;
+        }
+        put(this.ends, entry.getEnd(), entry);
+        put(this.statuses, entry.getStatus(), entry);
+        if (entry.getCompleted() == null) {
+            this.incomplete.put(entry.getUid(), entry);
+        } else {
+            this.completed.put(entry.getUid(), entry);
+            if (entry.getCompleted() != Long.MIN_VALUE) {
+                put(this.completions, entry.getCompleted(), entry);
+            }
+        }
+    }
+
+    /**
+     * Removes the todo from the index.
+     *
+     * @param entry
+     *            The entry that was added to the index
+     */
+    public void remove(VActionEntry entry) {
+        if (!VActionEntry.VTODO.equals(entry.getType())) {
+            return;
+        }
+        remove(this.ends, entry.getEnd(), entry);
+        remove(this.statuses, entry.getStatus(), entry);
+        this.incomplete.remove(entry.getUid());
+        this.completed.remove(entry.getUid());
+        if (entry.getCompleted() != null) {
+            remove(this.completions, entry.getCompleted(), entry);
+        }
+    }
+
+    /**
+     * Gets the todos whose bounds overlap the interval.
+     *
+     * @param start
+     *            Interval start, in milliseconds
+     * @param end
+     *            Interval end, in milliseconds
+     * @return UIDs of the todos
+     */
+    public List<String> getUids(long start, long end) {
+        List<String> uids = new ArrayList<String>();
+        for (Map<String, VActionEntry> group : this.ends.tailMap(start, true).values()) {
+            for (VActionEntry entry : group.values()) {
+                if (entry.mayOverlap(start, end)) {
+                    uids.add(entry.getUid());
+                }
+            }
+        }
+        return uids;
+    }
+
+    /**
+     * Gets the todos with or without the <code>COMPLETED</code> property.
+     *
+     * @param completed
+     *            <code>true</code> for the completed todos
+     * @return UIDs of the todos
+     */
+    public List<String> getUids(boolean completed) {
+        if (completed) {
+            return new ArrayList<String>(this.completed.keySet());
+        }
+        return new ArrayList<String>(this.incomplete.keySet());
+    }
+
+    /**
+     * Gets the todos completed in the interval, including the start and excluding the end.
+     *
+     * @param start
+     *            Interval start, in milliseconds
+     * @param end
+     *            Interval end, in milliseconds
+     * @return UIDs of the todos
+     */
+    public List<String> getCompletedUids(long start, long end) {
+        List<String> uids = new ArrayList<String>();
+        if (start >= end) {
+            return uids;
+        }
+        for (Map<String, VActionEntry> group : this.completions.subMap(start, true, end, false).values()) {
+            uids.addAll(group.keySet());
+        }
+        return uids;
+    }
+
+    /**
+     * Gets the distinct <code>STATUS</code> values of the todos, as written.
+     *
+     * @return Status values
+     */
+    public List<String> getStatuses() {
+        List<String> result = new ArrayList<String>();
+        for (String status : this.statuses.keySet()) {
+            if (status != null) {
+                result.add(status);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Gets the todos with the <code>STATUS</code> value.
+     *
+     * @param status
+     *            Status value as written, or <code>null</code> for the todos without status
+     * @return UIDs of the todos
+     */
+    public List<String> getStatusUids(String status) {
+        Map<String, VActionEntry> group = this.statuses.get(status);
+        if (group == null) {
+            return new ArrayList<String>();
+        }
+        return new ArrayList<String>(group.keySet());
+    }
+
+    private static <K> void put(Map<K, Map<String, VActionEntry>> map, K key, VActionEntry entry) {
+        Map<String, VActionEntry> group = map.get(key);
+        if (group == null) {
+            group = new LinkedHashMap<String, VActionEntry>();
+            map.put(key, group);
+        }
+        group.put(entry.getUid(), entry);
+    }
+
+    private static <K> void remove(Map<K, Map<String, VActionEntry>> map, K key, VActionEntry entry) {
+        Map<String, VActionEntry> group = map.get(key);
+        if (group != null && group.get(entry.getUid()) == entry) {
+            group.remove(entry.getUid());
+            if (group.isEmpty()) {
+                map.remove(key);
+            }
+        }
+    }
+}
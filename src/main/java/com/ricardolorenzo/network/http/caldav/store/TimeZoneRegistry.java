@@ -0,0 +1,167 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ricardolorenzo.network.http.caldav.store;
+
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of the <code>VTIMEZONE</code> components shared by the stored objects.
+ *
+ * Every object of a collection is rendered with the time zone of the calendar, so the same
+ * <code>VTIMEZONE</code> text is repeated on all of them. The registry keeps a single instance of
+ * every distinct text, referenced by all the objects that use it. The texts no longer referenced
+ * are released by the garbage collector.
+ *
+ * Every distinct definition is also compiled once into a <code>CompiledTimeZone</code>, keyed by
+ * its <code>TZID</code> and the hash of the definition. The dates with a <code>TZID</code>
+ * parameter are converted with the definitions of their own calendar, so the same identifier
+ * defined in different ways by other calendars never changes them. The identifiers not defined by
+ * the calendar fall back to the Java time zones, and the unknown ones have no time zone.
+ *
+ * @author Ricardo Lorenzo
+ *
+ */
+public class TimeZoneRegistry {
+    private static final Map<String, WeakReference<String>> timezones =
+            new WeakHashMap<String, WeakReference<String>>();
+    private static final Map<String, Map<String, TimeZone>> calendars =
+            new WeakHashMap<String, Map<String, TimeZone>>();
+    private static final Map<String, CompiledTimeZone> definitions =
+            new ConcurrentHashMap<String, CompiledTimeZone>();
+    private static final Map<String, TimeZone> zones = new ConcurrentHashMap<String, TimeZone>();
+    private static final int MAX_ZONES = 1024;
+    private static final String BEGIN = "BEGIN:VTIMEZONE";
+    private static final String END = "END:VTIMEZONE";
+
+    /**
+     * Gets the shared instance of the time zone text.
+     *
+     * @param timezone
+     *            Serialized <code>VTIMEZONE</code> components
+     * @return The registered text, equal to the parameter
+     */
+    public static String intern(String timezone) {
+        if (timezone == null) {
+            return null;
+        }
+        synchronized (timezones) {
+            WeakReference<String> reference = timezones.get(timezone);
+            if (reference != null) {
+                String registered = reference.get();
+                if (registered != null) {
+                    return registered;
+                }
+            }
+            timezones.put(timezone, new WeakReference<String>(timezone));
+        }
+        return timezone;
+    }
+
+    /**
+     * Gets the time zones defined by the <code>VTIMEZONE</code> components of a calendar. The
+     * definitions are compiled the first time they are seen.
+     *
+     * @param timezone
+     *            Serialized <code>VTIMEZONE</code> components, or <code>null</code>
+     * @return The compiled time zones by <code>TZID</code>
+     */
+    public static Map<String, TimeZone> getTimeZones(String timezone) {
+        if (timezone == null || timezone.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        synchronized (calendars) {
+            Map<String, TimeZone> result = calendars.get(timezone);
+            if (result != null) {
+                return result;
+            }
+        }
+        Map<String, TimeZone> result = Collections.unmodifiableMap(compile(timezone));
+        synchronized (calendars) {
+            calendars.put(intern(timezone), result);
+        }
+        return result;
+    }
+
+    /**
+     * Gets the time zone of a <code>TZID</code>.
+     *
+     * @param tzid
+     *            Time zone identifier
+     * @param timezones
+     *            Time zones defined by the calendar of the value, or <code>null</code>
+     * @return The definition of the calendar, the Java time zone if the calendar does not define
+     *         it, or <code>null</code> if the identifier is unknown
+     */
+    public static TimeZone getTimeZone(String tzid, Map<String, TimeZone> timezones) {
+        if (timezones != null) {
+            TimeZone tz = timezones.get(tzid);
+            if (tz != null) {
+                return tz;
+            }
+        }
+        TimeZone tz = zones.get(tzid);
+        if (tz == null) {
+            tz = TimeZone.getTimeZone(tzid);
+            if (!tz.getID().equals(tzid)) {
+                /*
+                 * Java returns GMT for the unknown identifiers
+                 */
+                return null;
+            }
+            if (zones.size() < MAX_ZONES) {
+                zones.put(tzid, tz);
+            }
+        }
+        return tz;
+    }
+
+    /*
+     * Compiles the definitions not seen before
+     */
+    private static Map<String, TimeZone> compile(String timezone) {
+        Map<String, TimeZone> result = new HashMap<String, TimeZone>();
+        for (int start = timezone.indexOf(BEGIN); start != -1; start = timezone.indexOf(BEGIN, start + 1)) {
+            int end = timezone.indexOf(END, start);
+            if (end == -1) {
+                break;
+            }
+            String definition = timezone.substring(start, end + END.length());
+            ICalendarComponent vtimezone = ICalendarComponent.parse(definition);
+            String tzid = vtimezone != null ? vtimezone.getValue("TZID") : null;
+            if (tzid == null) {
+                continue;
+            }
+            String key = tzid + "#" + Integer.toHexString(definition.hashCode());
+            CompiledTimeZone tz = definitions.get(key);
+            if (tz == null) {
+                tz = CompiledTimeZone.compile(vtimezone);
+                if (tz == null) {
+                    continue;
+                }
+                if (definitions.size() < MAX_ZONES) {
+                    definitions.put(key, tz);
+                }
+            }
+            result.put(tzid, tz);
+        }
+        return result;
+    }
+}
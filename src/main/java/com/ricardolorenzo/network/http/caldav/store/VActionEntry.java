@@ -0,0 +1,191 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ricardolorenzo.network.http.caldav.store;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Metadata of a calendar object (VEVENT or VTODO) computed when the object is written.
+ *
+ * The bounds are the first start and the last end of all the occurrences of the object, in
+ * milliseconds, or <code>Long.MIN_VALUE</code> and <code>Long.MAX_VALUE</code> when the object
+ * has no start or no end (as an endless recurrence).
+ *
+ * The <code>ATTENDEE</code> and <code>ORGANIZER</code> properties of the object are kept as
+ * participants, to answer the participation queries from the index. The todos also keep their
+ * <code>STATUS</code> and <code>COMPLETED</code> properties.
+ *
+ * The object is also kept as a calendar resource with the calendar time zone, rendered once when
+ * it is written, so the responses copy it instead of serializing the object again. It is not
+ * persisted with the index.
+ *
+ * @author Ricardo Lorenzo
+ *
+ */
+public class VActionEntry implements Serializable {
+    private static final long serialVersionUID = -7315086112974381927L;
+    public static final String VEVENT = "VEVENT";
+    public static final String VTODO = "VTODO";
+
+    private String uid;
+    private String type;
+    private String etag;
+    private long start;
+    private long end;
+    private boolean recurrent;
+    private List<ParticipantEntry> participants;
+    private String status;
+    private Long completed;
+    private transient CalendarData data;
+
+    public VActionEntry(String uid, String type, String etag) {
+        this(uid, type, etag, Long.MIN_VALUE, Long.MAX_VALUE, false);
+    }
+
+    public VActionEntry(String uid, String type, String etag, long start, long end, boolean recurrent) {
+        this(uid, type, etag, start, end, recurrent, null);
+    }
+
+    public VActionEntry(String uid, String type, String etag, long start, long end, boolean recurrent,
+            List<ParticipantEntry> participants) {
+        this(uid, type, etag, start, end, recurrent, participants, null, null);
+    }
+
+    public VActionEntry(String uid, String type, String etag, long start, long end, boolean recurrent,
+            List<ParticipantEntry> participants, String status, Long completed) {
+        this.uid = uid;
+        this.type = type;
+        this.etag = etag;
+        this.start = start;
+        this.end = end;
+        this.recurrent = recurrent;
+        if (participants == null) {
+            this.participants = Collections.emptyList();
+        } else {
+            this.participants = participants;
+        }
+        this.status = status;
+        this.completed = completed;
+    }
+
+    /**
+     * Gets the UID of the calendar object
+     *
+     * @return UID
+     */
+    public String getUid() {
+        return this.uid;
+    }
+
+    /**
+     * Gets the component type, <code>VEVENT</code> or <code>VTODO</code>
+     *
+     * @return Component type
+     */
+    public String getType() {
+        return this.type;
+    }
+
+    /**
+     * Gets the strong ETag of the calendar object, including the quotes
+     *
+     * @return ETag
+     */
+    public String getETag() {
+        return this.etag;
+    }
+
+    /**
+     * Gets the start of the first occurrence, in milliseconds
+     *
+     * @return Start
+     */
+    public long getStart() {
+        return this.start;
+    }
+
+    /**
+     * Gets the end of the last occurrence, in milliseconds
+     *
+     * @return End
+     */
+    public long getEnd() {
+        return this.end;
+    }
+
+    /**
+     * Verify if the object has <code>RRULE</code> or <code>RDATE</code> recurrences, or
+     * overridden instances.
+     */
+    public boolean isRecurrent() {
+        return this.recurrent;
+    }
+
+    /**
+     * Gets the <code>ATTENDEE</code> and <code>ORGANIZER</code> properties of the object
+     *
+     * @return Participants
+     */
+    public List<ParticipantEntry> getParticipants() {
+        return this.participants;
+    }
+
+    /**
+     * Gets the <code>STATUS</code> property of the todo, as written
+     *
+     * @return Status or <code>null</code> if it is not defined
+     */
+    public String getStatus() {
+        return this.status;
+    }
+
+    /**
+     * Gets the <code>COMPLETED</code> time of the todo, in milliseconds, or
+     * <code>Long.MIN_VALUE</code> if the property is defined but its value is not valid
+     *
+     * @return Completion time or <code>null</code> if the property is not defined
+     */
+    public Long getCompleted() {
+        return this.completed;
+    }
+
+    /**
+     * Gets the object as a calendar resource, with the calendar time zone
+     *
+     * @return Serialized calendar or <code>null</code> if it could not be rendered
+     */
+    public CalendarData getData() {
+        return this.data;
+    }
+
+    void setData(CalendarData data) {
+        this.data = data;
+    }
+
+    /**
+     * Verify if any occurrence of the object may overlap the interval. A <code>false</code> value
+     * means no occurrence overlaps it.
+     *
+     * @param start
+     *            Interval start, in milliseconds
+     * @param end
+     *            Interval end, in milliseconds
+     */
+    public boolean mayOverlap(long start, long end) {
+        return start <= this.end && end >= this.start;
+    }
+}
@@ -0,0 +1,165 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ricardolorenzo.network.http.caldav.store;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * A recurrent calendar object with its overridden instances, that is the master component and
+ * the components with the same UID and a <code>RECURRENCE-ID</code>.
+ *
+ * The components are kept as written in the calendar and the overrides are sorted by the start of
+ * the instance they replace. The whole series is also kept as a calendar, ready to be sent.
+ *
+ * @author Ricardo Lorenzo
+ *
+ */
+public class VActionSeries {
+    private String uid;
+    private String type;
+    private String master;
+    private TreeMap<Long, String> overrides;
+    private List<String> others;
+    private CalendarData calendar;
+    private String etag;
+
+    public VActionSeries(String uid, String type) {
+        this.uid = uid;
+        this.type = type;
+        this.overrides = new TreeMap<Long, String>();
+        this.others = new ArrayList<String>();
+    }
+
+    /**
+     * Gets the UID of the series
+     *
+     * @return UID
+     */
+    public String getUid() {
+        return this.uid;
+    }
+
+    /**
+     * Gets the component type, <code>VEVENT</code> or <code>VTODO</code>
+     *
+     * @return Component type
+     */
+    public String getType() {
+        return this.type;
+    }
+
+    /**
+     * Gets the master component, as written
+     *
+     * @return Master component or <code>null</code> if the calendar only has overrides
+     */
+    public String getMaster() {
+        return this.master;
+    }
+
+    /**
+     * Gets the component that overrides an instance of the series.
+     *
+     * @param start
+     *            Original start of the instance, as its <code>RECURRENCE-ID</code>, in
+     *            milliseconds
+     * @return The override, as written, or <code>null</code> if the instance is not overridden
+     */
+    public String getOverride(long start) {
+        return this.overrides.get(start);
+    }
+
+    /**
+     * Gets an overridden instance as a calendar object resource, with the calendar properties and
+     * the time zones of the series. Used to replace the instances of an expanded series.
+     *
+     * @param start
+     *            Original start of the instance, in milliseconds
+     * @return Calendar data or <code>null</code> if the instance is not overridden
+     */
+    public CalendarData getInstance(long start) {
+        String override = getOverride(start);
+        if (override == null || this.calendar == null) {
+            return null;
+        }
+        return CalendarData.create(this.calendar.getPieces(false)[0], this.calendar.getTimeZones(), override
+                .concat("END:VCALENDAR\r\n"));
+    }
+
+    /**
+     * Gets the overrides, sorted by the start of the instances they replace
+     *
+     * @return Overrides, as written
+     */
+    public Collection<String> getOverrides() {
+        return this.overrides.values();
+    }
+
+    /**
+     * Gets all the components, the master first
+     *
+     * @return Components, as written
+     */
+    public List<String> getComponents() {
+        List<String> components = new ArrayList<String>(this.overrides.size() + this.others.size() + 1);
+        if (this.master != null) {
+            components.add(this.master);
+        }
+        components.addAll(this.overrides.values());
+        components.addAll(this.others);
+        return components;
+    }
+
+    /**
+     * Gets the series as a calendar object resource
+     *
+     * @return Serialized calendar
+     */
+    public CalendarData getCalendar() {
+        return this.calendar;
+    }
+
+    /**
+     * Gets the strong ETag of the whole series, including the quotes
+     *
+     * @return ETag
+     */
+    public String getETag() {
+        return this.etag;
+    }
+
+    void setMaster(String master) {
+        this.master = master;
+    }
+
+    /*
+     * Overrides whose RECURRENCE-ID can not be read are kept at the end
+     */
+    void addOverride(Long start, String component) {
+        if (start == null || this.overrides.containsKey(start)) {
+            this.others.add(component);
+        } else {
+            this.overrides.put(start, component);
+        }
+    }
+
+    void setCalendar(String calendar) {
+        this.calendar = CalendarData.parse(calendar);
+        this.etag = VCalendarIndex.computeETag(calendar);
+    }
+}
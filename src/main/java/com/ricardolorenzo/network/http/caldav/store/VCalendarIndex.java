@@ -0,0 +1,786 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ricardolorenzo.network.http.caldav.store;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ricardolorenzo.file.lock.FileLock;
+import com.ricardolorenzo.file.lock.FileLockException;
+import com.ricardolorenzo.icalendar.VAction;
+import com.ricardolorenzo.icalendar.VCalendar;
+import com.ricardolorenzo.icalendar.VCalendarException;
+import com.ricardolorenzo.icalendar.VEvent;
+import com.ricardolorenzo.icalendar.VTimeZone;
+import com.ricardolorenzo.icalendar.VTodo;
+
+/**
+ * Index of the calendar objects of a collection.
+ *
+ * The index is updated when the objects are written and persisted in the hidden
+ * <code>.index</code> file of the collection folder. It records the collection revision it
+ * reflects and is rebuilt from the calendar when that revision is not the current one. The object
+ * data is not persisted, so a write does not serialize the bodies of the whole collection. It is
+ * read back from the calendar once, when the persisted index is loaded.
+ *
+ * There is one entry by UID. The master of a recurrent object and its overridden instances share
+ * the entry, whose bounds cover the occurrences of all of them.
+ *
+ * A Bloom filter of the UIDs is kept in memory, so the lookups of objects that are not in the
+ * collection are answered before the index is loaded or validated, without reading the calendar.
+ *
+ * The participants of the objects are also mapped in memory by their normalized calendar user
+ * address, so the invitation queries only look at the objects of the matching addresses, and the
+ * todos are kept in a <code>TaskIndex</code> for the task queries.
+ *
+ * @author Ricardo Lorenzo
+ *
+ */
+public class VCalendarIndex implements Serializable {
+    private static final long serialVersionUID = -1688135903418417723L;
+    private final static Logger logger = LoggerFactory.getLogger(VCalendarIndex.class);
+    private static final String INDEX_FILE = ".index";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final Map<String, VCalendarIndex> indexes = new ConcurrentHashMap<String, VCalendarIndex>();
+    private static final int MIN_FILTER_CAPACITY = 64;
+    private static final long DAY = 86400000L;
+    private static final String RECURRENCE_ID = "RECURRENCE-ID";
+    /*
+     * The properties read to build the entries
+     */
+    private static final Set<String> INDEXED_PROPERTIES = new HashSet<String>(Arrays.asList("UID", "DTSTART",
+            "DTEND", "DUE", "DURATION", "CREATED", "COMPLETED", "STATUS", "RRULE", "RDATE", RECURRENCE_ID,
+            ParticipantEntry.ORGANIZER, ParticipantEntry.ATTENDEE));
+    private static volatile double false_positive_rate = 0.01;
+
+    private transient File vcalendar_file;
+    private long revision;
+    private Map<String, VActionEntry> entries;
+    private transient BloomFilter filter;
+    private transient int removed;
+    private transient Map<String, List<VActionEntry>> participants;
+    private transient TaskIndex tasks;
+    private transient boolean loaded;
+
+    private VCalendarIndex(File vcalendar_file) {
+        this.vcalendar_file = vcalendar_file;
+        this.revision = Long.MIN_VALUE;
+        this.entries = new LinkedHashMap<String, VActionEntry>();
+    }
+
+    /**
+     * Gets the index of the collection, loading or rebuilding it if needed.
+     *
+     * @param vcalendar_file
+     *            The <code>calendar.ics</code> file of the collection
+     * @return The collection index
+     */
+    public static VCalendarIndex getIndex(File vcalendar_file) throws VCalendarException, IOException,
+            FileLockException {
+        File directory = getDirectory(vcalendar_file);
+        String key = directory.getAbsolutePath();
+        VCalendarIndex index = indexes.get(key);
+        if (index == null) {
+            synchronized (indexes) {
+                index = indexes.get(key);
+                if (index == null) {
+                    index = loadIndex(vcalendar_file);
+                    indexes.put(key, index);
+                }
+            }
+        }
+        index.validate();
+        return index;
+    }
+
+    /**
+     * Forgets the index of a removed collection.
+     *
+     * @param directory
+     *            The collection folder
+     */
+    public static void remove(File directory) {
+        indexes.remove(directory.getAbsolutePath());
+    }
+
+    /**
+     * Sets the false positive rate of the UID filters created from now on.
+     *
+     * @param rate
+     *            False positive rate, between 0 and 1
+     */
+    public static void setFalsePositiveRate(double rate) {
+        if (rate <= 0 || rate >= 1) {
+            throw new IllegalArgumentException("invalid false positive rate [" + rate + "]");
+        }
+        false_positive_rate = rate;
+    }
+
+    /**
+     * Computes the strong ETag for the serialized calendar object. The trailing line breaks are
+     * not part of the ETag, so the object has the same ETag as rendered by the library and as read
+     * back from the calendar file.
+     *
+     * @param content
+     *            Serialized calendar object
+     * @return ETag, including the quotes
+     */
+    public static String computeETag(String content) {
+        int length = content.length();
+        while (length > 0 && (content.charAt(length - 1) == '\n' || content.charAt(length - 1) == '\r')) {
+            length--;
+        }
+        content = content.substring(0, length);
+        try {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            byte[] digest = md.digest(content.getBytes("UTF-8"));
+            StringBuilder _sb = new StringBuilder(digest.length * 2 + 2);
+            _sb.append("\"");
+            for (byte b : digest) {
+                _sb.append(HEX[(b >> 4) & 0x0f]);
+                _sb.append(HEX[b & 0x0f]);
+            }
+            _sb.append("\"");
+            return _sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Gets the entry of the calendar object.
+     *
+     * @param uid
+     *            Calendar object UID
+     * @return The entry or <code>null</code> if the object does not exists
+     */
+    public synchronized VActionEntry getEntry(String uid) {
+        return this.entries.get(uid);
+    }
+
+    /**
+     * Verify if the calendar object may exist in the collection, without loading or validating the
+     * index. A <code>false</code> value means the object does not exists. If the index is not in
+     * memory or the collection has changed since it was built, the object may exist.
+     *
+     * @param vcalendar_file
+     *            The <code>calendar.ics</code> file of the collection
+     * @param uid
+     *            Calendar object UID
+     */
+    public static boolean mightContain(File vcalendar_file, String uid) {
+        VCalendarIndex index = indexes.get(getDirectory(vcalendar_file).getAbsolutePath());
+        if (index == null) {
+            return true;
+        }
+        synchronized (index) {
+            if (index.revision != CollectionRevision.getRevision(vcalendar_file)) {
+                return true;
+            }
+            if (index.filter == null || index.filter.isSaturated() || index.removed > index.entries.size()) {
+                index.buildFilter();
+            }
+            return index.filter.mightContain(uid);
+        }
+    }
+
+    /**
+     * Gets all the entries of the collection.
+     *
+     * @return A copy of the entries list
+     */
+    public synchronized List<VActionEntry> getEntries() {
+        return new ArrayList<VActionEntry>(this.entries.values());
+    }
+
+    /**
+     * Gets the normalized addresses of the participants of the collection objects.
+     *
+     * @return A copy of the addresses list
+     */
+    public synchronized List<String> getParticipantAddresses() {
+        if (this.participants == null) {
+            buildParticipants();
+        }
+        return new ArrayList<String>(this.participants.keySet());
+    }
+
+    /**
+     * Gets the entries of the objects where the address is an attendee or the organizer.
+     *
+     * @param address
+     *            Normalized calendar user address
+     * @return A copy of the entries list
+     */
+    public synchronized List<VActionEntry> getParticipantEntries(String address) {
+        if (this.participants == null) {
+            buildParticipants();
+        }
+        List<VActionEntry> result = this.participants.get(address);
+        if (result == null) {
+            return new ArrayList<VActionEntry>();
+        }
+        return new ArrayList<VActionEntry>(result);
+    }
+
+    /**
+     * Gets the todos whose bounds overlap the interval.
+     *
+     * @param start
+     *            Interval start, in milliseconds
+     * @param end
+     *            Interval end, in milliseconds
+     * @return UIDs of the todos
+     */
+    public synchronized List<String> getTodoUids(long start, long end) {
+        return getTaskIndex().getUids(start, end);
+    }
+
+    /**
+     * Gets the todos with or without the <code>COMPLETED</code> property.
+     *
+     * @param completed
+     *            <code>true</code> for the completed todos
+     * @return UIDs of the todos
+     */
+    public synchronized List<String> getTodoUids(boolean completed) {
+        return getTaskIndex().getUids(completed);
+    }
+
+    /**
+     * Gets the todos completed in the interval, including the start and excluding the end.
+     *
+     * @param start
+     *            Interval start, in milliseconds
+     * @param end
+     *            Interval end, in milliseconds
+     * @return UIDs of the todos
+     */
+    public synchronized List<String> getCompletedTodoUids(long start, long end) {
+        return getTaskIndex().getCompletedUids(start, end);
+    }
+
+    /**
+     * Gets the distinct <code>STATUS</code> values of the todos, as written.
+     *
+     * @return Status values
+     */
+    public synchronized List<String> getTodoStatuses() {
+        return getTaskIndex().getStatuses();
+    }
+
+    /**
+     * Gets the todos with the <code>STATUS</code> value.
+     *
+     * @param status
+     *            Status value as written, or <code>null</code> for the todos without status
+     * @return UIDs of the todos
+     */
+    public synchronized List<String> getTodoUids(String status) {
+        return getTaskIndex().getStatusUids(status);
+    }
+
+    /**
+     * Gets the ETag of the calendar object.
+     *
+     * @param va
+     *            Calendar object
+     * @return ETag, including the quotes
+     */
+    public String getETag(VAction va) {
+        VActionEntry entry = getEntry(va.getUid());
+        if (entry != null) {
+            return entry.getETag();
+        }
+        return computeETag(va.toString());
+    }
+
+    /**
+     * Adds or replaces the calendar object on the index, from all its components: the master and
+     * its overridden instances. The bounds of the entry cover the occurrences of all of them.
+     *
+     * @param uid
+     *            Calendar object UID
+     * @param components
+     *            Components with the UID
+     * @param tz
+     *            Time zone of the calendar, sent with the object
+     */
+    public synchronized void putVActions(String uid, List<? extends VAction> components, VTimeZone tz) {
+        List<ICalendarComponent> _components = new ArrayList<ICalendarComponent>(components.size());
+        VAction master = null;
+        String etag = null;
+        for (VAction va : components) {
+            String content = va.toString();
+            ICalendarComponent component = ICalendarComponent.parse(content);
+            if (master == null || (component != null && component.getProperty(RECURRENCE_ID) == null)) {
+                master = va;
+                etag = computeETag(content);
+            }
+            if (component != null) {
+                _components.add(component);
+            }
+        }
+        if (master == null) {
+            removeVAction(uid);
+            return;
+        }
+        String type = master instanceof VTodo ? VActionEntry.VTODO : VActionEntry.VEVENT;
+        /*
+         * Rendered first, the dates are read with the time zones of the calendar
+         */
+        CalendarData data = CalendarData.parse(render(master, tz));
+        putEntry(uid, type, etag, _components, data);
+    }
+
+    /*
+     * The components of a lazy calendar, grouped by UID. Only the properties kept on the index are
+     * decoded, and the original text of the master is kept as the object data.
+     */
+    private void putComponents(List<LazyVCalendar.Component> components) {
+        Map<String, List<ICalendarComponent>> objects = new LinkedHashMap<String, List<ICalendarComponent>>();
+        Map<String, LazyVCalendar.Component> masters = new HashMap<String, LazyVCalendar.Component>();
+        for (LazyVCalendar.Component component : components) {
+            String name = component.getName();
+            if (!VActionEntry.VEVENT.equals(name) && !VActionEntry.VTODO.equals(name)) {
+                continue;
+            }
+            ICalendarComponent _component = component.parse(INDEXED_PROPERTIES);
+            String uid = _component.getValue("UID");
+            if (uid == null) {
+                continue;
+            }
+            List<ICalendarComponent> list = objects.get(uid);
+            if (list == null) {
+                list = new ArrayList<ICalendarComponent>();
+                objects.put(uid, list);
+            }
+            list.add(_component);
+            if (!masters.containsKey(uid) || _component.getProperty(RECURRENCE_ID) == null) {
+                masters.put(uid, component);
+            }
+        }
+        for (Map.Entry<String, List<ICalendarComponent>> object : objects.entrySet()) {
+            LazyVCalendar.Component master = masters.get(object.getKey());
+            putEntry(object.getKey(), master.getName(), computeETag(master.getText()), object.getValue(),
+                    master.getData());
+        }
+    }
+
+    /*
+     * The entry takes the type, the todo properties and the data of the master, and the bounds
+     * and the participants of all the components
+     */
+    private void putEntry(String uid, String type, String etag, List<ICalendarComponent> components,
+            CalendarData data) {
+        VActionEntry entry;
+        if (components.isEmpty()) {
+            entry = new VActionEntry(uid, type, etag);
+        } else {
+            Map<String, TimeZone> timezones = TimeZoneRegistry.getTimeZones(data != null ? data.getTimeZones()
+                    : null);
+            long start = Long.MAX_VALUE, end = Long.MIN_VALUE;
+            boolean recurrent = components.size() > 1;
+            List<ParticipantEntry> participants = new ArrayList<ParticipantEntry>();
+            ICalendarComponent master = null;
+            for (ICalendarComponent component : components) {
+                component.setTimeZones(timezones);
+                long[] bounds = getBounds(component);
+                start = Math.min(start, bounds[0]);
+                end = Math.max(end, bounds[1]);
+                recurrent = recurrent || component.getProperty("RRULE") != null
+                        || component.getProperty("RDATE") != null || component.getProperty(RECURRENCE_ID) != null;
+                participants.addAll(getParticipants(component));
+                if (master == null || component.getProperty(RECURRENCE_ID) == null) {
+                    master = component;
+                }
+            }
+            String status = null;
+            Long completed = null;
+            if (VActionEntry.VTODO.equals(type)) {
+                status = master.getValue("STATUS");
+                ICalendarProperty property = master.getProperty("COMPLETED");
+                if (property != null) {
+                    completed = ICalendarDates.getTime(property, master.getTimeZones());
+                    if (completed == null) {
+                        completed = Long.MIN_VALUE;
+                    }
+                }
+            }
+            entry = new VActionEntry(uid, type, etag, start, end, recurrent, participants, status, completed);
+        }
+        entry.setData(data);
+        VActionEntry previous = this.entries.put(uid, entry);
+        if (previous != null) {
+            this.participants = null;
+        } else if (this.participants != null) {
+            putParticipants(entry);
+        }
+        if (this.tasks != null) {
+            if (previous != null) {
+                this.tasks.remove(previous);
+            }
+            this.tasks.put(entry);
+        }
+        if (this.filter != null) {
+            this.filter.put(uid);
+        }
+    }
+
+    /**
+     * Removes the calendar object from the index.
+     *
+     * @param uid
+     *            Calendar object UID
+     */
+    public synchronized void removeVAction(String uid) {
+        VActionEntry entry = this.entries.remove(uid);
+        if (entry != null) {
+            this.removed++;
+            this.participants = null;
+            if (this.tasks != null) {
+                this.tasks.remove(entry);
+            }
+        }
+    }
+
+    /**
+     * Increments the collection revision and persists the index. Must be called once the changes
+     * on the calendar file have been written.
+     *
+     * @return New collection revision
+     */
+    public synchronized long commit() {
+        this.revision = CollectionRevision.increment(this.vcalendar_file);
+        storeIndex();
+        return this.revision;
+    }
+
+    private synchronized void validate() throws VCalendarException, IOException, FileLockException {
+        long current = CollectionRevision.getRevision(this.vcalendar_file);
+        if (this.revision != current) {
+            rebuild(current);
+        } else if (!this.loaded) {
+            loadData();
+        }
+    }
+
+    /*
+     * The data of the objects of a persisted index, from the master components of the calendar
+     */
+    private void loadData() throws IOException, FileLockException {
+        List<String> names = Arrays.asList("UID", RECURRENCE_ID);
+        Map<String, LazyVCalendar.Component> masters = new HashMap<String, LazyVCalendar.Component>();
+        for (LazyVCalendar.Component component : LazyVCalendar.load(this.vcalendar_file).getComponents()) {
+            String name = component.getName();
+            if (!VActionEntry.VEVENT.equals(name) && !VActionEntry.VTODO.equals(name)) {
+                continue;
+            }
+            ICalendarComponent _component = component.parse(names);
+            String uid = _component.getValue("UID");
+            if (uid != null && (!masters.containsKey(uid) || _component.getProperty(RECURRENCE_ID) == null)) {
+                masters.put(uid, component);
+            }
+        }
+        for (VActionEntry entry : this.entries.values()) {
+            LazyVCalendar.Component master = masters.get(entry.getUid());
+            if (master != null) {
+                entry.setData(master.getData());
+            }
+        }
+        this.loaded = true;
+    }
+
+    private void rebuild(long current) throws VCalendarException, IOException, FileLockException {
+        this.entries.clear();
+        this.filter = null;
+        this.participants = null;
+        this.tasks = null;
+        /*
+         * Only the component boundaries are read, the objects are decoded by the lightweight parser
+         */
+        putComponents(LazyVCalendar.load(this.vcalendar_file).getComponents());
+        this.revision = current;
+        this.loaded = true;
+        storeIndex();
+    }
+
+    /**
+     * Computes the first start and the last end of the occurrences of the component.
+     *
+     * @param component
+     *            <code>VEVENT</code> or <code>VTODO</code> component
+     * @return Start and end, in milliseconds
+     */
+    public static long[] getBounds(ICalendarComponent component) {
+        Map<String, TimeZone> timezones = component.getTimeZones();
+        long[] bounds = new long[] { Long.MIN_VALUE, Long.MAX_VALUE };
+        ICalendarProperty dtstart = component.getProperty("DTSTART");
+        Long start = ICalendarDates.getTime(dtstart, timezones);
+        Long end = null;
+        Long duration = ICalendarDates.getDuration(component.getValue("DURATION"));
+        boolean floating = dtstart != null && ICalendarDates.isFloating(dtstart);
+        if ("VTODO".equals(component.getName())) {
+            ICalendarProperty due = component.getProperty("DUE");
+            end = ICalendarDates.getTime(due, timezones);
+            floating = floating || (due != null && ICalendarDates.isFloating(due));
+            if (start == null && end == null) {
+                /*
+                 * Todos without dates are bounded by their creation and completion
+                 */
+                Long created = ICalendarDates.getTime(component.getProperty("CREATED"), timezones);
+                Long completed = ICalendarDates.getTime(component.getProperty("COMPLETED"), timezones);
+                if (created != null && completed != null) {
+                    bounds[0] = Math.min(created, completed);
+                    bounds[1] = Math.max(created, completed);
+                } else if (completed != null) {
+                    bounds[0] = completed;
+                    bounds[1] = completed;
+                } else if (created != null) {
+                    bounds[0] = created;
+                }
+                return bounds;
+            } else if (start == null) {
+                start = end;
+            } else if (end == null) {
+                end = duration != null ? start + duration : start;
+            }
+        } else {
+            if (start == null) {
+                return bounds;
+            }
+            ICalendarProperty dtend = component.getProperty("DTEND");
+            end = ICalendarDates.getTime(dtend, timezones);
+            if (end == null) {
+                if (duration != null) {
+                    end = start + duration;
+                } else if (ICalendarDates.isDate(dtstart)) {
+                    end = start + DAY;
+                } else {
+                    end = start;
+                }
+            }
+        }
+
+        long length = Math.max(0, end - start);
+        long first = start, last = end;
+        ICalendarProperty rrule = component.getProperty("RRULE");
+        if (rrule != null) {
+            last = Long.MAX_VALUE;
+            for (String part : rrule.getValue().split(";")) {
+                if (part.toUpperCase().startsWith("UNTIL=")) {
+                    Long until = ICalendarDates.getTime(part.substring(6),
+                            ICalendarDates.getTimeZone(dtstart, timezones));
+                    if (until != null) {
+                        last = Math.max(end, until + length);
+                    }
+                }
+            }
+        }
+        for (ICalendarProperty rdate : component.getProperties("RDATE")) {
+            for (String value : rdate.getValue().split(",")) {
+                int slash = value.indexOf('/');
+                Long time = ICalendarDates.getTime(slash == -1 ? value : value.substring(0, slash),
+                        ICalendarDates.getTimeZone(rdate, timezones));
+                if (time == null) {
+                    continue;
+                }
+                long time_end = time + length;
+                if (slash != -1) {
+                    Long period_end = ICalendarDates.getTime(value.substring(slash + 1), ICalendarDates
+                            .getTimeZone(rdate, timezones));
+                    Long period_duration = ICalendarDates.getDuration(value.substring(slash + 1));
+                    if (period_end != null) {
+                        time_end = period_end;
+                    } else if (period_duration != null) {
+                        time_end = time + period_duration;
+                    }
+                }
+                first = Math.min(first, time);
+                if (last != Long.MAX_VALUE) {
+                    last = Math.max(last, time_end);
+                }
+            }
+        }
+
+        if (floating) {
+            /*
+             * Floating times depend on the time zone of the reader
+             */
+            bounds[0] = first - DAY;
+            bounds[1] = last == Long.MAX_VALUE ? last : last + DAY;
+        } else {
+            bounds[0] = first;
+            bounds[1] = last;
+        }
+        return bounds;
+    }
+
+    private static String render(VAction va, VTimeZone tz) {
+        try {
+            VCalendar vcal = new VCalendar();
+            vcal.setTimeZone(tz);
+            if (va instanceof VEvent) {
+                vcal.addVevent((VEvent) va);
+            } else if (va instanceof VTodo) {
+                vcal.addVtodo((VTodo) va);
+            }
+            return vcal.toString();
+        } catch (VCalendarException e) {
+            logger.error("index uid=" + va.getUid(), e);
+        }
+        return null;
+    }
+
+    private static List<ParticipantEntry> getParticipants(ICalendarComponent component) {
+        List<ParticipantEntry> participants = new ArrayList<ParticipantEntry>();
+        for (String name : new String[] { ParticipantEntry.ORGANIZER, ParticipantEntry.ATTENDEE }) {
+            for (ICalendarProperty property : component.getProperties(name)) {
+                if (property.getValue() == null) {
+                    continue;
+                }
+                participants.add(new ParticipantEntry(name, property.getValue(), property.getParameter("PARTSTAT"),
+                        property.getParameter("ROLE")));
+            }
+        }
+        return participants;
+    }
+
+    private TaskIndex getTaskIndex() {
+        if (this.tasks == null) {
+            this.tasks = new TaskIndex();
+            for (VActionEntry entry : this.entries.values()) {
+                this.tasks.put(entry);
+            }
+        }
+        return this.tasks;
+    }
+
+    private void buildParticipants() {
+        this.participants = new HashMap<String, List<VActionEntry>>();
+        for (VActionEntry entry : this.entries.values()) {
+            putParticipants(entry);
+        }
+    }
+
+    private void putParticipants(VActionEntry entry) {
+        for (ParticipantEntry participant : entry.getParticipants()) {
+            List<VActionEntry> list = this.participants.get(participant.getAddress());
+            if (list == null) {
+                list = new ArrayList<VActionEntry>();
+                this.participants.put(participant.getAddress(), list);
+            }
+            if (list.isEmpty() || list.get(list.size() - 1) != entry) {
+                list.add(entry);
+            }
+        }
+    }
+
+    /*
+     * Sized for twice the current objects, so the collection can grow before it is built again
+     */
+    private void buildFilter() {
+        this.filter = new BloomFilter(Math.max(MIN_FILTER_CAPACITY, this.entries.size() * 2), false_positive_rate);
+        for (String uid : this.entries.keySet()) {
+            this.filter.put(uid);
+        }
+        this.removed = 0;
+    }
+
+    private static File getDirectory(File vcalendar_file) {
+        File directory = vcalendar_file.getAbsoluteFile().getParentFile();
+        if (directory == null) {
+            directory = new File(".").getAbsoluteFile();
+        }
+        return directory;
+    }
+
+    private static VCalendarIndex loadIndex(File vcalendar_file) {
+        File index_file = new File(getDirectory(vcalendar_file), INDEX_FILE);
+        if (index_file.exists()) {
+            try {
+                ObjectInputStream is = new ObjectInputStream(new FileInputStream(index_file));
+                try {
+                    VCalendarIndex index = (VCalendarIndex) is.readObject();
+                    index.vcalendar_file = vcalendar_file;
+                    return index;
+                } finally {
+                    is.close();
+                }
+            } catch (ClassNotFoundException e) {
+                logger.error("index file=" + index_file.getAbsolutePath(), e);
+            } catch (IOException e) {
+                logger.error("index file=" + index_file.getAbsolutePath(), e);
+            }
+        }
+        return new VCalendarIndex(vcalendar_file);
+    }
+
+    /*
+     * Written on a temporary file and renamed, the readers never see a partial index
+     */
+    private void storeIndex() {
+        File index_file = new File(getDirectory(this.vcalendar_file), INDEX_FILE);
+        File temp_file = new File(index_file.getParentFile(), INDEX_FILE + ".tmp");
+        try {
+            FileLock _fl = new FileLock(index_file);
+            _fl.lock();
+            try {
+                ObjectOutputStream os = new ObjectOutputStream(new FileOutputStream(temp_file));
+                try {
+                    os.writeObject(this);
+                    os.flush();
+                } finally {
+                    os.close();
+                }
+                if (!temp_file.renameTo(index_file)) {
+                    index_file.delete();
+                    if (!temp_file.renameTo(index_file)) {
+                        logger.error("cannot store index file [" + index_file.getAbsolutePath() + "]");
+                    }
+                }
+            } finally {
+                _fl.unlockQuietly();
+            }
+        } catch (IOException e) {
+            logger.error("index file=" + index_file.getAbsolutePath(), e);
+        } catch (FileLockException e) {
+            logger.error("index file=" + index_file.getAbsolutePath(), e);
+        }
+    }
+}
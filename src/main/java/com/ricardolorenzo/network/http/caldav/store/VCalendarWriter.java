@@ -0,0 +1,175 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ricardolorenzo.network.http.caldav.store;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.ricardolorenzo.icalendar.VCalendar;
+import com.ricardolorenzo.icalendar.VCalendarException;
+import com.ricardolorenzo.icalendar.VEvent;
+import com.ricardolorenzo.icalendar.VTimeZone;
+import com.ricardolorenzo.icalendar.VTodo;
+import com.ricardolorenzo.network.http.caldav.session.CalDAVTransaction;
+
+/**
+ * Streaming writer of a whole calendar.
+ *
+ * <code>VCalendar.toString()</code> builds the whole calendar in memory before it is written. The
+ * writer sends the calendar properties, the time zone and any other component of the calendar
+ * first, and then every event and task on its own, through a buffer of fixed size. Only one
+ * component is kept in memory at a time.
+ *
+ * @author Ricardo Lorenzo
+ *
+ */
+public class VCalendarWriter {
+    private static final int BUFFER_SIZE = 8192;
+    private static final String END = "END:VCALENDAR";
+
+    private Writer writer;
+    private boolean timezones;
+
+    /**
+     * @param os
+     *            Output, written as UTF-8. The output is flushed but not closed.
+     */
+    public VCalendarWriter(OutputStream os) throws IOException {
+        this(os, true);
+    }
+
+    /**
+     * @param os
+     *            Output, written as UTF-8. The output is flushed but not closed.
+     * @param timezones
+     *            Include the <code>VTIMEZONE</code> components, <code>false</code> for the
+     *            clients that get them by reference
+     */
+    public VCalendarWriter(OutputStream os, boolean timezones) throws IOException {
+        this.writer = new BufferedWriter(new OutputStreamWriter(os, "UTF-8"), BUFFER_SIZE);
+        this.timezones = timezones;
+    }
+
+    /**
+     * Stores the calendar through the store. The calendar is written to a temporary file first,
+     * which is sent to the store as the content of the resource.
+     *
+     * @param vc
+     *            Calendar
+     * @param store
+     *            Store
+     * @param transaction
+     *            Transaction
+     * @param path
+     *            The <code>calendar.ics</code> resource of the collection
+     * @return Length of the stored resource
+     */
+    public static long write(VCalendar vc, CalDAVStore store, CalDAVTransaction transaction, String path)
+            throws IOException {
+        File _tmp = File.createTempFile("calendar", ".ics");
+        try {
+            OutputStream os = new FileOutputStream(_tmp);
+            try {
+                new VCalendarWriter(os).write(vc);
+            } finally {
+                os.close();
+            }
+            return store.setResourceContent(transaction, path, new FileInputStream(_tmp), "text/calendar", null);
+        } finally {
+            if (!_tmp.delete()) {
+                _tmp.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * Writes the calendar.
+     *
+     * @param vc
+     *            Calendar
+     */
+    public void write(VCalendar vc) throws IOException {
+        writeStart(vc);
+        for (VEvent ve : vc.getVevents()) {
+            writeComponent(ve.toString());
+        }
+        for (VTodo vt : vc.getVtodos()) {
+            writeComponent(vt.toString());
+        }
+        writeEnd();
+    }
+
+    /*
+     * The calendar as written by the library without its events and tasks, with its properties,
+     * its time zone and the rest of its components. The events and tasks are taken out of the
+     * calendar while it is written and put back in the same order.
+     */
+    private void writeStart(VCalendar vc) throws IOException {
+        List<VEvent> vevents = new ArrayList<VEvent>(vc.getVevents());
+        List<VTodo> vtodos = new ArrayList<VTodo>(vc.getVtodos());
+        VTimeZone tz = vc.getTimeZone();
+        String start;
+        try {
+            try {
+                for (VEvent ve : vevents) {
+                    vc.removeVevent(ve.getUid());
+                }
+                for (VTodo vt : vtodos) {
+                    vc.removeVtodo(vt.getUid());
+                }
+                if (!this.timezones) {
+                    vc.setTimeZone(null);
+                }
+                start = vc.toString();
+            } finally {
+                vc.setTimeZone(tz);
+                for (VEvent ve : vevents) {
+                    vc.addVevent(ve);
+                }
+                for (VTodo vt : vtodos) {
+                    vc.addVtodo(vt);
+                }
+            }
+        } catch (VCalendarException e) {
+            throw new IOException(e);
+        }
+        int end = start.lastIndexOf(END);
+        if (end < 0) {
+            throw new IOException(new VCalendarException("invalid calendar"));
+        }
+        this.writer.write(start, 0, end);
+    }
+
+    private void writeComponent(String component) throws IOException {
+        this.writer.write(component);
+        if (!component.endsWith("\n")) {
+            this.writer.write("\r\n");
+        }
+    }
+
+    private void writeEnd() throws IOException {
+        this.writer.write(END);
+        this.writer.write("\r\n");
+        this.writer.flush();
+    }
+}
@@ -0,0 +1,150 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ricardolorenzo.network.http.caldav.xml;
+
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.ricardolorenzo.network.http.caldav.store.CompiledTimeZone;
+
+/**
+ * Formatting of the dates of the DAV properties, <code>D:creationdate</code> (RFC 3339) and
+ * <code>D:getlastmodified</code> (RFC 1123), always in UTC.
+ *
+ * The dates are written on a <code>char[]</code> without <code>SimpleDateFormat</code>, so the
+ * methods can be used by any thread. The last dates formatted are kept by second, the resources of
+ * a collection listed again get the same strings without formatting them.
+ *
+ * @author Ricardo Lorenzo
+ *
+ */
+public class DAVDates {
+    private static final int CACHE_SIZE = 256;
+    private static final long SECOND = 1000L;
+    private static final long DAY = 86400L;
+    private static final String[] DAYS = new String[] { "Thu", "Fri", "Sat", "Sun", "Mon", "Tue", "Wed" };
+    private static final String[] MONTHS = new String[] { "Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul", "Aug",
+            "Sep", "Oct", "Nov", "Dec" };
+    private static final AtomicReferenceArray<FormattedDate> creation_dates =
+            new AtomicReferenceArray<FormattedDate>(CACHE_SIZE);
+    private static final AtomicReferenceArray<FormattedDate> modification_dates =
+            new AtomicReferenceArray<FormattedDate>(CACHE_SIZE);
+
+    private static class FormattedDate {
+        private final long second;
+        private final String text;
+
+        private FormattedDate(long second, String text) {
+            this.second = second;
+            this.text = text;
+        }
+    }
+
+    /**
+     * Formats a creation date, as <code>2006-01-04T18:30:00Z</code>.
+     *
+     * @param date
+     *            Date
+     * @return Formatted date
+     */
+    public static String formatCreationDate(Date date) {
+        long second = getSecond(date);
+        int slot = (int) (second & (CACHE_SIZE - 1));
+        FormattedDate cached = creation_dates.get(slot);
+        if (cached != null && cached.second == second) {
+            return cached.text;
+        }
+        char[] buffer = new char[20];
+        long days = floorDiv(second, DAY);
+        int[] civil = CompiledTimeZone.getDate(days);
+        int i = writeNumber(buffer, 0, civil[0], 4);
+        buffer[i++] = '-';
+        i = writeNumber(buffer, i, civil[1], 2);
+        buffer[i++] = '-';
+        i = writeNumber(buffer, i, civil[2], 2);
+        buffer[i++] = 'T';
+        i = writeTime(buffer, i, second - days * DAY);
+        buffer[i++] = 'Z';
+        String text = new String(buffer, 0, i);
+        creation_dates.set(slot, new FormattedDate(second, text));
+        return text;
+    }
+
+    /**
+     * Formats a modification date, as <code>Wed, 04 Jan 2006 18:30:00 GMT</code>.
+     *
+     * @param date
+     *            Date
+     * @return Formatted date
+     */
+    public static String formatLastModified(Date date) {
+        long second = getSecond(date);
+        int slot = (int) (second & (CACHE_SIZE - 1));
+        FormattedDate cached = modification_dates.get(slot);
+        if (cached != null && cached.second == second) {
+            return cached.text;
+        }
+        char[] buffer = new char[29];
+        long days = floorDiv(second, DAY);
+        int[] civil = CompiledTimeZone.getDate(days);
+        int i = writeText(buffer, 0, DAYS[(int) (((days % 7) + 7) % 7)]);
+        buffer[i++] = ',';
+        buffer[i++] = ' ';
+        i = writeNumber(buffer, i, civil[2], 2);
+        buffer[i++] = ' ';
+        i = writeText(buffer, i, MONTHS[civil[1] - 1]);
+        buffer[i++] = ' ';
+        i = writeNumber(buffer, i, civil[0], 4);
+        buffer[i++] = ' ';
+        i = writeTime(buffer, i, second - days * DAY);
+        i = writeText(buffer, i, " GMT");
+        String text = new String(buffer, 0, i);
+        modification_dates.set(slot, new FormattedDate(second, text));
+        return text;
+    }
+
+    private static long getSecond(Date date) {
+        return floorDiv(date.getTime(), SECOND);
+    }
+
+    private static long floorDiv(long x, long y) {
+        long q = x / y;
+        if ((x % y != 0) && ((x < 0) != (y < 0))) {
+            q--;
+        }
+        return q;
+    }
+
+    private static int writeTime(char[] buffer, int i, long seconds) {
+        i = writeNumber(buffer, i, (int) (seconds / 3600), 2);
+        buffer[i++] = ':';
+        i = writeNumber(buffer, i, (int) (seconds / 60 % 60), 2);
+        buffer[i++] = ':';
+        return writeNumber(buffer, i, (int) (seconds % 60), 2);
+    }
+
+    private static int writeNumber(char[] buffer, int i, int number, int digits) {
+        for (int j = i + digits - 1; j >= i; j--) {
+            buffer[j] = (char) ('0' + number % 10);
+            number /= 10;
+        }
+        return i + digits;
+    }
+
+    private static int writeText(char[] buffer, int i, String text) {
+        text.getChars(0, text.length(), buffer, i);
+        return i + text.length();
+    }
+}
@@ -0,0 +1,214 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ricardolorenzo.network.http.caldav.xml;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import com.ricardolorenzo.network.http.caldav.CalDAVException;
+
+/**
+ * Writer of multistatus responses that streams the elements to the output as they are added,
+ * instead of building the whole document in memory.
+ *
+ * It follows the <code>XMLWriter</code> interface, with element names qualified by the prefixes
+ * set with <code>setNameSpace</code>. The output is flushed every time a response element of the
+ * root is closed, so the client gets the first responses while the rest are still being
+ * produced. Nothing can be changed once written, the errors must be found before the root element
+ * is added.
+ *
+ * @author Ricardo Lorenzo
+ *
+ */
+public class MultiStatusWriter {
+    private static final XMLOutputFactory factory = XMLOutputFactory.newInstance();
+    private XMLStreamWriter writer;
+    private OutputStream os;
+    private Map<String, String> namespaces;
+    private int depth;
+
+    public MultiStatusWriter(OutputStream os) {
+        this.os = os;
+        this.namespaces = new LinkedHashMap<String, String>();
+        try {
+            this.writer = factory.createXMLStreamWriter(os, "UTF-8");
+            this.writer.writeStartDocument("UTF-8", "1.0");
+        } catch (XMLStreamException e) {
+            throw new CalDAVException(e);
+        }
+    }
+
+    /**
+     * Sets the prefix of a namespace. All the namespaces are declared on the root element, so they
+     * must be set before adding it.
+     *
+     * @param namespace
+     *            Namespace URI
+     * @param prefix
+     *            Prefix
+     */
+    public void setNameSpace(String namespace, String prefix) {
+        this.namespaces.put(prefix, namespace);
+    }
+
+    /**
+     * Opens an element inside the current one.
+     *
+     * @param name
+     *            Qualified name, as <code>D:response</code>
+     */
+    public void addChildElement(String name) {
+        try {
+            int colon = name.indexOf(':');
+            String namespace = colon > 0 ? this.namespaces.get(name.substring(0, colon)) : null;
+            if (namespace != null) {
+                this.writer.writeStartElement(name.substring(0, colon), name.substring(colon + 1), namespace);
+            } else {
+                this.writer.writeStartElement(name);
+            }
+            if (this.depth == 0) {
+                for (Entry<String, String> _e : this.namespaces.entrySet()) {
+                    this.writer.writeNamespace(_e.getKey(), _e.getValue());
+                }
+            }
+            this.depth++;
+        } catch (XMLStreamException e) {
+            throw new CalDAVException(e);
+        }
+    }
+
+    /**
+     * Closes the current element.
+     */
+    public void closeElement() {
+        try {
+            this.writer.writeEndElement();
+            this.depth--;
+            if (this.depth <= 1) {
+                this.writer.flush();
+            }
+        } catch (XMLStreamException e) {
+            throw new CalDAVException(e);
+        }
+    }
+
+    /**
+     * Adds an attribute to the element just opened.
+     *
+     * @param name
+     *            Attribute name
+     * @param value
+     *            Attribute value
+     */
+    public void addAttribute(String name, String value) {
+        try {
+            this.writer.writeAttribute(name, value);
+        } catch (XMLStreamException e) {
+            throw new CalDAVException(e);
+        }
+    }
+
+    /**
+     * Adds text to the current element.
+     *
+     * @param text
+     *            Text
+     */
+    public void setTextContent(String text) {
+        if (text == null) {
+            return;
+        }
+        try {
+            this.writer.writeCharacters(text);
+        } catch (XMLStreamException e) {
+            throw new CalDAVException(e);
+        }
+    }
+
+    /**
+     * Adds a CDATA section to the current element.
+     *
+     * @param data
+     *            Data
+     */
+    public void setDataContent(String data) {
+        if (data == null) {
+            return;
+        }
+        try {
+            /*
+             * A CDATA section can not contain its own end
+             */
+            int start = 0;
+            for (int end = data.indexOf("]]>"); end != -1; end = data.indexOf("]]>", start)) {
+                this.writer.writeCData(data.substring(start, end + 2));
+                start = end + 2;
+            }
+            this.writer.writeCData(data.substring(start));
+        } catch (XMLStreamException e) {
+            throw new CalDAVException(e);
+        }
+    }
+
+    /**
+     * Adds an empty element inside the current one.
+     *
+     * @param name
+     *            Qualified name
+     */
+    public void addProperty(String name) {
+        addChildElement(name);
+        closeElement();
+    }
+
+    /**
+     * Adds an element with text inside the current one.
+     *
+     * @param name
+     *            Qualified name
+     * @param value
+     *            Text
+     */
+    public void addProperty(String name, String value) {
+        addChildElement(name);
+        setTextContent(value);
+        closeElement();
+    }
+
+    /**
+     * Ends the document and flushes the output, closing the elements still open.
+     */
+    public void close() throws IOException {
+        try {
+            while (this.depth > 0) {
+                this.writer.writeEndElement();
+                this.depth--;
+            }
+            this.writer.writeEndDocument();
+            this.writer.flush();
+            this.writer.close();
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+        this.os.flush();
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ricardolorenzo.network.http.caldav.xml;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * A <code>D:propfind</code> request body (RFC 4918 14.20).
+ *
+ * @author Ricardo Lorenzo
+ *
+ */
+public class PropFindRequest {
+    public static final int PROP = 0;
+    public static final int ALLPROP = 1;
+    public static final int PROPNAME = 2;
+
+    private int type;
+    private List<String> properties;
+
+    private PropFindRequest(int type) {
+        this.type = type;
+    }
+
+    /**
+     * Parses the request body.
+     *
+     * @param is
+     *            Request body
+     * @return The request
+     */
+    public static PropFindRequest parse(InputStream is) throws XMLStreamException {
+        XMLStreamReader reader = RequestReader.createReader(is);
+        try {
+            PropFindRequest request = new PropFindRequest(ALLPROP);
+            while (RequestReader.nextChild(reader)) {
+                String name = reader.getLocalName();
+                if ("prop".equals(name)) {
+                    request.type = PROP;
+                    request.properties = readProperties(reader);
+                } else {
+                    if ("propname".equals(name) && request.type != PROP) {
+                        request.type = PROPNAME;
+                    }
+                    RequestReader.skip(reader);
+                }
+            }
+            return request;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Reads the names of the children of a <code>D:prop</code> element.
+     *
+     * @param reader
+     *            Reader on the start of the element, left on its end
+     * @return Local names of the properties
+     */
+    public static List<String> readProperties(XMLStreamReader reader) throws XMLStreamException {
+        List<String> properties = new ArrayList<String>();
+        while (RequestReader.nextChild(reader)) {
+            properties.add(reader.getLocalName());
+            RequestReader.skip(reader);
+        }
+        return properties;
+    }
+
+    /**
+     * Gets the request type, as <code>PropFindRequest.PROP</code>
+     *
+     * @return Request type
+     */
+    public int getType() {
+        return this.type;
+    }
+
+    /**
+     * Gets the requested properties.
+     *
+     * @return Local names of the properties, or <code>null</code> if the request is not a
+     *         <code>D:prop</code> one
+     */
+    public List<String> getProperties() {
+        return this.properties;
+    }
+}
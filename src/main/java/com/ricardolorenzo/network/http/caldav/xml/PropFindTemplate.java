@@ -0,0 +1,374 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ricardolorenzo.network.http.caldav.xml;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.ricardolorenzo.network.http.caldav.CalDAVResponse;
+
+/**
+ * Precompiled response of the <code>PROPFIND</code> requests sent by the clients to poll a
+ * calendar collection, asking only for <code>CS:getctag</code>, <code>D:getetag</code> and
+ * <code>D:resourcetype</code>.
+ *
+ * The request bodies are recognized by scanning their element names, without parsing them. The
+ * response is written from byte fragments built once for every list of properties, filled with
+ * the values of every resource.
+ *
+ * @author Ricardo Lorenzo
+ *
+ */
+public class PropFindTemplate {
+    private static final int MAX_PROPERTIES = 3;
+    private static final Map<String, PropFindTemplate> templates = new ConcurrentHashMap<String, PropFindTemplate>();
+    private static final byte[] START = getBytes("<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+            + "<D:multistatus xmlns:D=\"DAV:\" xmlns:C=\"urn:ietf:params:xml:ns:caldav\""
+            + " xmlns:CS=\"http://calendarserver.org/ns/\">");
+    private static final byte[] END = getBytes("</D:multistatus>");
+    private static final byte[] HREF_START = getBytes("<D:response><D:href>");
+    private static final byte[] ITEM_ETAG = getBytes("</D:href><D:getetag>");
+    private static final byte[] ITEM_END = getBytes("</D:getetag><D:status>"
+            + CalDAVResponse.getStatusLine(CalDAVResponse.SC_OK) + "</D:status></D:response>");
+
+    private List<String> properties;
+    private Fragments calendar;
+    private Fragments resource;
+
+    private PropFindTemplate(List<String> properties) {
+        this.properties = properties;
+        this.calendar = new Fragments(properties, true);
+        this.resource = new Fragments(properties, false);
+    }
+
+    /**
+     * Gets the template of a request body.
+     *
+     * @param body
+     *            Request body
+     * @return The template, or <code>null</code> if the body is not a polling request
+     */
+    public static PropFindTemplate recognize(byte[] body) {
+        List<String> properties = scan(body);
+        if (properties == null) {
+            return null;
+        }
+        StringBuilder _sb = new StringBuilder();
+        for (String property : properties) {
+            if (!"getctag".equals(property) && !"getetag".equals(property) && !"resourcetype".equals(property)) {
+                return null;
+            }
+            _sb.append(property);
+            _sb.append(',');
+        }
+        String key = _sb.toString();
+        PropFindTemplate template = templates.get(key);
+        if (template == null) {
+            template = new PropFindTemplate(properties);
+            templates.put(key, template);
+        }
+        return template;
+    }
+
+    /**
+     * Verify if the template needs the property value.
+     *
+     * @param property
+     *            Local name, as <code>getetag</code>
+     */
+    public boolean hasProperty(String property) {
+        return this.properties.contains(property);
+    }
+
+    /**
+     * Writes the start of the multistatus response.
+     */
+    public void writeStart(OutputStream os) throws IOException {
+        os.write(START);
+    }
+
+    /**
+     * Writes the response of a calendar collection.
+     *
+     * @param href
+     *            Encoded href
+     * @param eTag
+     *            ETag of the collection, if requested
+     * @param cTag
+     *            CTag of the collection, if requested
+     */
+    public void writeCalendar(OutputStream os, String href, String eTag, String cTag) throws IOException {
+        this.calendar.write(os, href, eTag, cTag);
+    }
+
+    /**
+     * Writes the response of a resource that is not a collection.
+     *
+     * @param href
+     *            Encoded href
+     * @param eTag
+     *            ETag of the resource, if requested
+     */
+    public void writeResource(OutputStream os, String href, String eTag) throws IOException {
+        this.resource.write(os, href, eTag, null);
+    }
+
+    /**
+     * Writes the response of a calendar object, with its ETag.
+     *
+     * @param href
+     *            Href
+     * @param eTag
+     *            ETag
+     */
+    public void writeItem(OutputStream os, String href, String eTag) throws IOException {
+        os.write(HREF_START);
+        writeText(os, href);
+        os.write(ITEM_ETAG);
+        writeText(os, eTag);
+        os.write(ITEM_END);
+    }
+
+    /**
+     * Writes the response of a result truncated by a limit (RFC 5323 5.17).
+     *
+     * @param href
+     *            Request URI
+     * @param count
+     *            Number of calendar objects sent
+     */
+    public void writeTruncated(OutputStream os, String href, int count) throws IOException {
+        os.write(HREF_START);
+        writeText(os, href);
+        os.write(getBytes("</D:href><D:status>" + CalDAVResponse.getStatusLine(CalDAVResponse.SC_INSUFFICIENT_STORAGE)
+                + "</D:status><D:error><D:number-of-matches-within-limits/></D:error><D:responsedescription>Only "
+                + count + " matching records were returned</D:responsedescription></D:response>"));
+    }
+
+    /**
+     * Writes the end of the multistatus response.
+     */
+    public void writeEnd(OutputStream os) throws IOException {
+        os.write(END);
+        os.flush();
+    }
+
+    /*
+     * Element local names of the D:prop element of a D:propfind body, or null if the body
+     * has anything else
+     */
+    private static List<String> scan(byte[] body) {
+        List<String> properties = new ArrayList<String>();
+        int depth = 0;
+        boolean root = false, prop = false;
+        for (int i = 0; i < body.length; i++) {
+            byte b = body[i];
+            if (b != '<') {
+                if (b != ' ' && b != '\t' && b != '\r' && b != '\n') {
+                    return null;
+                }
+                continue;
+            }
+            if (i + 1 >= body.length) {
+                return null;
+            }
+            if (body[i + 1] == '?') {
+                if (depth > 0 || root) {
+                    return null;
+                }
+                i = indexOf(body, i, "?>");
+                if (i < 0) {
+                    return null;
+                }
+                i++;
+                continue;
+            } else if (body[i + 1] == '!') {
+                /*
+                 * Comments are skipped, DTD and CDATA go to the parser
+                 */
+                if (i + 3 >= body.length || body[i + 2] != '-' || body[i + 3] != '-') {
+                    return null;
+                }
+                i = indexOf(body, i, "-->");
+                if (i < 0) {
+                    return null;
+                }
+                i += 2;
+                continue;
+            }
+            int end = indexOf(body, i, ">");
+            if (end < 0) {
+                return null;
+            }
+            boolean closing = body[i + 1] == '/';
+            boolean empty = body[end - 1] == '/';
+            String name = getLocalName(body, closing ? i + 2 : i + 1, end);
+            if (name == null) {
+                return null;
+            }
+            if (closing) {
+                depth--;
+            } else {
+                if (depth == 0) {
+                    if (root || !"propfind".equals(name)) {
+                        return null;
+                    }
+                    root = true;
+                } else if (depth == 1) {
+                    if (prop || !"prop".equals(name)) {
+                        return null;
+                    }
+                    prop = true;
+                } else if (depth == 2) {
+                    if (properties.contains(name) || properties.size() == MAX_PROPERTIES) {
+                        return null;
+                    }
+                    properties.add(name);
+                } else {
+                    return null;
+                }
+                if (!empty) {
+                    depth++;
+                }
+            }
+            i = end;
+        }
+        if (depth != 0 || !prop || properties.isEmpty()) {
+            return null;
+        }
+        return properties;
+    }
+
+    private static String getLocalName(byte[] body, int start, int end) {
+        int colon = -1, i = start;
+        for (; i < end; i++) {
+            byte b = body[i];
+            if (b == ' ' || b == '\t' || b == '\r' || b == '\n' || b == '/') {
+                break;
+            } else if (b == ':') {
+                colon = i;
+            } else if (!(b >= 'a' && b <= 'z') && !(b >= 'A' && b <= 'Z') && !(b >= '0' && b <= '9') && b != '-'
+                    && b != '_' && b != '.') {
+                return null;
+            }
+        }
+        if (i == start || colon == i - 1) {
+            return null;
+        }
+        return new String(body, colon + 1, i - colon - 1);
+    }
+
+    private static int indexOf(byte[] body, int from, String token) {
+        for (int i = from; i <= body.length - token.length(); i++) {
+            boolean found = true;
+            for (int j = 0; j < token.length(); j++) {
+                if (body[i + j] != token.charAt(j)) {
+                    found = false;
+                    break;
+                }
+            }
+            if (found) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static void writeText(OutputStream os, String text) throws IOException {
+        if (text.indexOf('&') == -1 && text.indexOf('<') == -1 && text.indexOf('>') == -1) {
+            os.write(getBytes(text));
+            return;
+        }
+        os.write(getBytes(text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;")));
+    }
+
+    private static byte[] getBytes(String text) {
+        try {
+            return text.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /*
+     * Fragments of the response of a resource kind, between its values
+     */
+    private static class Fragments {
+        private static final int ETAG = 0;
+        private static final int CTAG = 1;
+        private byte[][] fragments;
+        private int[] values;
+
+        private Fragments(List<String> properties, boolean calendar) {
+            List<byte[]> fragments = new ArrayList<byte[]>();
+            List<Integer> values = new ArrayList<Integer>();
+            StringBuilder _sb = new StringBuilder("</D:href><D:propstat><D:prop>");
+            StringBuilder notFound = new StringBuilder();
+            for (String property : properties) {
+                if ("getetag".equals(property)) {
+                    _sb.append("<D:getetag>");
+                    fragments.add(getBytes(_sb.toString()));
+                    values.add(ETAG);
+                    _sb = new StringBuilder("</D:getetag>");
+                } else if ("getctag".equals(property)) {
+                    if (calendar) {
+                        _sb.append("<CS:getctag>");
+                        fragments.add(getBytes(_sb.toString()));
+                        values.add(CTAG);
+                        _sb = new StringBuilder("</CS:getctag>");
+                    } else {
+                        notFound.append("<CS:getctag/>");
+                    }
+                } else if ("resourcetype".equals(property)) {
+                    if (calendar) {
+                        _sb.append("<D:resourcetype><D:collection/><C:calendar/></D:resourcetype>");
+                    } else {
+                        _sb.append("<D:resourcetype/>");
+                    }
+                }
+            }
+            _sb.append("</D:prop><D:status>" + CalDAVResponse.getStatusLine(CalDAVResponse.SC_OK)
+                    + "</D:status></D:propstat>");
+            if (notFound.length() > 0) {
+                _sb.append("<D:propstat><D:prop>");
+                _sb.append(notFound);
+                _sb.append("</D:prop><D:status>" + CalDAVResponse.getStatusLine(CalDAVResponse.SC_NOT_FOUND)
+                        + "</D:status></D:propstat>");
+            }
+            _sb.append("</D:response>");
+            fragments.add(getBytes(_sb.toString()));
+            this.fragments = fragments.toArray(new byte[fragments.size()][]);
+            this.values = new int[values.size()];
+            for (int i = 0; i < this.values.length; i++) {
+                this.values[i] = values.get(i);
+            }
+        }
+
+        private void write(OutputStream os, String href, String eTag, String cTag) throws IOException {
+            os.write(HREF_START);
+            writeText(os, href);
+            for (int i = 0; i < this.values.length; i++) {
+                os.write(this.fragments[i]);
+                writeText(os, this.values[i] == ETAG ? eTag : cTag);
+            }
+            os.write(this.fragments[this.fragments.length - 1]);
+        }
+    }
+}
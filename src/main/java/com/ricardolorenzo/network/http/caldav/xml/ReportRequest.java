@@ -0,0 +1,229 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ricardolorenzo.network.http.caldav.xml;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import com.ricardolorenzo.network.http.caldav.query.CalendarQuery;
+import com.ricardolorenzo.network.http.caldav.query.CompFilter;
+
+/**
+ * A <code>REPORT</code> request body.
+ *
+ * The <code>C:calendar-query</code> requests are read at once. The <code>C:calendar-multiget</code>
+ * requests are read up to the first <code>D:href</code>, and the rest of the hrefs are read one
+ * by one, so the report can answer the first hrefs before the whole body is received.
+ *
+ * @author Ricardo Lorenzo
+ *
+ */
+public class ReportRequest {
+    public static final String CALENDAR_QUERY = "calendar-query";
+    public static final String CALENDAR_MULTIGET = "calendar-multiget";
+
+    private XMLStreamReader reader;
+    private String name;
+    private List<String> properties;
+    private boolean expand;
+    private int limit;
+    private CalendarQuery query;
+    private String href;
+
+    private ReportRequest(XMLStreamReader reader) {
+        this.reader = reader;
+        this.name = reader.getLocalName();
+        this.properties = new ArrayList<String>();
+        this.limit = -1;
+    }
+
+    /**
+     * Parses the request body. The request must be closed after reading the hrefs.
+     *
+     * @param is
+     *            Request body
+     * @return The request
+     */
+    public static ReportRequest parse(InputStream is) throws XMLStreamException {
+        XMLStreamReader reader = RequestReader.createReader(is);
+        ReportRequest request = new ReportRequest(reader);
+        try {
+            if (CALENDAR_QUERY.equals(request.name)) {
+                request.readQuery();
+            } else if (CALENDAR_MULTIGET.equals(request.name)) {
+                request.href = request.readHref();
+            }
+        } catch (XMLStreamException e) {
+            request.close();
+            throw e;
+        }
+        return request;
+    }
+
+    /**
+     * Gets the report name, as <code>calendar-query</code>
+     *
+     * @return Local name of the root element
+     */
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * Gets the requested properties. The DAV, CalDAV and calendarserver properties have the
+     * <code>D</code>, <code>C</code> and <code>CS</code> prefixes of the responses.
+     *
+     * @return Qualified names of the properties, as <code>D:getetag</code>, or an empty list if
+     *         the request has no <code>D:prop</code> element
+     */
+    public List<String> getProperties() {
+        return this.properties;
+    }
+
+    /**
+     * Verify if the calendar data must be sent with the recurrences expanded.
+     */
+    public boolean isExpand() {
+        return this.expand;
+    }
+
+    /**
+     * Gets the number of results requested with the <code>C:limit</code> element.
+     *
+     * @return The limit or <code>-1</code> if the request has no limit
+     */
+    public int getLimit() {
+        return this.limit;
+    }
+
+    /**
+     * Gets the calendar query.
+     *
+     * @return The query or <code>null</code> if the report is not a <code>calendar-query</code>
+     */
+    public CalendarQuery getQuery() {
+        return this.query;
+    }
+
+    /**
+     * Gets the next href of a <code>calendar-multiget</code> report, reading the body as needed.
+     *
+     * @return The href or <code>null</code> if there are no more hrefs
+     */
+    public String nextHref() throws XMLStreamException {
+        String next = this.href;
+        if (next != null) {
+            this.href = readHref();
+        }
+        return next;
+    }
+
+    /**
+     * Releases the reader.
+     */
+    public void close() {
+        try {
+            this.reader.close();
+        } catch (XMLStreamException e) {
+            // nothing
+        }
+    }
+
+    private void readQuery() throws XMLStreamException {
+        CompFilter filter = null;
+        while (RequestReader.nextChild(this.reader)) {
+            String local = this.reader.getLocalName();
+            if ("prop".equals(local)) {
+                readProperties();
+            } else if ("limit".equals(local)) {
+                readLimit();
+            } else if ("filter".equals(local)) {
+                while (RequestReader.nextChild(this.reader)) {
+                    if (filter == null && "comp-filter".equals(this.reader.getLocalName())) {
+                        filter = CompFilter.parse(this.reader);
+                    } else {
+                        RequestReader.skip(this.reader);
+                    }
+                }
+            } else {
+                RequestReader.skip(this.reader);
+            }
+        }
+        this.query = new CalendarQuery(filter, this.expand);
+    }
+
+    private static String getPrefix(String namespace) {
+        if ("DAV:".equals(namespace)) {
+            return "D:";
+        } else if ("urn:ietf:params:xml:ns:caldav".equals(namespace)) {
+            return "C:";
+        } else if ("http://calendarserver.org/ns/".equals(namespace)) {
+            return "CS:";
+        }
+        return "";
+    }
+
+    private void readLimit() throws XMLStreamException {
+        while (RequestReader.nextChild(this.reader)) {
+            if ("nresults".equals(this.reader.getLocalName())) {
+                try {
+                    this.limit = Integer.parseInt(RequestReader.getText(this.reader).trim());
+                } catch (NumberFormatException e) {
+                    throw new XMLStreamException("invalid nresults");
+                }
+                if (this.limit < 0) {
+                    throw new XMLStreamException("invalid nresults");
+                }
+            } else {
+                RequestReader.skip(this.reader);
+            }
+        }
+    }
+
+    private String readHref() throws XMLStreamException {
+        while (RequestReader.nextChild(this.reader)) {
+            String local = this.reader.getLocalName();
+            if ("href".equals(local)) {
+                return RequestReader.getText(this.reader).trim();
+            } else if ("prop".equals(local)) {
+                readProperties();
+            } else {
+                RequestReader.skip(this.reader);
+            }
+        }
+        return null;
+    }
+
+    private void readProperties() throws XMLStreamException {
+        while (RequestReader.nextChild(this.reader)) {
+            String local = this.reader.getLocalName();
+            this.properties.add(getPrefix(this.reader.getNamespaceURI()) + local);
+            if ("calendar-data".equals(local)) {
+                while (RequestReader.nextChild(this.reader)) {
+                    if ("expand".equals(this.reader.getLocalName())) {
+                        this.expand = true;
+                    }
+                    RequestReader.skip(this.reader);
+                }
+            } else {
+                RequestReader.skip(this.reader);
+            }
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ricardolorenzo.network.http.caldav.xml;
+
+import java.io.InputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Pull parsing of the request bodies.
+ *
+ * A single factory is shared by all the requests, configured without DTD and external entities
+ * support, so the bodies can not read local files or expand entities. The readers it creates are
+ * not shared.
+ *
+ * @author Ricardo Lorenzo
+ *
+ */
+public class RequestReader {
+    private static final XMLInputFactory factory = createFactory();
+
+    private static XMLInputFactory createFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        return factory;
+    }
+
+    /**
+     * Creates a reader positioned on the root element of the body.
+     *
+     * @param is
+     *            Request body
+     * @return The reader
+     */
+    public static XMLStreamReader createReader(InputStream is) throws XMLStreamException {
+        XMLStreamReader reader = factory.createXMLStreamReader(is);
+        while (reader.getEventType() != XMLStreamConstants.START_ELEMENT) {
+            if (!reader.hasNext()) {
+                throw new XMLStreamException("no root element");
+            }
+            reader.next();
+        }
+        return reader;
+    }
+
+    /**
+     * Moves to the next child of the current element.
+     *
+     * @param reader
+     *            Reader on the current element or on the end of a previous child
+     * @return <code>true</code> if the reader is on the start of a child, or <code>false</code>
+     *         if it is on the end of the current element
+     */
+    public static boolean nextChild(XMLStreamReader reader) throws XMLStreamException {
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                return true;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Skips the current element with all its children.
+     *
+     * @param reader
+     *            Reader on the start of the element, left on its end
+     */
+    public static void skip(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0 && reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    /**
+     * Gets an attribute of the current element.
+     *
+     * @param reader
+     *            Reader on the start of the element
+     * @param name
+     *            Attribute name, without namespace
+     * @return The value or an empty string if the element has not the attribute
+     */
+    public static String getAttribute(XMLStreamReader reader, String name) {
+        String value = reader.getAttributeValue(null, name);
+        if (value == null) {
+            return "";
+        }
+        return value;
+    }
+
+    /**
+     * Gets the text of the current element, skipping its children.
+     *
+     * @param reader
+     *            Reader on the start of the element, left on its end
+     * @return Text
+     */
+    public static String getText(XMLStreamReader reader) throws XMLStreamException {
+        StringBuilder _sb = new StringBuilder();
+        int depth = 1;
+        while (depth > 0 && reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            } else if (depth == 1
+                    && (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA)) {
+                _sb.append(reader.getText());
+            }
+        }
+        return _sb.toString();
+    }
+}
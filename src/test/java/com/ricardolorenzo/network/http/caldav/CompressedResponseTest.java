@@ -0,0 +1,263 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ricardolorenzo.network.http.caldav;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Test;
+
+/**
+ * @author Ricardo Lorenzo
+ *
+ */
+public class CompressedResponseTest {
+    private static final Set<String> TYPES = Collections.singleton("text/calendar");
+    private static final int THRESHOLD = 1024;
+
+    @Test
+    public void testGzipRoundTrip() throws IOException {
+        Response response = new Response();
+        byte[] body = getBody(64 * 1024);
+        CompressedResponse _cr = create(response, CompressedResponse.GZIP);
+        _cr.setHeader("ETag", "\"1-abc\"");
+        write(_cr.getOutputStream(), body);
+        _cr.finish();
+
+        assertEquals("gzip", response.getHeader("Content-Encoding"));
+        assertEquals("\"1-abc-gzip\"", response.getHeader("ETag"));
+        assertEquals("Accept-Encoding", response.getHeader("Vary"));
+        assertTrue(response.body.size() < body.length);
+        assertArrayEquals(body, read(new GZIPInputStream(new ByteArrayInputStream(response.body.toByteArray()))));
+    }
+
+    @Test
+    public void testDeflaterIsReused() throws IOException {
+        for (int i = 0; i < 3; i++) {
+            Response response = new Response();
+            byte[] body = getBody(8 * 1024 + i);
+            CompressedResponse _cr = create(response, CompressedResponse.GZIP);
+            write(_cr.getOutputStream(), body);
+            _cr.finish();
+            _cr.release();
+            assertArrayEquals(body, read(new GZIPInputStream(new ByteArrayInputStream(response.body.toByteArray()))));
+        }
+    }
+
+    @Test
+    public void testDeflateRoundTrip() throws IOException {
+        Response response = new Response();
+        byte[] body = getBody(16 * 1024);
+        CompressedResponse _cr = create(response, CompressedResponse.DEFLATE);
+        write(_cr.getOutputStream(), body);
+        _cr.finish();
+
+        assertEquals("deflate", response.getHeader("Content-Encoding"));
+        assertArrayEquals(body, read(new InflaterInputStream(new ByteArrayInputStream(response.body.toByteArray()))));
+    }
+
+    @Test
+    public void testWriterRoundTrip() throws IOException {
+        Response response = new Response();
+        byte[] body = getBody(4 * 1024);
+        CompressedResponse _cr = create(response, CompressedResponse.GZIP);
+        PrintWriter writer = _cr.getWriter();
+        writer.write(new String(body, "UTF-8"));
+        _cr.finish();
+
+        assertArrayEquals(body, read(new GZIPInputStream(new ByteArrayInputStream(response.body.toByteArray()))));
+    }
+
+    @Test
+    public void testSmallBodyIsPlain() throws IOException {
+        Response response = new Response();
+        byte[] body = getBody(THRESHOLD / 2);
+        CompressedResponse _cr = create(response, CompressedResponse.GZIP);
+        _cr.setHeader("ETag", "\"1-abc\"");
+        write(_cr.getOutputStream(), body);
+        _cr.finish();
+
+        assertNull(response.getHeader("Content-Encoding"));
+        assertEquals("\"1-abc\"", response.getHeader("ETag"));
+        assertEquals("Accept-Encoding", response.getHeader("Vary"));
+        assertEquals(body.length, response.contentLength);
+        assertArrayEquals(body, response.body.toByteArray());
+    }
+
+    @Test
+    public void testOtherTypeIsPlain() throws IOException {
+        Response response = new Response();
+        byte[] body = getBody(8 * 1024);
+        CompressedResponse _cr = new CompressedResponse(response.proxy(), CompressedResponse.GZIP, THRESHOLD, 6,
+                TYPES);
+        _cr.setContentType("image/png");
+        _cr.setHeader("ETag", "\"1-abc\"");
+        write(_cr.getOutputStream(), body);
+        _cr.finish();
+
+        assertNull(response.getHeader("Content-Encoding"));
+        assertNull(response.getHeader("Vary"));
+        assertEquals("\"1-abc\"", response.getHeader("ETag"));
+        assertArrayEquals(body, response.body.toByteArray());
+    }
+
+    @Test
+    public void testWithoutBody() throws IOException {
+        Response response = new Response();
+        CompressedResponse _cr = create(response, CompressedResponse.GZIP);
+        _cr.setHeader("ETag", "\"1-abc\"");
+        _cr.finish();
+
+        assertEquals("\"1-abc-gzip\"", response.getHeader("ETag"));
+        assertEquals("Accept-Encoding", response.getHeader("Vary"));
+        assertEquals(0, response.body.size());
+    }
+
+    @Test
+    public void testETags() {
+        assertEquals("\"1-abc-gzip\"", CompressedResponse.getETag("\"1-abc\"", CompressedResponse.GZIP));
+        assertEquals("\"1-abc\"", CompressedResponse.getIdentityETag("\"1-abc-gzip\""));
+        assertEquals("\"1-abc\"", CompressedResponse.getIdentityETag("\"1-abc-deflate\""));
+        assertEquals("\"1-abc\"", CompressedResponse.getIdentityETag("\"1-abc\""));
+        assertNull(CompressedResponse.getIdentityETag(null));
+        assertFalse("\"1-abc\"".equals(CompressedResponse.getETag("\"1-abc\"", CompressedResponse.DEFLATE)));
+    }
+
+    private static CompressedResponse create(Response response, String encoding) {
+        CompressedResponse _cr = new CompressedResponse(response.proxy(), encoding, THRESHOLD, 6, TYPES);
+        _cr.setContentType("text/calendar; charset=utf-8");
+        return _cr;
+    }
+
+    /*
+     * In several writes, as the methods copy the calendar
+     */
+    private static void write(OutputStream os, byte[] body) throws IOException {
+        int offset = 0;
+        while (offset < body.length) {
+            int length = Math.min(700, body.length - offset);
+            os.write(body, offset, length);
+            offset += length;
+        }
+    }
+
+    private static byte[] read(InputStream is) throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        try {
+            for (int length = is.read(buffer); length != -1; length = is.read(buffer)) {
+                result.write(buffer, 0, length);
+            }
+        } finally {
+            is.close();
+        }
+        return result.toByteArray();
+    }
+
+    private static byte[] getBody(int size) throws IOException {
+        StringBuilder _sb = new StringBuilder();
+        for (int i = 0; _sb.length() < size; i++) {
+            _sb.append("BEGIN:VEVENT\r\nUID:").append(i).append("@example.com\r\nSUMMARY:Event ").append(i)
+                    .append("\r\nEND:VEVENT\r\n");
+        }
+        return _sb.substring(0, size).getBytes("UTF-8");
+    }
+
+    /*
+     * The container response, keeps the headers and the body
+     */
+    private static class Response implements InvocationHandler {
+        private Map<String, List<String>> headers = new HashMap<String, List<String>>();
+        private ByteArrayOutputStream body = new ByteArrayOutputStream();
+        private String contentType;
+        private int contentLength = -1;
+
+        HttpServletResponse proxy() {
+            return (HttpServletResponse) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[] { HttpServletResponse.class }, this);
+        }
+
+        String getHeader(String name) {
+            List<String> values = this.headers.get(name);
+            return values == null ? null : values.get(0);
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if ("setHeader".equals(name)) {
+                this.headers.remove(args[0]);
+            }
+            if ("setHeader".equals(name) || "addHeader".equals(name)) {
+                List<String> values = this.headers.get(args[0]);
+                if (values == null) {
+                    values = new ArrayList<String>();
+                    this.headers.put((String) args[0], values);
+                }
+                values.add((String) args[1]);
+            } else if ("containsHeader".equals(name)) {
+                return this.headers.containsKey(args[0]);
+            } else if ("setContentType".equals(name)) {
+                this.contentType = (String) args[0];
+            } else if ("getContentType".equals(name)) {
+                return this.contentType;
+            } else if ("getCharacterEncoding".equals(name)) {
+                return "UTF-8";
+            } else if ("setContentLength".equals(name)) {
+                this.contentLength = (Integer) args[0];
+            } else if ("getOutputStream".equals(name)) {
+                return new ServletOutputStream() {
+                    @Override
+                    public void write(int b) throws IOException {
+                        Response.this.body.write(b);
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        Response.this.body.write(b, off, len);
+                    }
+                };
+            } else if (method.getReturnType() == Boolean.TYPE) {
+                return false;
+            } else if (method.getReturnType() == Integer.TYPE) {
+                return 0;
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,267 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ricardolorenzo.network.http.caldav.query;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.xml.stream.XMLStreamReader;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ricardolorenzo.icalendar.VAction;
+import com.ricardolorenzo.network.http.caldav.store.CollectionRevision;
+import com.ricardolorenzo.network.http.caldav.store.VCalendarIndex;
+import com.ricardolorenzo.network.http.caldav.xml.RequestReader;
+
+/**
+ * @author Ricardo Lorenzo
+ *
+ */
+public class QueryPlanTest {
+    /*
+     * A weekly series whose last occurrence is moved after the end of the rule, three single
+     * events and two todos
+     */
+    private static final String CALENDAR = "BEGIN:VCALENDAR\r\n" + "VERSION:2.0\r\n" + "PRODID:-//test//EN\r\n"
+            + "BEGIN:VEVENT\r\n" + "UID:series\r\n" + "DTSTART:20260105T100000Z\r\n"
+            + "DTEND:20260105T110000Z\r\n" + "RRULE:FREQ=WEEKLY;UNTIL=20260309T100000Z\r\n" + "SUMMARY:Weekly\r\n"
+            + "END:VEVENT\r\n" + "BEGIN:VEVENT\r\n" + "UID:series\r\n" + "RECURRENCE-ID:20260309T100000Z\r\n"
+            + "DTSTART:20260320T120000Z\r\n" + "DTEND:20260320T130000Z\r\n" + "SUMMARY:Moved\r\n"
+            + "END:VEVENT\r\n" + "BEGIN:VEVENT\r\n" + "UID:lunch\r\n" + "DTSTART:20260201T100000Z\r\n"
+            + "DTEND:20260201T110000Z\r\n" + "SUMMARY:Lunch\r\n" + "LOCATION:Cafe\r\n" + "END:VEVENT\r\n"
+            + "BEGIN:VEVENT\r\n" + "UID:meeting\r\n" + "DTSTART:20260401T100000Z\r\n"
+            + "DTEND:20260401T110000Z\r\n" + "SUMMARY:Meeting\r\n" + "LOCATION:Office\r\n" + "END:VEVENT\r\n"
+            + "BEGIN:VEVENT\r\n" + "UID:review\r\n" + "DTSTART:20260501T100000Z\r\n"
+            + "DTEND:20260501T110000Z\r\n" + "SUMMARY:Review\r\n" + "LOCATION:Cafe\r\n" + "END:VEVENT\r\n"
+            + "BEGIN:VTODO\r\n" + "UID:open\r\n" + "DTSTART:20260201T100000Z\r\n" + "STATUS:NEEDS-ACTION\r\n"
+            + "SUMMARY:Open\r\n" + "END:VTODO\r\n" + "BEGIN:VTODO\r\n" + "UID:done\r\n"
+            + "DTSTART:20260201T100000Z\r\n" + "STATUS:COMPLETED\r\n" + "COMPLETED:20260202T100000Z\r\n"
+            + "SUMMARY:Done\r\n" + "END:VTODO\r\n" + "END:VCALENDAR\r\n";
+
+    private File directory;
+    private File calendar;
+    private VCalendarIndex index;
+
+    @Before
+    public void setUp() throws Exception {
+        this.directory = File.createTempFile("collection", "");
+        this.directory.delete();
+        this.directory.mkdirs();
+        this.calendar = new File(this.directory, "calendar.ics");
+        OutputStream os = new FileOutputStream(this.calendar);
+        try {
+            os.write(CALENDAR.getBytes("UTF-8"));
+        } finally {
+            os.close();
+        }
+        CollectionRevision.increment(this.calendar);
+        this.index = VCalendarIndex.getIndex(this.calendar);
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = this.directory.listFiles();
+        if (files != null) {
+            for (File _f : files) {
+                _f.delete();
+            }
+        }
+        this.directory.delete();
+        VCalendarIndex.remove(this.directory);
+        CollectionRevision.remove(this.directory);
+    }
+
+    @Test
+    public void testNarrowTimeRangeIsChosen() throws Exception {
+        QueryPlan plan = plan("<C:comp-filter name=\"VEVENT\">"
+                + "<C:time-range start=\"20260401T000000Z\" end=\"20260402T000000Z\"/></C:comp-filter>");
+        assertEquals(QueryPlan.TIME_RANGE, plan.getAccess());
+        assertTrue(plan.hasResidual());
+        assertEquals(Arrays.asList("meeting"), plan.executeUids(getContext(), -1));
+    }
+
+    @Test
+    public void testWideTimeRangeScans() throws Exception {
+        QueryPlan plan = plan("<C:comp-filter name=\"VEVENT\">"
+                + "<C:time-range start=\"20250101T000000Z\" end=\"20270101T000000Z\"/></C:comp-filter>");
+        assertEquals(QueryPlan.SCAN, plan.getAccess());
+        assertTrue(plan.hasResidual());
+    }
+
+    @Test
+    public void testUidIsChosen() throws Exception {
+        QueryPlan plan = plan("<C:comp-filter name=\"VEVENT\"><C:prop-filter name=\"UID\">"
+                + "<C:text-match>meeting</C:text-match></C:prop-filter></C:comp-filter>");
+        assertEquals(QueryPlan.UID, plan.getAccess());
+        assertFalse(plan.hasResidual());
+        assertEquals(Arrays.asList("meeting"), plan.execute(this.index, -1));
+    }
+
+    @Test
+    public void testStatusIsChosen() throws Exception {
+        QueryPlan plan = plan("<C:comp-filter name=\"VTODO\"><C:prop-filter name=\"STATUS\">"
+                + "<C:text-match>NEEDS-ACTION</C:text-match></C:prop-filter></C:comp-filter>");
+        assertEquals(QueryPlan.TASK, plan.getAccess());
+        assertFalse(plan.hasResidual());
+        assertEquals(Arrays.asList("open"), plan.execute(this.index, -1));
+    }
+
+    @Test
+    public void testUnstoredComponentIsEmpty() throws Exception {
+        QueryPlan plan = plan("<C:comp-filter name=\"VJOURNAL\"/>");
+        assertEquals(QueryPlan.EMPTY, plan.getAccess());
+        assertEquals(Collections.<String> emptyList(), plan.execute(this.index, -1));
+    }
+
+    @Test
+    public void testAllOfProperties() throws Exception {
+        QueryPlan plan = plan("<C:comp-filter name=\"VEVENT\">"
+                + "<C:prop-filter name=\"LOCATION\"><C:text-match>cafe</C:text-match></C:prop-filter>"
+                + "<C:prop-filter name=\"SUMMARY\"><C:text-match>review</C:text-match></C:prop-filter>"
+                + "</C:comp-filter>");
+        assertEquals(QueryPlan.SCAN, plan.getAccess());
+        assertTrue(plan.hasResidual());
+        assertNull(plan.execute(this.index, -1));
+        assertEquals(Arrays.asList("review"), plan.executeUids(getContext(), -1));
+    }
+
+    @Test
+    public void testAnyOfProperties() throws Exception {
+        QueryPlan plan = plan("<C:comp-filter name=\"VEVENT\" test=\"anyof\">"
+                + "<C:prop-filter name=\"LOCATION\"><C:text-match>cafe</C:text-match></C:prop-filter>"
+                + "<C:prop-filter name=\"SUMMARY\"><C:text-match>meeting</C:text-match></C:prop-filter>"
+                + "</C:comp-filter>");
+        assertEquals(QueryPlan.SCAN, plan.getAccess());
+        assertEquals(Arrays.asList("lunch", "meeting", "review"), sort(plan.executeUids(getContext(), -1)));
+    }
+
+    @Test
+    public void testAnyOfComponents() throws Exception {
+        QueryPlan plan = plan("<C:comp-filter name=\"VEVENT\"><C:prop-filter name=\"UID\">"
+                + "<C:text-match>lunch</C:text-match></C:prop-filter></C:comp-filter>"
+                + "<C:comp-filter name=\"VTODO\"><C:prop-filter name=\"STATUS\">"
+                + "<C:text-match>COMPLETED</C:text-match></C:prop-filter></C:comp-filter>", "anyof");
+        assertFalse(plan.hasResidual());
+        assertEquals(Arrays.asList("lunch", "done"), plan.execute(this.index, -1));
+        assertEquals(Arrays.asList("lunch"), plan.execute(this.index, 1));
+    }
+
+    @Test
+    public void testAllOfComponents() throws Exception {
+        /*
+         * Every resource holds either events or todos, none matches both filters
+         */
+        QueryPlan plan = plan("<C:comp-filter name=\"VEVENT\"><C:prop-filter name=\"UID\">"
+                + "<C:text-match>lunch</C:text-match></C:prop-filter></C:comp-filter>"
+                + "<C:comp-filter name=\"VTODO\"><C:prop-filter name=\"STATUS\">"
+                + "<C:text-match>COMPLETED</C:text-match></C:prop-filter></C:comp-filter>", "allof");
+        assertEquals(QueryPlan.UID, plan.getAccess());
+        assertTrue(plan.hasResidual());
+        assertEquals(Collections.<String> emptyList(), plan.executeUids(getContext(), -1));
+    }
+
+    @Test
+    public void testAnyOfUndefinedComponentScans() throws Exception {
+        QueryPlan plan = plan("<C:comp-filter name=\"VEVENT\"><C:prop-filter name=\"UID\">"
+                + "<C:text-match>lunch</C:text-match></C:prop-filter></C:comp-filter>"
+                + "<C:comp-filter name=\"VTODO\"><C:is-not-defined/></C:comp-filter>", "anyof");
+        assertEquals(QueryPlan.SCAN, plan.getAccess());
+        assertTrue(plan.hasResidual());
+    }
+
+    @Test
+    public void testTimeRangeOnRecurrence() throws Exception {
+        /*
+         * An occurrence of the master, between the other events
+         */
+        QueryPlan plan = plan("<C:comp-filter name=\"VEVENT\">"
+                + "<C:time-range start=\"20260302T100000Z\" end=\"20260302T110000Z\"/></C:comp-filter>");
+        assertEquals(QueryPlan.TIME_RANGE, plan.getAccess());
+        assertEquals(Arrays.asList("series"), getCandidates(plan));
+    }
+
+    @Test
+    public void testTimeRangeOnMovedOverride() throws Exception {
+        /*
+         * Only the override, moved after the end of the rule, overlaps the range
+         */
+        QueryPlan plan = plan("<C:comp-filter name=\"VEVENT\">"
+                + "<C:time-range start=\"20260320T120000Z\" end=\"20260320T130000Z\"/></C:comp-filter>");
+        assertEquals(QueryPlan.TIME_RANGE, plan.getAccess());
+        assertEquals(Arrays.asList("series"), getCandidates(plan));
+    }
+
+    @Test
+    public void testTimeRangeAfterSeries() throws Exception {
+        QueryPlan plan = plan("<C:comp-filter name=\"VEVENT\">"
+                + "<C:time-range start=\"20260325T000000Z\" end=\"20260326T000000Z\"/></C:comp-filter>");
+        assertEquals(QueryPlan.TIME_RANGE, plan.getAccess());
+        assertEquals(Collections.<String> emptyList(), getCandidates(plan));
+        assertEquals(Collections.<String> emptyList(), plan.executeUids(getContext(), -1));
+    }
+
+    private QueryContext getContext() {
+        return new QueryContext(this.calendar, this.index, false);
+    }
+
+    /*
+     * The objects the plan reads from the calendar
+     */
+    private List<String> getCandidates(QueryPlan plan) throws Exception {
+        final List<String> uids = new ArrayList<String>();
+        QueryContext context = new QueryContext(this.calendar, this.index, false) {
+            @Override
+            public VAction getVAction(String type, String uid) {
+                uids.add(uid);
+                return null;
+            }
+        };
+        plan.execute(context);
+        return uids;
+    }
+
+    private QueryPlan plan(String filters) throws Exception {
+        return plan(filters, "allof");
+    }
+
+    private QueryPlan plan(String filters, String test) throws Exception {
+        String xml = "<C:filter xmlns:C=\"urn:ietf:params:xml:ns:caldav\">"
+                + "<C:comp-filter name=\"VCALENDAR\" test=\"" + test + "\">" + filters + "</C:comp-filter>"
+                + "</C:filter>";
+        XMLStreamReader reader = RequestReader.createReader(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+        assertTrue(RequestReader.nextChild(reader));
+        return QueryPlan.plan(new CalendarQuery(CompFilter.parse(reader), false), this.index);
+    }
+
+    private static List<String> sort(List<String> uids) {
+        List<String> result = new ArrayList<String>(uids);
+        Collections.sort(result);
+        return result;
+    }
+}
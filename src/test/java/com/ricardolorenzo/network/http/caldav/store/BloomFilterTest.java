@@ -0,0 +1,85 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ricardolorenzo.network.http.caldav.store;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * @author Ricardo Lorenzo
+ *
+ */
+public class BloomFilterTest {
+    private static final int CAPACITY = 10000;
+
+    @Test
+    public void testNoFalseNegatives() {
+        BloomFilter filter = new BloomFilter(CAPACITY, 0.01);
+        for (int i = 0; i < CAPACITY; i++) {
+            filter.put(getUid(i));
+        }
+        for (int i = 0; i < CAPACITY; i++) {
+            assertTrue(getUid(i), filter.mightContain(getUid(i)));
+        }
+        assertFalse(filter.isSaturated());
+    }
+
+    @Test
+    public void testFalsePositiveRate() {
+        BloomFilter filter = new BloomFilter(CAPACITY, 0.01);
+        for (int i = 0; i < CAPACITY; i++) {
+            filter.put(getUid(i));
+        }
+        int positives = 0;
+        for (int i = CAPACITY; i < 2 * CAPACITY; i++) {
+            if (filter.mightContain(getUid(i))) {
+                positives++;
+            }
+        }
+        /*
+         * Sized for 1%, some margin for the hash distribution
+         */
+        assertTrue(String.valueOf(positives), positives < CAPACITY * 3 / 100);
+    }
+
+    @Test
+    public void testSaturated() {
+        BloomFilter filter = new BloomFilter(10, 0.01);
+        for (int i = 0; i < 10; i++) {
+            filter.put(getUid(i));
+        }
+        assertFalse(filter.isSaturated());
+        filter.put(getUid(10));
+        assertTrue(filter.isSaturated());
+        for (int i = 0; i <= 10; i++) {
+            assertTrue(filter.mightContain(getUid(i)));
+        }
+    }
+
+    @Test
+    public void testNonAsciiValues() {
+        BloomFilter filter = new BloomFilter(100, 0.01);
+        filter.put("\u00e9v\u00e9nement@example.com");
+        filter.put("\u4f1a\u8bae@example.com");
+        assertTrue(filter.mightContain("\u00e9v\u00e9nement@example.com"));
+        assertTrue(filter.mightContain("\u4f1a\u8bae@example.com"));
+    }
+
+    private static String getUid(int i) {
+        return "040000008200E00074C5B7101A82E008" + Integer.toHexString(i * 7919) + "@example.com";
+    }
+}
@@ -0,0 +1,129 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ricardolorenzo.network.http.caldav.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Map;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+/**
+ * @author Ricardo Lorenzo
+ *
+ */
+public class CompiledTimeZoneTest {
+    private static final long HOUR = 3600000L;
+    private static final String NEW_YORK = "BEGIN:VTIMEZONE\r\n" + "TZID:America/New_York\r\n"
+            + "BEGIN:DAYLIGHT\r\n" + "TZOFFSETFROM:-0500\r\n" + "TZOFFSETTO:-0400\r\n" + "TZNAME:EDT\r\n"
+            + "DTSTART:19700308T020000\r\n" + "RRULE:FREQ=YEARLY;BYMONTH=3;BYDAY=2SU\r\n" + "END:DAYLIGHT\r\n"
+            + "BEGIN:STANDARD\r\n" + "TZOFFSETFROM:-0400\r\n" + "TZOFFSETTO:-0500\r\n" + "TZNAME:EST\r\n"
+            + "DTSTART:19701101T020000\r\n" + "RRULE:FREQ=YEARLY;BYMONTH=11;BYDAY=1SU\r\n" + "END:STANDARD\r\n"
+            + "END:VTIMEZONE\r\n";
+    private static final String SYDNEY = "BEGIN:VTIMEZONE\r\n" + "TZID:Australia/Sydney\r\n"
+            + "BEGIN:STANDARD\r\n" + "TZOFFSETFROM:+1100\r\n" + "TZOFFSETTO:+1000\r\n" + "TZNAME:AEST\r\n"
+            + "DTSTART:19700405T030000\r\n" + "RRULE:FREQ=YEARLY;BYMONTH=4;BYDAY=1SU\r\n" + "END:STANDARD\r\n"
+            + "BEGIN:DAYLIGHT\r\n" + "TZOFFSETFROM:+1000\r\n" + "TZOFFSETTO:+1100\r\n" + "TZNAME:AEDT\r\n"
+            + "DTSTART:19701004T020000\r\n" + "RRULE:FREQ=YEARLY;BYMONTH=10;BYDAY=1SU\r\n" + "END:DAYLIGHT\r\n"
+            + "END:VTIMEZONE\r\n";
+
+    @Test
+    public void testSpringForward() {
+        CompiledTimeZone tz = compile(NEW_YORK);
+        /*
+         * 2026-03-08 02:00 EST is 07:00 UTC
+         */
+        long transition = VCalendarIndexTest.getTime(2026, Calendar.MARCH, 8, 7);
+        assertEquals(-5 * HOUR, tz.getOffset(transition - 1));
+        assertEquals(-4 * HOUR, tz.getOffset(transition));
+        assertFalse(tz.inDaylightTime(new Date(transition - 1)));
+        assertTrue(tz.inDaylightTime(new Date(transition)));
+    }
+
+    @Test
+    public void testFallBack() {
+        CompiledTimeZone tz = compile(NEW_YORK);
+        /*
+         * 2026-11-01 02:00 EDT is 06:00 UTC
+         */
+        long transition = VCalendarIndexTest.getTime(2026, Calendar.NOVEMBER, 1, 6);
+        assertEquals(-4 * HOUR, tz.getOffset(transition - 1));
+        assertEquals(-5 * HOUR, tz.getOffset(transition));
+        assertTrue(tz.inDaylightTime(new Date(transition - 1)));
+        assertFalse(tz.inDaylightTime(new Date(transition)));
+    }
+
+    @Test
+    public void testOffsets() {
+        CompiledTimeZone tz = compile(NEW_YORK);
+        assertEquals("America/New_York", tz.getID());
+        assertEquals(-5 * HOUR, tz.getRawOffset());
+        assertEquals(HOUR, tz.getDSTSavings());
+        assertTrue(tz.useDaylightTime());
+    }
+
+    @Test
+    public void testSameAsJavaTimeZone() {
+        assertSameOffsets(compile(NEW_YORK), TimeZone.getTimeZone("America/New_York"));
+    }
+
+    @Test
+    public void testSouthernHemisphere() {
+        CompiledTimeZone tz = compile(SYDNEY);
+        assertEquals(10 * HOUR, tz.getRawOffset());
+        assertSameOffsets(tz, TimeZone.getTimeZone("Australia/Sydney"));
+    }
+
+    @Test
+    public void testWithoutTzid() {
+        assertNull(CompiledTimeZone.compile(ICalendarComponent.parse(NEW_YORK.replace(
+                "TZID:America/New_York\r\n", ""))));
+    }
+
+    @Test
+    public void testRegistry() {
+        Map<String, TimeZone> timezones = TimeZoneRegistry.getTimeZones("BEGIN:VCALENDAR\r\n" + NEW_YORK
+                + "END:VCALENDAR\r\n");
+        TimeZone tz = timezones.get("America/New_York");
+        assertNotNull(tz);
+        assertEquals(-4 * HOUR, tz.getOffset(VCalendarIndexTest.getTime(2026, Calendar.JULY, 1, 12)));
+        assertTrue(TimeZoneRegistry.getTimeZones(null).isEmpty());
+    }
+
+    /*
+     * Every hour of the years with the current rules
+     */
+    private static void assertSameOffsets(TimeZone tz, TimeZone expected) {
+        long end = VCalendarIndexTest.getTime(2031, Calendar.JANUARY, 1, 0);
+        for (long time = VCalendarIndexTest.getTime(2020, Calendar.JANUARY, 1, 0); time < end; time += HOUR) {
+            assertEquals(String.valueOf(new Date(time)), expected.getOffset(time), tz.getOffset(time));
+        }
+    }
+
+    private static CompiledTimeZone compile(String vtimezone) {
+        ICalendarComponent component = ICalendarComponent.parse(vtimezone);
+        assertNotNull(component);
+        CompiledTimeZone tz = CompiledTimeZone.compile(component);
+        assertNotNull(tz);
+        return tz;
+    }
+}
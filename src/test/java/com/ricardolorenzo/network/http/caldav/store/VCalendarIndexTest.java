@@ -0,0 +1,134 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.ricardolorenzo.network.http.caldav.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Ricardo Lorenzo
+ *
+ */
+public class VCalendarIndexTest {
+    private static final String SERIES = "BEGIN:VCALENDAR\r\n" + "VERSION:2.0\r\n" + "PRODID:-//test//EN\r\n"
+            + "BEGIN:VEVENT\r\n" + "UID:series\r\n" + "DTSTART:20260105T100000Z\r\n"
+            + "DTEND:20260105T110000Z\r\n" + "RRULE:FREQ=WEEKLY;UNTIL=20260309T100000Z\r\n" + "SUMMARY:Weekly\r\n"
+            + "END:VEVENT\r\n" + "BEGIN:VEVENT\r\n" + "UID:series\r\n" + "RECURRENCE-ID:20260112T100000Z\r\n"
+            + "DTSTART:20260112T120000Z\r\n" + "DTEND:20260112T130000Z\r\n" + "SUMMARY:Moved\r\n"
+            + "END:VEVENT\r\n" + "BEGIN:VEVENT\r\n" + "UID:single\r\n" + "DTSTART:20260201T100000Z\r\n"
+            + "DTEND:20260201T110000Z\r\n" + "END:VEVENT\r\n" + "END:VCALENDAR\r\n";
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        this.directory = File.createTempFile("collection", "");
+        this.directory.delete();
+        this.directory.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = this.directory.listFiles();
+        if (files != null) {
+            for (File _f : files) {
+                _f.delete();
+            }
+        }
+        this.directory.delete();
+        VCalendarIndex.remove(this.directory);
+        CollectionRevision.remove(this.directory);
+    }
+
+    @Test
+    public void testOverrideDoesNotReplaceMaster() throws Exception {
+        VCalendarIndex index = VCalendarIndex.getIndex(write(SERIES));
+        VActionEntry entry = index.getEntry("series");
+        assertNotNull(entry);
+        assertTrue(entry.isRecurrent());
+        assertEquals(getTime(2026, Calendar.JANUARY, 5, 10), entry.getStart());
+        /*
+         * The override is the last component, the later occurrences of the master are kept
+         */
+        assertTrue(entry.mayOverlap(getTime(2026, Calendar.MARCH, 2, 10), getTime(2026, Calendar.MARCH, 2, 11)));
+        assertFalse(entry.mayOverlap(getTime(2026, Calendar.APRIL, 1, 0), getTime(2026, Calendar.APRIL, 2, 0)));
+        assertEquals(2, index.getEntries().size());
+    }
+
+    @Test
+    public void testMovedOverrideExtendsBounds() throws Exception {
+        String calendar = SERIES.replace("DTSTART:20260112T120000Z\r\nDTEND:20260112T130000Z",
+                "DTSTART:20260601T120000Z\r\nDTEND:20260601T130000Z");
+        VActionEntry entry = VCalendarIndex.getIndex(write(calendar)).getEntry("series");
+        assertTrue(entry.mayOverlap(getTime(2026, Calendar.JUNE, 1, 12), getTime(2026, Calendar.JUNE, 1, 13)));
+    }
+
+    @Test
+    public void testSingleObjectIsNotRecurrent() throws Exception {
+        VActionEntry entry = VCalendarIndex.getIndex(write(SERIES)).getEntry("single");
+        assertFalse(entry.isRecurrent());
+        assertEquals(getTime(2026, Calendar.FEBRUARY, 1, 10), entry.getStart());
+        assertEquals(getTime(2026, Calendar.FEBRUARY, 1, 11), entry.getEnd());
+    }
+
+    @Test
+    public void testDataIsReadBackFromCalendar() throws Exception {
+        File _f = write(SERIES);
+        VCalendarIndex.getIndex(_f);
+        assertTrue(new File(this.directory, ".index").exists());
+        assertFalse(new File(this.directory, ".index.tmp").exists());
+        /*
+         * Loaded from the persisted index, without the object data
+         */
+        VCalendarIndex.remove(this.directory);
+        VActionEntry entry = VCalendarIndex.getIndex(_f).getEntry("series");
+        assertNotNull(entry.getData());
+        assertTrue(entry.getData().toString().contains("SUMMARY:Weekly"));
+        assertFalse(entry.getData().toString().contains("SUMMARY:Moved"));
+        assertTrue(entry.isRecurrent());
+    }
+
+    private File write(String calendar) throws IOException {
+        File _f = new File(this.directory, "calendar.ics");
+        OutputStream os = new FileOutputStream(_f);
+        try {
+            os.write(calendar.getBytes("UTF-8"));
+        } finally {
+            os.close();
+        }
+        CollectionRevision.increment(_f);
+        return _f;
+    }
+
+    static long getTime(int year, int month, int day, int hour) {
+        Calendar _c = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        _c.clear();
+        _c.set(year, month, day, hour, 0, 0);
+        return _c.getTimeInMillis();
+    }
+}